@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.LongLongMap;
+import com.artistech.utils.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Steps the audio sent down a congested connection down a ladder of reductions, one radio at a time, and back up
+ * when the connection recovers.
+ *
+ * Congestion is judged once per interval from how full the connection's queue got and how much of the interval was
+ * spent blocked writing to the socket.  A congested interval steps down the radio that sent the most audio; only
+ * after several clear intervals in a row is the most reduced radio stepped back up, so the rung doesn't flap.
+ * Intervals that are neither congested nor clear hold every radio where it is.
+ *
+ * Only 16-bit linear PCM signal PDUs are reduced; other PDUs pass through untouched.  Each radio's rung is published
+ * as a gauge (0 = FULL ... 3 = DROP) named PREFIX.radio.SITE.APP.ENTITY.RADIO.
+ *
+ * Not thread safe; used by one connection's writer thread.
+ */
+public class AdaptiveBitrate {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveBitrate.class.getName());
+
+    /**
+     * Rungs of the ladder, least reduced first.
+     */
+    public enum Rung {
+        //as received
+        FULL,
+        //every other sample, at half the sample rate
+        HALF_RATE,
+        //half rate, 8-bit mu-law
+        MULAW,
+        //signal PDUs are not sent
+        DROP
+    }
+
+    public static final long DEFAULT_INTERVAL_MS = 500;
+    public static final int UP_INTERVALS = 4;
+    private static final double DEPTH_HIGH = 0.5;
+    private static final double DEPTH_LOW = 0.1;
+    private static final double STALL_HIGH = 0.2;
+    private static final double STALL_LOW = 0.05;
+    //intervals without audio before a radio is forgotten
+    private static final int IDLE_INTERVALS = 20;
+
+    private static final int ENCODING_OFFSET = 20;
+    private static final int SAMPLE_RATE_OFFSET = 24;
+    private static final int DATA_LENGTH_OFFSET = 28;
+    private static final int SAMPLES_OFFSET = 30;
+    private static final int DATA_OFFSET = 32;
+    private static final int ENCODING_MULAW = 1;
+    private static final int ENCODING_PCM16 = 4;
+
+    /**
+     * A radio's audio.
+     */
+    private static class Stream {
+        final long id;
+        volatile Rung rung = Rung.FULL;
+        long bytes = 0;
+        int idle = 0;
+
+        Stream(long id) {
+            this.id = id;
+        }
+    }
+
+    private final String name;
+    private final int capacity;
+    private final long intervalNanos;
+    private final LongLongMap index = new LongLongMap();
+    private final List<Stream> streams = new ArrayList<>();
+    private long intervalStart = System.nanoTime();
+    private long stallNanos = 0;
+    private int maxDepth = 0;
+    private int clear = 0;
+    private volatile int degraded = 0;
+    private final AtomicLong down;
+    private final AtomicLong up;
+    private final AtomicLong dropped;
+
+    /**
+     * Constructor.
+     *
+     * @param name metric prefix
+     * @param capacity capacity of the connection's queue
+     * @param intervalMillis how often congestion is judged
+     */
+    public AdaptiveBitrate(String name, int capacity, long intervalMillis) {
+        this.name = name;
+        this.capacity = capacity;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.down = Metrics.counter(name + ".down");
+        this.up = Metrics.counter(name + ".up");
+        this.dropped = Metrics.counter(name + ".dropped");
+        Metrics.gauge(name + ".degraded", () -> degraded);
+    }
+
+    /**
+     * Reduce a PDU to its radio's current rung.
+     *
+     * @param pdu the PDU
+     * @return the PDU to send, which may be a new array, or null if it should not be sent
+     */
+    public byte[] apply(byte[] pdu) {
+        if (pdu.length < DATA_OFFSET || (255 & pdu[2]) != RadioTable.SIGNAL) {
+            return pdu;
+        }
+        Stream s = stream(RadioTable.radioId(pdu));
+        s.idle = 0;
+        int encoding = ((255 & pdu[ENCODING_OFFSET]) << 8 | (255 & pdu[ENCODING_OFFSET + 1])) & 0x3FFF;
+        Rung rung = s.rung;
+        if (rung == Rung.DROP) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        byte[] ret = rung == Rung.FULL || encoding != ENCODING_PCM16 ? pdu : reduce(pdu, rung == Rung.MULAW);
+        //what is actually sent, so a reduced radio is no longer the busiest
+        s.bytes += ret.length;
+        return ret;
+    }
+
+    /**
+     * Record a write to the connection, judging congestion at the end of each interval.
+     *
+     * @param writeNanos time spent writing
+     * @param depth frames queued after the write
+     */
+    public void written(long writeNanos, int depth) {
+        stallNanos += writeNanos;
+        maxDepth = Math.max(maxDepth, depth);
+        long now = System.nanoTime();
+        long elapsed = now - intervalStart;
+        if (elapsed < intervalNanos) {
+            return;
+        }
+
+        double fill = (double) maxDepth / capacity;
+        double stall = (double) stallNanos / elapsed;
+        if (fill >= DEPTH_HIGH || stall >= STALL_HIGH) {
+            clear = 0;
+            step(true);
+        } else if (fill <= DEPTH_LOW && stall <= STALL_LOW) {
+            if (++clear >= UP_INTERVALS) {
+                clear = 0;
+                step(false);
+            }
+        } else {
+            clear = 0;
+        }
+
+        //forget radios that have stopped talking
+        for (int ii = streams.size() - 1; ii >= 0; ii--) {
+            Stream s = streams.get(ii);
+            if (++s.idle > IDLE_INTERVALS) {
+                remove(ii);
+            } else {
+                s.bytes = 0;
+            }
+        }
+        intervalStart = now;
+        stallNanos = 0;
+        maxDepth = 0;
+    }
+
+    /**
+     * Step down the busiest radio that can still be reduced, or step up the most reduced one.
+     */
+    private void step(boolean congested) {
+        Stream pick = null;
+        for (Stream s : streams) {
+            if (congested) {
+                if (s.rung != Rung.DROP && s.bytes > 0 && (pick == null || s.bytes > pick.bytes)) {
+                    pick = s;
+                }
+            } else if (s.rung != Rung.FULL && (pick == null || s.rung.ordinal() > pick.rung.ordinal())) {
+                pick = s;
+            }
+        }
+        if (pick == null) {
+            return;
+        }
+        Rung[] rungs = Rung.values();
+        Rung old = pick.rung;
+        pick.rung = rungs[old.ordinal() + (congested ? 1 : -1)];
+        if (old == Rung.FULL) {
+            degraded++;
+        } else if (pick.rung == Rung.FULL) {
+            degraded--;
+        }
+        (congested ? down : up).incrementAndGet();
+        LOGGER.log(Level.FINE, "{0}: radio {1} {2} -> {3}",
+                new Object[]{name, format(pick.id), old, pick.rung});
+    }
+
+    private Stream stream(long id) {
+        int i = (int) index.get(id, -1);
+        if (i >= 0) {
+            return streams.get(i);
+        }
+        final Stream s = new Stream(id);
+        index.put(id, streams.size());
+        streams.add(s);
+        Metrics.gauge(name + ".radio." + format(id), () -> s.rung.ordinal());
+        return s;
+    }
+
+    private void remove(int i) {
+        Stream s = streams.get(i);
+        Stream last = streams.remove(streams.size() - 1);
+        index.remove(s.id);
+        if (last != s) {
+            streams.set(i, last);
+            index.put(last.id, i);
+        }
+        if (s.rung != Rung.FULL) {
+            degraded--;
+        }
+        Metrics.remove(name + ".radio." + format(s.id));
+    }
+
+    /**
+     * Get each radio's rung.
+     *
+     * @return SITE.APP.ENTITY.RADIO=RUNG,...
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stream s : streams) {
+            sb.append(sb.length() > 0 ? "," : "").append(format(s.id)).append('=').append(s.rung);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forget this connection's metrics.
+     */
+    public void unregister() {
+        Metrics.remove(name + ".");
+    }
+
+    private static String format(long id) {
+        return (id >>> 48) + "." + (id >>> 32 & 0xFFFF) + "." + (id >>> 16 & 0xFFFF) + "." + (id & 0xFFFF);
+    }
+
+    /**
+     * Halve the sample rate of a 16-bit PCM signal PDU, optionally encoding it as mu-law.
+     *
+     * @param pdu the PDU
+     * @param mulaw encode as 8-bit mu-law
+     * @return the reduced PDU
+     */
+    static byte[] reduce(byte[] pdu, boolean mulaw) {
+        int bits = (255 & pdu[DATA_LENGTH_OFFSET]) << 8 | (255 & pdu[DATA_LENGTH_OFFSET + 1]);
+        int count = Math.min(bits / 8, pdu.length - DATA_OFFSET) / 2;
+        int half = count / 2;
+        int dataBytes = mulaw ? half : half * 2;
+        //signal data is padded to 32 bits
+        int length = DATA_OFFSET + ((dataBytes + 3) & ~3);
+        byte[] ret = new byte[length];
+        System.arraycopy(pdu, 0, ret, 0, DATA_OFFSET);
+
+        ret[8] = (byte) (length >> 8);
+        ret[9] = (byte) length;
+        if (mulaw) {
+            ret[ENCODING_OFFSET] = (byte) (pdu[ENCODING_OFFSET] & 0xC0);
+            ret[ENCODING_OFFSET + 1] = ENCODING_MULAW;
+        }
+        long rate = ((255L & pdu[SAMPLE_RATE_OFFSET]) << 24 | (255 & pdu[SAMPLE_RATE_OFFSET + 1]) << 16
+                | (255 & pdu[SAMPLE_RATE_OFFSET + 2]) << 8 | (255 & pdu[SAMPLE_RATE_OFFSET + 3])) / 2;
+        for (int ii = 0; ii < 4; ii++) {
+            ret[SAMPLE_RATE_OFFSET + ii] = (byte) (rate >> (24 - ii * 8));
+        }
+        int dataBits = dataBytes * 8;
+        ret[DATA_LENGTH_OFFSET] = (byte) (dataBits >> 8);
+        ret[DATA_LENGTH_OFFSET + 1] = (byte) dataBits;
+        ret[SAMPLES_OFFSET] = (byte) (half >> 8);
+        ret[SAMPLES_OFFSET + 1] = (byte) half;
+
+        for (int ii = 0; ii < half; ii++) {
+            int src = DATA_OFFSET + ii * 4;
+            if (mulaw) {
+                ret[DATA_OFFSET + ii] = toMulaw((short) (pdu[src] << 8 | (255 & pdu[src + 1])));
+            } else {
+                ret[DATA_OFFSET + ii * 2] = pdu[src];
+                ret[DATA_OFFSET + ii * 2 + 1] = pdu[src + 1];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * G.711 mu-law encode.
+     */
+    private static byte toMulaw(short sample) {
+        int s = sample;
+        int sign = (s >> 8) & 0x80;
+        if (sign != 0) {
+            s = -s;
+        }
+        s = Math.min(s, 32635) + 0x84;
+        int exponent = 7;
+        for (int mask = 0x4000; (s & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (s >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | exponent << 4 | mantissa);
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.LineUnavailableException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Mixes the audio of concurrent radios for monitoring.
+ *
+ * Signal PDUs are decoded straight from the PDU bytes (16-bit linear PCM or 8-bit mu-law) into a buffer per radio.  A
+ * radio starts playing once it has buffered the jitter delay, goes back to buffering when it runs dry, and has its
+ * oldest audio dropped if it gets more than the maximum latency ahead.  A dedicated thread takes one fixed-size frame
+ * from every playing radio per frame period, sums them with saturation, and writes the frame to a sink.
+ *
+ * Active streams, frames, underruns, dropped and clipped samples and the time spent mixing are published to Metrics.
+ */
+public class AudioMixer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AudioMixer.class.getName());
+
+    public static final int SAMPLE_RATE = 44100;
+    //signal PDUs claiming rates outside these are malformed
+    public static final int MIN_SAMPLE_RATE = 4000;
+    public static final int MAX_SAMPLE_RATE = 96000;
+    public static final int DEFAULT_FRAME_MS = 10;
+    public static final int DEFAULT_JITTER_MS = 60;
+    public static final int DEFAULT_MAX_LATENCY_MS = 250;
+    private static final long IDLE_NANOS = 2_000_000_000L;
+
+    private static final int ENCODING_OFFSET = 20;
+    private static final int SAMPLE_RATE_OFFSET = 24;
+    private static final int DATA_LENGTH_OFFSET = 28;
+    private static final int SAMPLES_OFFSET = 30;
+    private static final int DATA_OFFSET = 32;
+    private static final int ENCODING_MULAW = 1;
+    private static final int ENCODING_PCM16 = 4;
+
+    private static final short[] MULAW = new short[256];
+
+    static {
+        for (int ii = 0; ii < 256; ii++) {
+            int u = ~ii & 0xFF;
+            int t = ((u & 0x0F) << 3) + 0x84;
+            t <<= (u & 0x70) >> 4;
+            MULAW[ii] = (short) ((u & 0x80) != 0 ? 0x84 - t : t - 0x84);
+        }
+    }
+
+    /**
+     * Receives mixed frames.
+     */
+    public interface Sink extends AutoCloseable {
+        /**
+         * Write a frame of 16-bit big-endian mono PCM.
+         *
+         * @param frame buffer
+         * @param length bytes to write
+         * @throws IOException error writing
+         */
+        void write(byte[] frame, int length) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Plays frames on the default audio line.
+     */
+    public static class LineSink implements Sink {
+        private final RawAudioPlay line;
+
+        /**
+         * Constructor.
+         *
+         * @throws LineUnavailableException if access to audio is not available
+         */
+        public LineSink() throws LineUnavailableException {
+            line = new RawAudioPlay();
+        }
+
+        @Override
+        public void write(byte[] frame, int length) throws IOException {
+            line.write(frame, 0, length);
+        }
+
+        @Override
+        public void close() {
+            line.close();
+        }
+    }
+
+    /**
+     * Writes frames to a WAV file.
+     */
+    public static class WavSink implements Sink {
+        private final RandomAccessFile file;
+        private long dataBytes = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param path the file
+         * @throws IOException error creating the file
+         */
+        public WavSink(File path) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            file.write(new byte[44]);
+        }
+
+        @Override
+        public void write(byte[] frame, int length) throws IOException {
+            //WAV is little-endian
+            byte[] le = new byte[length];
+            for (int ii = 0; ii + 1 < length; ii += 2) {
+                le[ii] = frame[ii + 1];
+                le[ii + 1] = frame[ii];
+            }
+            file.write(le);
+            dataBytes += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.seek(0);
+            file.writeBytes("RIFF");
+            file.writeInt(Integer.reverseBytes((int) (36 + dataBytes)));
+            file.writeBytes("WAVEfmt ");
+            file.writeInt(Integer.reverseBytes(16));
+            file.writeShort(Short.reverseBytes((short) 1));
+            file.writeShort(Short.reverseBytes((short) 1));
+            file.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            file.writeInt(Integer.reverseBytes(SAMPLE_RATE * 2));
+            file.writeShort(Short.reverseBytes((short) 2));
+            file.writeShort(Short.reverseBytes((short) 16));
+            file.writeBytes("data");
+            file.writeInt(Integer.reverseBytes((int) dataBytes));
+            file.close();
+        }
+    }
+
+    /**
+     * Discards frames; for benchmarking.
+     */
+    public static class NullSink implements Sink {
+        @Override
+        public void write(byte[] frame, int length) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Audio buffered for one radio.  Guarded by itself.
+     */
+    private static class Stream {
+        final short[] samples;
+        final int mask;
+        long head = 0;
+        long tail = 0;
+        boolean playing = false;
+        long lastNanos;
+
+        Stream(int capacity) {
+            int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            samples = new short[n];
+            mask = n - 1;
+        }
+
+        int buffered() {
+            return (int) (tail - head);
+        }
+    }
+
+    private final Sink sink;
+    private final int frameSamples;
+    private final int jitterSamples;
+    private final int maxSamples;
+    private final long frameNanos;
+    private final Map<Long, Stream> streams = new ConcurrentHashMap<>();
+    private final int[] mix;
+    private final byte[] out;
+    private volatile boolean halted = false;
+    private Thread thread = null;
+
+    private final AtomicLong frames = Metrics.counter("mixer.frames");
+    private final AtomicLong underruns = Metrics.counter("mixer.underruns");
+    private final AtomicLong dropped = Metrics.counter("mixer.dropped");
+    private final AtomicLong clipped = Metrics.counter("mixer.clipped");
+    private final AtomicLong mixNanos = Metrics.counter("mixer.mix.total.us");
+    private final AtomicLong late = Metrics.counter("mixer.late");
+
+    /**
+     * Constructor with the default frame size, jitter delay and maximum latency.
+     *
+     * @param sink where mixed audio goes
+     */
+    public AudioMixer(Sink sink) {
+        this(sink, DEFAULT_FRAME_MS, DEFAULT_JITTER_MS, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sink where mixed audio goes
+     * @param frameMillis mix frame size
+     * @param jitterMillis audio buffered per radio before it starts playing
+     * @param maxLatencyMillis audio buffered per radio before the oldest is dropped
+     */
+    public AudioMixer(Sink sink, int frameMillis, int jitterMillis, int maxLatencyMillis) {
+        this.sink = sink;
+        this.frameSamples = SAMPLE_RATE * frameMillis / 1000;
+        this.jitterSamples = SAMPLE_RATE * jitterMillis / 1000;
+        this.maxSamples = Math.max(jitterSamples + frameSamples, SAMPLE_RATE * maxLatencyMillis / 1000);
+        this.frameNanos = frameMillis * 1_000_000L;
+        this.mix = new int[frameSamples];
+        this.out = new byte[frameSamples * 2];
+        Metrics.gauge("mixer.streams", streams::size);
+    }
+
+    /**
+     * Add a signal PDU.  Other PDUs, unsupported encodings and sample rates outside
+     * MIN_SAMPLE_RATE to MAX_SAMPLE_RATE are ignored.
+     *
+     * @param pdu buffer holding the PDU at offset 0
+     * @param length length of the PDU
+     * @return true if the PDU's audio was buffered
+     */
+    public boolean add(byte[] pdu, int length) {
+        if (length < DATA_OFFSET || (255 & pdu[2]) != RadioTable.SIGNAL) {
+            return false;
+        }
+        int encoding = ((255 & pdu[ENCODING_OFFSET]) << 8 | (255 & pdu[ENCODING_OFFSET + 1])) & 0x3FFF;
+        long rate = sampleRate(pdu);
+        int bits = (255 & pdu[DATA_LENGTH_OFFSET]) << 8 | (255 & pdu[DATA_LENGTH_OFFSET + 1]);
+        int bytes = Math.min(bits / 8, length - DATA_OFFSET);
+        int count;
+        if (encoding == ENCODING_PCM16) {
+            count = bytes / 2;
+        } else if (encoding == ENCODING_MULAW) {
+            count = bytes;
+        } else {
+            return false;
+        }
+        if (rate <= 0 || count == 0) {
+            return false;
+        }
+
+        long id = RadioTable.radioId(pdu);
+        Stream s = streams.computeIfAbsent(id, k -> new Stream(maxSamples * 2));
+        //nearest-neighbour resampling to the mixer rate, no more than the stream holds
+        int outCount = (int) Math.min(count * SAMPLE_RATE / rate, s.samples.length);
+        synchronized (s) {
+            s.lastNanos = System.nanoTime();
+            for (int ii = 0; ii < outCount; ii++) {
+                int src = (int) ((long) ii * rate / SAMPLE_RATE);
+                short sample;
+                if (encoding == ENCODING_PCM16) {
+                    int off = DATA_OFFSET + src * 2;
+                    sample = (short) ((pdu[off] << 8) | (255 & pdu[off + 1]));
+                } else {
+                    sample = MULAW[255 & pdu[DATA_OFFSET + src]];
+                }
+                s.samples[(int) s.tail & s.mask] = sample;
+                s.tail++;
+            }
+            //keep latency bounded: drop the oldest audio down to the jitter delay.
+            if (s.buffered() > maxSamples) {
+                int drop = s.buffered() - jitterSamples;
+                s.head += drop;
+                dropped.addAndGet(drop);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mix and write one frame.  Called by the mixer thread, or directly when benchmarking.
+     *
+     * @throws IOException error writing to the sink
+     */
+    public void mixFrame() throws IOException {
+        long start = System.nanoTime();
+        Arrays.fill(mix, 0);
+        for (Map.Entry<Long, Stream> e : streams.entrySet()) {
+            Stream s = e.getValue();
+            synchronized (s) {
+                if (!s.playing) {
+                    if (s.buffered() >= jitterSamples) {
+                        s.playing = true;
+                    } else {
+                        if (s.buffered() == 0 && start - s.lastNanos > IDLE_NANOS) {
+                            streams.remove(e.getKey(), s);
+                        }
+                        continue;
+                    }
+                }
+                int n = Math.min(frameSamples, s.buffered());
+                for (int ii = 0; ii < n; ii++) {
+                    mix[ii] += s.samples[(int) (s.head + ii) & s.mask];
+                }
+                s.head += n;
+                if (n < frameSamples) {
+                    //ran dry mid-frame; buffer up again before playing.
+                    s.playing = false;
+                    underruns.incrementAndGet();
+                }
+            }
+        }
+
+        int clip = 0;
+        for (int ii = 0; ii < frameSamples; ii++) {
+            int v = mix[ii];
+            if (v > Short.MAX_VALUE) {
+                v = Short.MAX_VALUE;
+                clip++;
+            } else if (v < Short.MIN_VALUE) {
+                v = Short.MIN_VALUE;
+                clip++;
+            }
+            out[ii * 2] = (byte) (v >> 8);
+            out[ii * 2 + 1] = (byte) v;
+        }
+        if (clip > 0) {
+            clipped.addAndGet(clip);
+        }
+        frames.incrementAndGet();
+        mixNanos.addAndGet((System.nanoTime() - start) / 1000);
+        sink.write(out, out.length);
+    }
+
+    /**
+     * Start the mixer thread, which mixes one frame per frame period.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            long next = System.nanoTime();
+            while (!halted) {
+                next += frameNanos;
+                try {
+                    mixFrame();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, null, ex);
+                    return;
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (-wait > frameNanos * 4) {
+                    //too far behind to catch up; start the clock again.
+                    late.incrementAndGet();
+                    next = System.nanoTime();
+                }
+            }
+        }, "audio-mixer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Get the number of radios with buffered audio.
+     *
+     * @return streams
+     */
+    public int getStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Stop the mixer thread and close the sink.
+     *
+     * @throws IOException error closing the sink
+     */
+    @Override
+    public void close() throws IOException {
+        halted = true;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException ex) {
+            }
+        }
+        sink.close();
+    }
+
+    /**
+     * Decode the 16-bit linear PCM or mu-law samples of a signal PDU.
+     *
+     * @param pdu buffer holding the PDU at offset 0
+     * @param length length of the PDU
+     * @param out receives the samples; must hold the PDU's samples
+     * @return number of samples, -1 if the PDU is not a signal PDU in either encoding
+     */
+    static int decode(byte[] pdu, int length, short[] out) {
+        if (length < DATA_OFFSET || (255 & pdu[2]) != RadioTable.SIGNAL) {
+            return -1;
+        }
+        int encoding = ((255 & pdu[ENCODING_OFFSET]) << 8 | (255 & pdu[ENCODING_OFFSET + 1])) & 0x3FFF;
+        int bits = (255 & pdu[DATA_LENGTH_OFFSET]) << 8 | (255 & pdu[DATA_LENGTH_OFFSET + 1]);
+        int bytes = Math.min(bits / 8, length - DATA_OFFSET);
+        if (encoding == ENCODING_PCM16) {
+            int count = Math.min(bytes / 2, out.length);
+            for (int ii = 0; ii < count; ii++) {
+                int off = DATA_OFFSET + ii * 2;
+                out[ii] = (short) ((pdu[off] << 8) | (255 & pdu[off + 1]));
+            }
+            return count;
+        } else if (encoding == ENCODING_MULAW) {
+            int count = Math.min(bytes, out.length);
+            for (int ii = 0; ii < count; ii++) {
+                out[ii] = MULAW[255 & pdu[DATA_OFFSET + ii]];
+            }
+            return count;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the sample rate of a signal PDU.
+     *
+     * @param pdu buffer holding the PDU at offset 0
+     * @return samples per second, 0 if outside MIN_SAMPLE_RATE to MAX_SAMPLE_RATE
+     */
+    static long sampleRate(byte[] pdu) {
+        long rate = (long) getInt(pdu, SAMPLE_RATE_OFFSET) & 0xFFFFFFFFL;
+        return rate >= MIN_SAMPLE_RATE && rate <= MAX_SAMPLE_RATE ? rate : 0;
+    }
+
+    /**
+     * Get the number of samples in a signal PDU, from its data length when the samples field isn't set.
+     *
+     * @param pdu buffer holding the PDU at offset 0
+     * @return samples, 0 if unknown
+     */
+    static int sampleCount(byte[] pdu) {
+        int samples = (255 & pdu[SAMPLES_OFFSET]) << 8 | (255 & pdu[SAMPLES_OFFSET + 1]);
+        if (samples > 0) {
+            return samples;
+        }
+        int encoding = ((255 & pdu[ENCODING_OFFSET]) << 8 | (255 & pdu[ENCODING_OFFSET + 1])) & 0x3FFF;
+        int bits = (255 & pdu[DATA_LENGTH_OFFSET]) << 8 | (255 & pdu[DATA_LENGTH_OFFSET + 1]);
+        return encoding == ENCODING_PCM16 ? bits / 16 : encoding == ENCODING_MULAW ? bits / 8 : 0;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (255 & b[off]) << 24 | (255 & b[off + 1]) << 16 | (255 & b[off + 2]) << 8 | (255 & b[off + 3]);
+    }
+
+    /**
+     * Build a signal PDU carrying 16-bit linear PCM.
+     *
+     * @param radio radio ID
+     * @param samples audio
+     * @param count number of samples
+     * @return raw PDU
+     */
+    static byte[] signalPdu(int radio, short[] samples, int count) {
+        return signalPdu(radio & 0xFFFF, SAMPLE_RATE, samples, count);
+    }
+
+    /**
+     * Build a signal PDU carrying 16-bit linear PCM.
+     *
+     * @param radioId site.application.entity.radio packed as in the PDU
+     * @param rate sample rate
+     * @param samples audio
+     * @param count number of samples
+     * @return raw PDU
+     */
+    static byte[] signalPdu(long radioId, int rate, short[] samples, int count) {
+        byte[] pdu = new byte[DATA_OFFSET + count * 2];
+        pdu[0] = 6;
+        pdu[2] = RadioTable.SIGNAL;
+        pdu[3] = 4;
+        for (int ii = 0; ii < Long.BYTES; ii++) {
+            pdu[RadioTable.RADIO_OFFSET + ii] = (byte) (radioId >> (56 - ii * 8));
+        }
+        pdu[ENCODING_OFFSET + 1] = ENCODING_PCM16;
+        for (int ii = 0; ii < 4; ii++) {
+            pdu[SAMPLE_RATE_OFFSET + ii] = (byte) (rate >> (24 - ii * 8));
+        }
+        int bits = count * 16;
+        pdu[DATA_LENGTH_OFFSET] = (byte) (bits >> 8);
+        pdu[DATA_LENGTH_OFFSET + 1] = (byte) bits;
+        pdu[SAMPLES_OFFSET] = (byte) (count >> 8);
+        pdu[SAMPLES_OFFSET + 1] = (byte) count;
+        for (int ii = 0; ii < count; ii++) {
+            pdu[DATA_OFFSET + ii * 2] = (byte) (samples[ii] >> 8);
+            pdu[DATA_OFFSET + ii * 2 + 1] = (byte) samples[ii];
+        }
+        return pdu;
+    }
+
+    /**
+     * Headless benchmark: mix N synthetic talkers into a null sink as fast as possible and report the cost.
+     *
+     * @param args command line args
+     */
+    public static void main(String[] args) {
+        Options opts = new Options();
+        opts.addOption("streams", true, "Comma separated list of concurrent talker counts. [Default: 1,2,4,8,16,32]");
+        opts.addOption("frames", true, "Frames to mix per step. [Default: 10000]");
+        opts.addOption("help", "Print this message.");
+
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine line = parser.parse(opts, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("audio-mixer", opts, true);
+                return;
+            }
+            int frames = Integer.parseInt(line.getOptionValue("frames", "10000"));
+            System.out.println(String.format("%8s %14s %14s %12s", "streams", "us/frame", "us/stream", "x realtime"));
+            for (String n : line.getOptionValue("streams", "1,2,4,8,16,32").split(",")) {
+                int streams = Integer.parseInt(n.trim());
+                try (AudioMixer mixer = new AudioMixer(new NullSink())) {
+                    //one 20ms PDU per talker per two frames keeps every talker playing
+                    int count = SAMPLE_RATE / 50;
+                    short[] tone = new short[count];
+                    for (int ii = 0; ii < count; ii++) {
+                        tone[ii] = (short) (8000 * Math.sin(2 * Math.PI * 440 * ii / SAMPLE_RATE));
+                    }
+                    byte[][] pdus = new byte[streams][];
+                    for (int s = 0; s < streams; s++) {
+                        pdus[s] = signalPdu(s + 1, tone, count);
+                    }
+
+                    long total = 0;
+                    for (int f = -frames / 10; f < frames; f++) {
+                        if ((f & 1) == 0) {
+                            for (byte[] pdu : pdus) {
+                                mixer.add(pdu, pdu.length);
+                            }
+                        }
+                        long start = System.nanoTime();
+                        mixer.mixFrame();
+                        if (f >= 0) {
+                            total += System.nanoTime() - start;
+                        }
+                    }
+                    double perFrame = total / 1000.0 / frames;
+                    System.out.println(String.format("%8d %14.2f %14.3f %12.1f", streams, perFrame, perFrame / streams,
+                            mixer.frameNanos / 1000.0 / perFrame));
+                }
+            }
+        } catch (ParseException | IOException ex) {
+            System.out.println(ex.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("audio-mixer", opts, true);
+        }
+    }
+}
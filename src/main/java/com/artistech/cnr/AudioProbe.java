@@ -0,0 +1,465 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.MappedRing;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+
+/**
+ * Mouth-to-ear probe.  Sends a radio's audio as signal PDUs, silent except for a tone burst every period, into one
+ * end of a bridge path and listens for it at the other: the onset of each burst is found with a Goertzel filter on
+ * the decoded audio, giving the one-way latency of the burst, and the audio of each PDU inside a burst is compared
+ * with the tone to give its signal-to-noise ratio.  Audio lost on the way is counted in samples at the sent rate, so
+ * PDUs reduced to a lower rate along the way don't count as lost.
+ *
+ * Both ends run in this process so they share a clock.  By default the path is an in-process bridge server with a
+ * CNR-side endpoint sending and an XCN-side endpoint receiving through TcpServer.receive and the Rebroadcaster, whose
+ * only transport is a shared-memory ring the probe reads.  Alternatively the probe multicasts into a running client
+ * and listens on a group, or on a client's shared-memory ring, at the other end.
+ *
+ * Latencies longer than the burst period can't be told apart from the next burst.
+ */
+public class AudioProbe {
+
+    private static final Logger LOGGER = Logger.getLogger(AudioProbe.class.getName());
+
+    public static final int DEFAULT_TONE_HZ = 1000;
+    public static final int DEFAULT_BURST_MS = 100;
+    public static final int DEFAULT_PERIOD_MS = 500;
+    public static final int FRAME_MS = 20;
+    private static final short AMPLITUDE = 16384;
+    //a block is judged in the burst when its tone power is within 10dB of the tone's
+    private static final double DETECT_FRACTION = 0.1;
+    private static final double BLOCK_SECONDS = 0.0015;
+    //site 99, application 99, entity 99, radio 1
+    private static final long PROBE_RADIO = 99L << 48 | 99L << 32 | 99L << 16 | 1;
+
+    /**
+     * Where the probe's PDUs go.
+     */
+    private interface Target {
+        void send(byte[] pdu) throws IOException;
+    }
+
+    /**
+     * Finds the bursts in the received audio and keeps the statistics.  Used by one thread.
+     */
+    private static class Detector {
+        private final double tone;
+        private final int sentRate;
+        private final long periodNanos;
+        private final double threshold;
+        private final ConcurrentLinkedQueue<Long> sent;
+        private final short[] pcm = new short[TcpClient.BUFFER_SIZE];
+        private final double[] x = new double[TcpClient.BUFFER_SIZE];
+        private final List<Long> latencies = new ArrayList<>();
+        private final List<Double> snrs = new ArrayList<>();
+        private boolean inBurst = false;
+        private double samples = 0;
+        private int pdus = 0;
+        private int missed = 0;
+
+        Detector(double tone, int sentRate, long periodNanos, ConcurrentLinkedQueue<Long> sent) {
+            this.tone = tone;
+            this.sentRate = sentRate;
+            this.periodNanos = periodNanos;
+            this.sent = sent;
+            double a = AMPLITUDE / 32768.0;
+            this.threshold = a * a / 2 * DETECT_FRACTION;
+        }
+
+        /**
+         * Look at a received PDU.
+         *
+         * @param pdu buffer holding the PDU
+         * @param length length of the PDU
+         * @param arrival System.nanoTime when it was received
+         */
+        void received(byte[] pdu, int length, long arrival) {
+            if (!RadioTable.isRadio(pdu) || RadioTable.radioId(pdu) != PROBE_RADIO) {
+                return;
+            }
+            long rate = AudioMixer.sampleRate(pdu);
+            int count = AudioMixer.decode(pdu, length, pcm);
+            if (count <= 0 || rate <= 0) {
+                return;
+            }
+            pdus++;
+            samples += (double) count * sentRate / rate;
+            for (int ii = 0; ii < count; ii++) {
+                x[ii] = pcm[ii] / 32768.0;
+            }
+
+            int block = Math.max(8, (int) (rate * BLOCK_SECONDS));
+            boolean whole = count >= block;
+            for (int off = 0; off + block <= count; off += block) {
+                boolean on = power(x, off, block, tone, rate) >= threshold;
+                whole &= on;
+                if (on && !inBurst) {
+                    onset(arrival + (long) (off * 1e9 / rate));
+                }
+                inBurst = on;
+            }
+
+            //the tone against everything else in a PDU that is all burst
+            if (whole) {
+                double total = 0;
+                for (int ii = 0; ii < count; ii++) {
+                    total += x[ii] * x[ii];
+                }
+                total /= count;
+                double signal = power(x, 0, count, tone, rate);
+                double noise = Math.max(total - signal, 1e-12);
+                snrs.add(10 * Math.log10(signal / noise));
+            }
+        }
+
+        /**
+         * Match a detected onset with the burst that was sent last before it.
+         */
+        private void onset(long heard) {
+            Long start;
+            while ((start = sent.peek()) != null && heard - start >= periodNanos) {
+                sent.poll();
+                missed++;
+            }
+            if (start != null && start <= heard) {
+                sent.poll();
+                latencies.add(heard - start);
+            }
+        }
+
+        /**
+         * Count the bursts not heard by the end as missed.
+         */
+        void finish() {
+            while (sent.poll() != null) {
+                missed++;
+            }
+        }
+    }
+
+    /**
+     * Power of one frequency in a block of samples, by the Goertzel recurrence: A*A/2 for a tone of amplitude A.
+     *
+     * @param x samples, full scale 1
+     * @param off first sample
+     * @param n number of samples
+     * @param freq frequency in Hz
+     * @param rate sample rate
+     * @return power
+     */
+    static double power(double[] x, int off, int n, double freq, double rate) {
+        double w = 2 * Math.PI * freq / rate;
+        double coeff = 2 * Math.cos(w);
+        double s1 = 0;
+        double s2 = 0;
+        for (int ii = 0; ii < n; ii++) {
+            double s0 = x[off + ii] + coeff * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+        double mag = s1 * s1 + s2 * s2 - coeff * s1 * s2;
+        return 2 * mag / ((double) n * n);
+    }
+
+    /**
+     * Send the probe audio until halted, one PDU every FRAME_MS, each burst starting on a PDU.
+     *
+     * @param target where to send
+     * @param rate sample rate
+     * @param tone tone frequency
+     * @param burstMillis length of each burst
+     * @param periodMillis time from one burst to the next
+     * @param sent receives the time each burst was sent
+     * @param halted stops sending
+     * @return samples sent
+     */
+    private static long inject(Target target, int rate, double tone, int burstMillis, int periodMillis,
+            ConcurrentLinkedQueue<Long> sent, AtomicBoolean halted) {
+        int count = rate * FRAME_MS / 1000;
+        int framesPerPeriod = Math.max(1, periodMillis / FRAME_MS);
+        int burstFrames = Math.max(1, burstMillis / FRAME_MS);
+        short[] audio = new short[count];
+        short[] silence = new short[count];
+        long frameNanos = FRAME_MS * 1_000_000L;
+        long next = System.nanoTime();
+        long phase = 0;
+        long total = 0;
+        for (long frame = 0; !halted.get(); frame++) {
+            int inPeriod = (int) (frame % framesPerPeriod);
+            byte[] pdu;
+            if (inPeriod < burstFrames) {
+                for (int ii = 0; ii < count; ii++) {
+                    audio[ii] = (short) (AMPLITUDE * Math.sin(2 * Math.PI * tone * (phase + ii) / rate));
+                }
+                phase += count;
+                pdu = AudioMixer.signalPdu(PROBE_RADIO, rate, audio, count);
+            } else {
+                phase = 0;
+                pdu = AudioMixer.signalPdu(PROBE_RADIO, rate, silence, count);
+            }
+            long now = System.nanoTime();
+            if (inPeriod == 0) {
+                sent.add(now);
+            }
+            try {
+                target.send(pdu);
+                total += count;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Probe send failed: {0}", ex.getMessage());
+            }
+            next += frameNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        return total;
+    }
+
+    private static InetSocketAddress address(String value, int port) throws IOException {
+        int colon = value.lastIndexOf(':');
+        if (colon > 0) {
+            return new InetSocketAddress(InetAddress.getByName(value.substring(0, colon)), Integer.parseInt(value.substring(colon + 1)));
+        }
+        return new InetSocketAddress(InetAddress.getByName(value), port);
+    }
+
+    /**
+     * Get the percentile from a sorted array.
+     *
+     * @param sorted sorted samples
+     * @param p percentile in [0, 1]
+     * @return value at the percentile, 0 if there are no samples
+     */
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))];
+    }
+
+    /**
+     * Entry point for the probe.
+     *
+     * @param args command line args
+     * @throws Exception error setting up sockets or threads
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tF %1$tT] [%4$-7s] %5$s %n");
+
+        Options opts = new Options();
+        opts.addOption("path", true, "[bridge | multicast] path measured: an in-process bridge server, or running clients. [Default: bridge]");
+        opts.addOption("inject", true, "GROUP[:PORT] to multicast the probe audio to. [Default: " + Rebroadcaster.MCAST_GRP + ":" + Rebroadcaster.MCAST_PORT + "]");
+        opts.addOption("listen", true, "GROUP[:PORT] to hear the probe audio on.");
+        opts.addOption("shm", true, "Hear the probe audio on a client's shared-memory ring instead of a group.");
+        opts.addOption("tone", true, "Tone frequency in Hz. [Default: " + DEFAULT_TONE_HZ + "]");
+        opts.addOption("burst", true, "Burst length in ms. [Default: " + DEFAULT_BURST_MS + "]");
+        opts.addOption("period", true, "Time between bursts in ms. [Default: " + DEFAULT_PERIOD_MS + "]");
+        opts.addOption("rate", true, "Sample rate. [Default: " + AudioMixer.SAMPLE_RATE + "]");
+        opts.addOption("duration", true, "Seconds to measure. [Default: 10]");
+        opts.addOption("log", true, "Log output level. [Default: " + TcpClient.getLevel() + "]");
+        opts.addOption("help", "Print this message.");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine line;
+        try {
+            line = parser.parse(opts, args);
+        } catch (ParseException pe) {
+            System.out.println(pe.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("audio-probe", opts, true);
+            return;
+        }
+        if (line.hasOption("help")) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("audio-probe", opts, true);
+            return;
+        }
+        if (line.hasOption("log")) {
+            Level level = Level.parse(line.getOptionValue("log"));
+            TcpClient.setLevel(level);
+        }
+
+        double tone = Double.parseDouble(line.getOptionValue("tone", Integer.toString(DEFAULT_TONE_HZ)));
+        int burst = Integer.parseInt(line.getOptionValue("burst", Integer.toString(DEFAULT_BURST_MS)));
+        int period = Integer.parseInt(line.getOptionValue("period", Integer.toString(DEFAULT_PERIOD_MS)));
+        int rate = Integer.parseInt(line.getOptionValue("rate", Integer.toString(AudioMixer.SAMPLE_RATE)));
+        int seconds = Integer.parseInt(line.getOptionValue("duration", "10"));
+        boolean bridgePath = !"multicast".equals(line.getOptionValue("path", "bridge"));
+
+        final AtomicBoolean halted = new AtomicBoolean(false);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final List<AutoCloseable> resources = new ArrayList<>();
+        String shm = line.getOptionValue("shm");
+        Target target;
+        if (bridgePath) {
+            //cnr side sends, xcn side receives through the rebroadcaster into a ring
+            BridgeDemux bd = new BridgeDemux();
+            bd.addPair(new BridgePair("", "127.31.0.2"));
+            final ServerSocket ss = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+            resources.add(ss);
+            final List<Bridge> bridges = Collections.synchronizedList(new ArrayList<>());
+            Thread server = new Thread(() -> {
+                try {
+                    BridgeServer.NonPairedServer(bd, bridges, ss);
+                } catch (IOException ex) {
+                    //server socket closed
+                }
+            }, "probe-bridge");
+            server.setDaemon(true);
+            server.start();
+
+            File ring = File.createTempFile("audio-probe", ".ring");
+            ring.deleteOnExit();
+            shm = ring.getPath();
+            Rebroadcaster.setShm(MappedRing.create(ring, MappedRing.DEFAULT_CAPACITY, "probe.shm"));
+            Rebroadcaster.INSTANCE.resetSocket(Rebroadcaster.CastingEnum.Shm, null);
+
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+            Socket cnr = new Socket();
+            cnr.setTcpNoDelay(true);
+            cnr.bind(new InetSocketAddress(InetAddress.getByName("127.31.0.1"), 0));
+            cnr.connect(addr);
+            resources.add(cnr);
+            final Socket xcn = new Socket();
+            xcn.setTcpNoDelay(true);
+            xcn.bind(new InetSocketAddress(InetAddress.getByName("127.31.0.2"), 0));
+            xcn.connect(addr);
+            resources.add(xcn);
+            Thread receiver = new Thread(() -> {
+                try {
+                    TcpServer.receive(xcn, Rebroadcaster.INSTANCE, null);
+                } catch (IOException ex) {
+                    //socket closed
+                }
+            }, "probe-receive");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            final FrameWriter writer = new FrameWriter(cnr.getOutputStream());
+            target = writer::write;
+        } else {
+            final DatagramSocket ds = new DatagramSocket();
+            resources.add(ds);
+            final InetSocketAddress inject = address(line.getOptionValue("inject", Rebroadcaster.MCAST_GRP), Rebroadcaster.MCAST_PORT);
+            target = pdu -> ds.send(new DatagramPacket(pdu, pdu.length, inject));
+        }
+
+        //the listening side
+        final MappedRing.Reader reader;
+        final MulticastSocket ms;
+        if (shm != null) {
+            reader = MappedRing.open(new File(shm)).reader("probe.read");
+            ms = null;
+        } else if (line.hasOption("listen")) {
+            InetSocketAddress listen = address(line.getOptionValue("listen"), Rebroadcaster.MCAST_PORT);
+            ms = new MulticastSocket(listen.getPort());
+            ms.setInterface(InetAddress.getLoopbackAddress());
+            ms.joinGroup(listen.getAddress());
+            ms.setSoTimeout(100);
+            resources.add(ms);
+            reader = null;
+        } else {
+            System.out.println("-listen or -shm is needed with -path multicast");
+            return;
+        }
+
+        final ConcurrentLinkedQueue<Long> sent = new ConcurrentLinkedQueue<>();
+        final Detector detector = new Detector(tone, rate, period * 1_000_000L, sent);
+        Thread listener = new Thread(() -> {
+            byte[] buf = new byte[TcpClient.BUFFER_SIZE];
+            DatagramPacket dp = new DatagramPacket(buf, buf.length);
+            while (!halted.get()) {
+                int length;
+                if (reader != null) {
+                    length = reader.poll(buf);
+                    if (length < 0) {
+                        LockSupport.parkNanos(50_000);
+                        continue;
+                    }
+                } else {
+                    try {
+                        dp.setLength(buf.length);
+                        ms.receive(dp);
+                        length = dp.getLength();
+                    } catch (IOException ex) {
+                        continue;
+                    }
+                }
+                detector.received(buf, length, System.nanoTime());
+            }
+        }, "probe-listen");
+        listener.start();
+
+        final long[] samplesSent = new long[1];
+        final int sampleRate = rate;
+        Thread injector = new Thread(() -> {
+            samplesSent[0] = inject(target, sampleRate, tone, burst, period, sent, stopped);
+        }, "probe-inject");
+        injector.start();
+
+        Thread.sleep(seconds * 1000L);
+        //stop sending, then give the last of the audio time to arrive
+        stopped.set(true);
+        injector.join();
+        Thread.sleep(Math.max(period, 500));
+        halted.set(true);
+        listener.join(1000);
+        detector.finish();
+        Rebroadcaster.INSTANCE.halt();
+        for (AutoCloseable r : resources) {
+            try {
+                r.close();
+            } catch (Exception ex) {
+            }
+        }
+
+        long[] lat = new long[detector.latencies.size()];
+        for (int ii = 0; ii < lat.length; ii++) {
+            lat[ii] = detector.latencies.get(ii);
+        }
+        Arrays.sort(lat);
+        double snrAvg = detector.snrs.stream().mapToDouble(Double::doubleValue).average().orElse(Double.NaN);
+        double snrMin = detector.snrs.stream().mapToDouble(Double::doubleValue).min().orElse(Double.NaN);
+        double lost = samplesSent[0] > 0 ? 100.0 * Math.max(0, samplesSent[0] - detector.samples) / samplesSent[0] : 0;
+        System.out.printf("%8s %8s %8s %10s %10s %10s %10s %12s %10s %10s%n",
+                "bursts", "heard", "missed", "p50 ms", "p90 ms", "p99 ms", "max ms", "samples lost", "SNR dB", "min SNR");
+        System.out.printf("%8d %8d %8d %10.3f %10.3f %10.3f %10.3f %11.2f%% %10.1f %10.1f%n",
+                lat.length + detector.missed, lat.length, detector.missed,
+                percentile(lat, 0.50) / 1e6,
+                percentile(lat, 0.90) / 1e6,
+                percentile(lat, 0.99) / 1e6,
+                lat.length > 0 ? lat[lat.length - 1] / 1e6 : 0,
+                lost, snrAvg, snrMin);
+        System.exit(0);
+    }
+}
@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +19,8 @@ public class Bridge implements Runnable {
 
     private static final Logger LOGGER = Logger.getLogger(Bridge.class.getName());
 
+    private static volatile long timeoutMillis = 0;
+
     private final Thread t1;
     private final Thread t2;
     private final Socket sock1;
@@ -59,15 +63,35 @@ public class Bridge implements Runnable {
 
                 while(!Rebroadcaster.INSTANCE.isHalted()) {
                     int len = is.read(data, 0, data.length);
+                    //end of stream, the other side has closed.
+                    if(len < 0) {
+                        break;
+                    }
                     os.write(data, 0, len);
                     os.flush();
                 }
+            } catch (SocketTimeoutException ex) {
+                //heartbeats stopped arriving; the other side is gone.
+                LOGGER.log(Level.WARNING, "Bridge side silent: {0}", ex.getMessage());
+            } catch (SocketException ex) {
+                //the socket was closed by halt() or by the other direction.
+                LOGGER.log(Level.FINE, ex.getMessage());
             } catch (IOException ex) {
                 LOGGER.log(Level.SEVERE, null, ex);
             }
         }
     }
 
+    /**
+     * Set how long a side of bridges made after may go silent before the bridge is closed.  Only set this when every
+     * client heartbeats; a client that only listens is otherwise dropped.
+     *
+     * @param millis silence allowed, 0 to never close a bridge for silence (the default)
+     */
+    public static void setTimeout(long millis) {
+        timeoutMillis = Math.max(0, millis);
+    }
+
     /**
      * Constructor.  Initializes 2 threads, one thread for each direction for socket comms.
      *
@@ -77,6 +101,17 @@ public class Bridge implements Runnable {
     public Bridge(Socket sock1, Socket sock2) {
         this.sock1 = sock1;
         this.sock2 = sock2;
+
+        //when the clients are known to heartbeat each other through the bridge, a side that goes quiet is dead.
+        long timeout = timeoutMillis;
+        if (timeout > 0) {
+            try {
+                sock1.setSoTimeout((int) timeout);
+                sock2.setSoTimeout((int) timeout);
+            } catch (SocketException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
         t1 = new Thread(() -> {
             try {
                 //the t1 thread will create a direction from sock1 to sock2
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.HashRing;
+import com.artistech.utils.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the pairs of a paired BridgeServer between several instances.
+ *
+ * Each pair is owned by one instance, chosen by consistent hashing of the pair over the instances that are up.  A
+ * client that connects to any instance is sent a REDIRECT to the owner of its pair and reconnects there, so clients
+ * only need to know one instance.  When an instance leaves or rejoins only the pairs it loses or gains move; the
+ * bridges of those pairs are closed by their old owner and their clients are redirected when they reconnect.
+ *
+ * Instances are HOST:PORT, each listening on its own host address (several instances on one machine use different
+ * 127.x.y.z addresses).  Each instance also listens for probes on PORT+{@value #PROBE_PORT_OFFSET} of its host, and
+ * probes the others there every interval, so a probe is never mistaken for a client and a client is never mistaken
+ * for a probe, whatever host it connects from.  An instance joins the ring once a probe reaches it, and leaves after
+ * {@value #DOWN_PROBES} failed probes in a row.
+ */
+public class BridgeCluster {
+
+    private static final Logger LOGGER = Logger.getLogger(BridgeCluster.class.getName());
+
+    public static final long DEFAULT_PROBE_MS = 500;
+    public static final int DOWN_PROBES = 2;
+    public static final int PROBE_PORT_OFFSET = 1;
+    private static final int PROBE_TIMEOUT_MS = 500;
+    private static final int REDIRECT_DRAIN_MS = 1000;
+
+    /**
+     * Told when pair ownership may have changed.
+     */
+    public interface Listener {
+        /**
+         * Instances joined or left; close bridges of pairs that are no longer owned here.
+         */
+        void rebalanced();
+    }
+
+    private final String self;
+    private final String selfHost;
+    private final Map<String, Integer> failures = new LinkedHashMap<>();
+    private final Map<String, String> hosts = new HashMap<>();
+    private final HashRing<String> ring = new HashRing<>();
+    private final long probeMillis;
+    private Listener listener = null;
+    private final AtomicLong redirects = Metrics.counter("cluster.redirects");
+    private final AtomicLong changes = Metrics.counter("cluster.changes");
+
+    /**
+     * Constructor.  Other instances join once a probe reaches them.
+     *
+     * @param self this instance, HOST:PORT
+     * @param members all instances, HOST:PORT,...; this instance is added if missing
+     * @param probeMillis time between probes
+     * @throws IllegalArgumentException if an instance is not HOST:PORT
+     */
+    public BridgeCluster(String self, String members, long probeMillis) {
+        this.self = self.trim();
+        this.selfHost = host(this.self);
+        this.probeMillis = probeMillis;
+        ring.add(this.self);
+        hosts.put(address(selfHost), this.self);
+        for (String m : members.split(",")) {
+            m = m.trim();
+            if (m.isEmpty() || m.equals(this.self)) {
+                continue;
+            }
+            String ip = address(host(m));
+            if (hosts.containsKey(ip)) {
+                throw new IllegalArgumentException("Cluster instances need their own host addresses: " + m);
+            }
+            hosts.put(ip, m);
+            failures.put(m, DOWN_PROBES);
+        }
+        Metrics.gauge("cluster.members", () -> ring.getMembers().size());
+    }
+
+    private static String host(String member) {
+        int colon = member.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid cluster instance: " + member);
+        }
+        Integer.parseInt(member.substring(colon + 1));
+        return member.substring(0, colon);
+    }
+
+    private static String address(String host) {
+        try {
+            return InetAddress.getByName(host).getHostAddress();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unknown cluster host: " + host);
+        }
+    }
+
+    /**
+     * Get the address this instance listens and probes on.
+     *
+     * @return host of this instance
+     */
+    public String getHost() {
+        return selfHost;
+    }
+
+    /**
+     * Get the port this instance listens on.
+     *
+     * @return port of this instance
+     */
+    public int getPort() {
+        return Integer.parseInt(self.substring(self.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Set who is told about rebalancing.
+     *
+     * @param value the listener
+     */
+    public void setListener(Listener value) {
+        listener = value;
+    }
+
+    /**
+     * Get the instance that owns a pair.
+     *
+     * @param pair the pair
+     * @return owner, HOST:PORT
+     */
+    public String owner(BridgePair pair) {
+        return ring.owner(pair.getLeft() + ":" + pair.getRight());
+    }
+
+    /**
+     * Is the pair owned by this instance?
+     *
+     * @param pair the pair
+     * @return true if this instance bridges it
+     */
+    public boolean isLocal(BridgePair pair) {
+        return self.equals(owner(pair));
+    }
+
+    /**
+     * Send a client to the owner of its pair and close the connection.  The connection is drained first so the
+     * close doesn't reset it before the client reads the REDIRECT.
+     *
+     * @param client the client
+     * @param owner owner of the client's pair
+     */
+    public void redirect(final Socket client, String owner) {
+        redirects.incrementAndGet();
+        LOGGER.log(Level.FINE, "Redirecting {0} to {1}", new Object[]{client.getInetAddress().getHostAddress(), owner});
+        final byte[] payload = owner.getBytes(StandardCharsets.UTF_8);
+        Thread t = new Thread(() -> {
+            try {
+                new FrameWriter(client.getOutputStream()).writeControl(Frames.REDIRECT, payload);
+                client.shutdownOutput();
+                client.setSoTimeout(REDIRECT_DRAIN_MS);
+                InputStream is = client.getInputStream();
+                byte[] buf = new byte[TcpClient.BUFFER_SIZE];
+                while (is.read(buf) >= 0) {
+                    //discard until the client closes
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINEST, "Redirect: {0}", ex.getMessage());
+            }
+            try {
+                client.close();
+            } catch (IOException ex) {
+            }
+        }, "redirect");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Start answering probes and probing the other instances.
+     *
+     * @throws IOException error listening for probes
+     */
+    public void start() throws IOException {
+        final ServerSocket probes = new ServerSocket();
+        probes.bind(new InetSocketAddress(selfHost, getPort() + PROBE_PORT_OFFSET));
+        Thread answer = new Thread(() -> {
+            //reaching the port is the answer; nothing is exchanged
+            while (!Rebroadcaster.INSTANCE.isHalted()) {
+                try (Socket s = probes.accept()) {
+                    LOGGER.log(Level.FINEST, "Probed by {0}", s.getInetAddress().getHostAddress());
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Probe listener: {0}", ex.getMessage());
+                    return;
+                }
+            }
+        }, "cluster-answer");
+        answer.setDaemon(true);
+        answer.start();
+
+        Thread t = new Thread(() -> {
+            while (!Rebroadcaster.INSTANCE.isHalted()) {
+                probe();
+                try {
+                    Thread.sleep(probeMillis);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "cluster-probe");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Probe every other instance once and update the ring.
+     */
+    void probe() {
+        boolean changed = false;
+        for (Map.Entry<String, Integer> e : failures.entrySet()) {
+            String m = e.getKey();
+            int colon = m.lastIndexOf(':');
+            boolean up;
+            try (Socket s = new Socket()) {
+                s.bind(new InetSocketAddress(selfHost, 0));
+                s.connect(new InetSocketAddress(m.substring(0, colon), Integer.parseInt(m.substring(colon + 1)) + PROBE_PORT_OFFSET), PROBE_TIMEOUT_MS);
+                up = true;
+            } catch (IOException ex) {
+                up = false;
+            }
+            if (up) {
+                e.setValue(0);
+                if (ring.add(m)) {
+                    LOGGER.log(Level.INFO, "Cluster instance up: {0}", m);
+                    changed = true;
+                }
+            } else {
+                e.setValue(e.getValue() + 1);
+                if (e.getValue() >= DOWN_PROBES && ring.remove(m)) {
+                    LOGGER.log(Level.INFO, "Cluster instance down: {0}", m);
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            changes.incrementAndGet();
+            Listener l = listener;
+            if (l != null) {
+                l.rebalanced();
+            }
+        }
+    }
+
+    /**
+     * Get the instances that are up.
+     *
+     * @return HOST:PORT of each
+     */
+    public List<String> getMembers() {
+        return new ArrayList<>(ring.getMembers());
+    }
+
+    @Override
+    public String toString() {
+        return self + " of " + ring;
+    }
+}
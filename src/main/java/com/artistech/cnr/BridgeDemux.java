@@ -3,18 +3,49 @@
  */
 package com.artistech.cnr;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Maintains collection of bound IP addresses.
+ *
+ * Pairs are indexed by both the CNR (left) and EMANE (right) IP so that a connecting client can be matched without
+ * scanning.  Lookups are lock-free; changes (adding, removing, claiming a first-come, first-serve slot) are
+ * serialized on this instance.  Pairs are never mutated once they are in the registry, claiming a slot replaces the
+ * pair with a new instance.
  */
 public class BridgeDemux {
 
+    private static final Logger LOGGER = Logger.getLogger(BridgeDemux.class.getName());
+
     /**
-     * IP addresses kept in a set to remove duplicates
+     * Pairs keyed by EMANE IP, an EMANE IP is only ever in one pair.
      */
-    private final Set<BridgePair> pairs = new HashSet<>();
+    private final Map<String, BridgePair> byEmane = new ConcurrentHashMap<>();
+
+    /**
+     * Pairs keyed by CNR IP, slots that are not yet claimed are not present.
+     */
+    private final Map<String, BridgePair> byCnr = new ConcurrentHashMap<>();
+
+    /**
+     * EMANE IPs of slots with no CNR IP yet, in the order they were added.
+     */
+    private final Set<String> free = new LinkedHashSet<>();
 
     /**
      * Public constructor.
@@ -24,10 +55,10 @@ public class BridgeDemux {
     /**
      * Get the pairs.
      *
-     * @return all pairs
+     * @return snapshot of all pairs
      */
     public Set<BridgePair> getPairs() {
-        return pairs;
+        return Collections.unmodifiableSet(new HashSet<>(byEmane.values()));
     }
 
     /**
@@ -35,17 +66,144 @@ public class BridgeDemux {
      *
      * @param value all pairs
      */
-    public void setPairs(Set<BridgePair> value) {
-        pairs.clear();
-        pairs.addAll(value);
+    public synchronized void setPairs(Set<BridgePair> value) {
+        byEmane.clear();
+        byCnr.clear();
+        free.clear();
+        for (BridgePair pair : value) {
+            addPair(pair);
+        }
     }
 
     /**
-     * Add a pair.
+     * Add a pair.  Replaces any pair with the same EMANE IP.
      *
      * @param pair pair to add
      */
-    public void addPair(BridgePair pair) {
-        pairs.add(pair);
+    public synchronized void addPair(BridgePair pair) {
+        BridgePair old = byEmane.put(pair.getRight(), pair);
+        if (old != null && !old.getLeft().isEmpty()) {
+            byCnr.remove(old.getLeft(), old);
+        }
+        if (pair.getLeft().isEmpty()) {
+            free.add(pair.getRight());
+        } else {
+            free.remove(pair.getRight());
+            byCnr.put(pair.getLeft(), pair);
+        }
+    }
+
+    /**
+     * Remove a pair.
+     *
+     * @param pair pair to remove (matched by EMANE IP)
+     * @return the removed pair, null if not present
+     */
+    public synchronized BridgePair removePair(BridgePair pair) {
+        BridgePair old = byEmane.remove(pair.getRight());
+        if (old != null) {
+            free.remove(old.getRight());
+            if (!old.getLeft().isEmpty()) {
+                byCnr.remove(old.getLeft(), old);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Find the pair that the IP belongs to.
+     *
+     * @param ip CNR or EMANE IP
+     * @return the pair, or null if the IP is not known
+     */
+    public BridgePair find(String ip) {
+        BridgePair pair = byCnr.get(ip);
+        return pair != null ? pair : byEmane.get(ip);
+    }
+
+    /**
+     * Assign a previously unknown CNR IP to the first available EMANE slot.
+     * Once assigned, the IP will always be assigned to this slot.
+     *
+     * @param ip CNR IP
+     * @return the claimed pair, or null if there are no available slots
+     */
+    public synchronized BridgePair claim(String ip) {
+        BridgePair existing = find(ip);
+        if (existing != null) {
+            return existing;
+        }
+        Iterator<String> it = free.iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        String emane = it.next();
+        it.remove();
+        BridgePair pair = new BridgePair(ip, emane);
+        byEmane.put(emane, pair);
+        byCnr.put(ip, pair);
+        return pair;
+    }
+
+    /**
+     * Apply a new configuration.  Pairs not in the configuration are removed, new ones are added.  A first-come,
+     * first-serve slot that has already been claimed keeps its CNR IP.
+     *
+     * @param value new configuration
+     * @return pairs that were removed
+     */
+    public synchronized List<BridgePair> update(Set<BridgePair> value) {
+        Map<String, BridgePair> wanted = new HashMap<>();
+        for (BridgePair pair : value) {
+            wanted.put(pair.getRight(), pair);
+        }
+
+        List<BridgePair> removed = new ArrayList<>();
+        for (BridgePair pair : new ArrayList<>(byEmane.values())) {
+            if (!wanted.containsKey(pair.getRight())) {
+                removed.add(removePair(pair));
+                LOGGER.log(Level.INFO, "Removed Pair: {0} to {1}", new Object[]{pair.getLeft(), pair.getRight()});
+            }
+        }
+
+        for (BridgePair pair : wanted.values()) {
+            BridgePair current = byEmane.get(pair.getRight());
+            if (current == null) {
+                addPair(pair);
+                LOGGER.log(Level.INFO, "Added Pair: {0} to {1}", new Object[]{pair.getLeft(), pair.getRight()});
+            } else if (!current.getLeft().equals(pair.getLeft()) && !pair.getLeft().isEmpty()) {
+                addPair(pair);
+                removed.add(current);
+                LOGGER.log(Level.INFO, "Changed Pair: {0} to {1}", new Object[]{pair.getLeft(), pair.getRight()});
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Read pairs from a file.  One pair per line as CNR_IP:EMANE_IP, or just EMANE_IP for a first-come,
+     * first-serve slot.  Blank lines and lines starting with '#' are ignored.
+     *
+     * @param path file to read
+     * @return pairs in the file
+     * @throws IOException error reading the file
+     */
+    public static Set<BridgePair> readPairs(Path path) throws IOException {
+        Set<BridgePair> pairs = new HashSet<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] sp = line.split(":");
+            if (sp.length == 2) {
+                pairs.add(new BridgePair(sp[0].trim(), sp[1].trim()));
+            } else if (sp.length == 1) {
+                pairs.add(new BridgePair("", sp[0]));
+            } else {
+                LOGGER.log(Level.WARNING, "Invalid Pair: {0}", line);
+            }
+        }
+        return pairs;
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+import com.artistech.utils.PriorityScheduler;
+import com.artistech.utils.Trace;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Packet-aware alternative to pairing: every participant keeps one connection to the hub, and each frame it sends is
+ * decoded once and queued, as the same byte array, to every destination configured for it.
+ *
+ * Routes are directed (SRC to DST,...) or groups, where every member sends to every other member.  Frames to a
+ * participant that is not connected are dropped.
+ *
+ * The hub ends each client's resume session: it answers RESUME without a count so clients release any held frames,
+ * but nothing is replayed across a reconnect.
+ */
+public class BridgeHub {
+
+    private static final Logger LOGGER = Logger.getLogger(BridgeHub.class.getName());
+
+    /**
+     * A connected participant and its writer.
+     */
+    private class Participant implements Runnable {
+        private final String ip;
+        private final Socket sock;
+        private final FrameWriter writer;
+        private final PriorityScheduler<byte[]> data;
+
+        Participant(String ip, Socket sock) throws IOException {
+            this.ip = ip;
+            this.sock = sock;
+            this.writer = new FrameWriter(sock.getOutputStream());
+            this.data = classifier.newScheduler("hub." + ip, PduClassifier.DEFAULT_CAPACITY);
+        }
+
+        /**
+         * Write queued frames to the participant.
+         */
+        @Override
+        public void run() {
+            try {
+                byte[] msg;
+                while ((msg = data.take()) != null) {
+                    writer.write(msg);
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Participant {0} closed: {1}", new Object[]{ip, ex.getMessage()});
+            }
+            halt();
+        }
+
+        /**
+         * Read frames from the participant and route them.
+         */
+        void receive() {
+            String[] destinations = routes.getOrDefault(ip, new String[0]);
+            Heartbeat heartbeat = new Heartbeat("heartbeat.hub." + ip, writer, (code, payload) -> {
+                if (code == Frames.RESUME) {
+                    //no replay through the hub; a count of -1 releases anything the client is holding.
+                    writer.writeControl(Frames.RESUME, epoch, 0, -1);
+                }
+            }, this::halt).start();
+            try {
+                FrameReader reader = new FrameReader(sock.getInputStream(), heartbeat);
+                while (!data.isHalted()) {
+                    byte[] msg = reader.read();
+                    if (msg.length == 0) {
+                        continue;
+                    }
+                    received.incrementAndGet();
+                    int cls = classifier.classify(msg);
+                    int sent = 0;
+                    for (String destination : destinations) {
+                        Participant p = participants.get(destination);
+                        if (p != null && p.data.offer(cls, msg)) {
+                            sent++;
+                        }
+                    }
+                    routed.addAndGet(sent);
+                    if (sent == 0) {
+                        unrouted.incrementAndGet();
+                    }
+                    Trace.event(Trace.Kind.FORWARD, msg.length > 2 ? 255 & msg[2] : -1, msg.length, sent);
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Participant {0} closed: {1}", new Object[]{ip, ex.getMessage()});
+            }
+            heartbeat.stop();
+            halt();
+        }
+
+        void halt() {
+            data.halt();
+            try {
+                sock.close();
+            } catch (IOException ex) {
+            }
+            if (participants.remove(ip, this)) {
+                data.unregister();
+                LOGGER.log(Level.FINE, "Participant disconnected: {0}", ip);
+            }
+        }
+    }
+
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final Map<String, String[]> routes;
+    private final Map<String, Participant> participants = new ConcurrentHashMap<>();
+    private final PduClassifier classifier;
+    private final AtomicLong received = Metrics.counter("hub.received");
+    private final AtomicLong routed = Metrics.counter("hub.routed");
+    private final AtomicLong unrouted = Metrics.counter("hub.unrouted");
+
+    /**
+     * Constructor.
+     *
+     * @param routes destinations of each participant's frames, by IP
+     * @param classifier priority classes of frames queued to participants
+     */
+    public BridgeHub(Map<String, ? extends Set<String>> routes, PduClassifier classifier) {
+        Map<String, String[]> r = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends Set<String>> e : routes.entrySet()) {
+            Set<String> destinations = new LinkedHashSet<>(e.getValue());
+            destinations.remove(e.getKey());
+            r.put(e.getKey(), destinations.toArray(new String[0]));
+        }
+        this.routes = Collections.unmodifiableMap(r);
+        this.classifier = classifier;
+    }
+
+    /**
+     * Add a directed route, SRC:DST[,DST...].
+     *
+     * @param routes routes being built
+     * @param value the route
+     * @throws IllegalArgumentException if the route can't be parsed
+     */
+    public static void addRoute(Map<String, Set<String>> routes, String value) {
+        String[] sp = value.split(":");
+        if (sp.length != 2) {
+            throw new IllegalArgumentException("Invalid route: " + value);
+        }
+        Set<String> destinations = routes.computeIfAbsent(sp[0].trim(), k -> new LinkedHashSet<>());
+        for (String ip : sp[1].split(",")) {
+            destinations.add(ip.trim());
+        }
+    }
+
+    /**
+     * Add a group, IP,IP[,IP...], where every member sends to every other.
+     *
+     * @param routes routes being built
+     * @param value the group
+     */
+    public static void addGroup(Map<String, Set<String>> routes, String value) {
+        List<String> members = new ArrayList<>();
+        for (String ip : value.split(",")) {
+            members.add(ip.trim());
+        }
+        for (String member : members) {
+            routes.computeIfAbsent(member, k -> new LinkedHashSet<>()).addAll(members);
+        }
+    }
+
+    /**
+     * Is the IP part of any route?
+     *
+     * @param ip the IP
+     * @return true if it sends or receives
+     */
+    private boolean isConfigured(String ip) {
+        if (routes.containsKey(ip)) {
+            return true;
+        }
+        for (String[] destinations : routes.values()) {
+            for (String destination : destinations) {
+                if (destination.equals(ip)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accept participants until the server socket is closed.
+     *
+     * @param ss server socket to accept participants on
+     * @throws IOException error on server
+     */
+    public void serve(ServerSocket ss) throws IOException {
+        while (!Rebroadcaster.INSTANCE.isHalted()) {
+            Socket client = ss.accept();
+            final String ip = client.getInetAddress().getHostAddress();
+            if (!isConfigured(ip)) {
+                LOGGER.log(Level.WARNING, "Not Configured: {0}", ip);
+                client.close();
+                continue;
+            }
+            LOGGER.log(Level.FINE, "Participant Connected: {0}", ip);
+
+            //a participant that reconnects replaces its old connection.
+            Participant p = new Participant(ip, client);
+            Participant old = participants.put(ip, p);
+            if (old != null) {
+                old.halt();
+            }
+
+            Thread writer = new Thread(p, "hub-writer-" + ip);
+            writer.setDaemon(true);
+            writer.start();
+            Thread reader = new Thread(p::receive, "hub-reader-" + ip);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Disconnect all participants.
+     */
+    public void halt() {
+        for (Participant p : new ArrayList<>(participants.values())) {
+            p.halt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String[]> e : routes.entrySet()) {
+            sb.append(' ').append(e.getKey()).append("->").append(String.join(",", e.getValue()));
+        }
+        return sb.toString().trim();
+    }
+}
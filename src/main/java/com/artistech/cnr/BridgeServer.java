@@ -4,12 +4,23 @@
 package com.artistech.cnr;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,12 +39,15 @@ public class BridgeServer {
 
     private static final Logger LOGGER = Logger.getLogger(BridgeServer.class.getName());
     private static final Map<String, Socket> SOCKETS;
+    private static final long RELOAD_SETTLE_MS = 250;
+    private static final Map<BridgePair, Bridge> LIVE = new ConcurrentHashMap<>();
+    private static BridgeCluster cluster = null;
 
     /**
      * Static Constructor.
      */
     static {
-        SOCKETS = new HashMap<>();
+        SOCKETS = new ConcurrentHashMap<>();
     }
 
     /**
@@ -51,13 +65,15 @@ public class BridgeServer {
      * @throws IOException error creating/reading sockets
      */
     public static void main(String[] args) throws IOException {
-        final List<Bridge> bridges = new ArrayList<>();
+        final List<Bridge> bridges = Collections.synchronizedList(new ArrayList<>());
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             LOGGER.log(Level.INFO, "Cleaning up for shutdown");
             Rebroadcaster.INSTANCE.halt();
-            for(Bridge b : bridges) {
-                b.halt();
+            synchronized (bridges) {
+                for(Bridge b : bridges) {
+                    b.halt();
+                }
             }
         }));
 
@@ -69,7 +85,13 @@ public class BridgeServer {
         Options opts = new Options();
         opts.addOption(Option.builder("pair").numberOfArgs(1).desc("IP Pair.").build());
         opts.addOption(Option.builder("xcn").numberOfArgs(1).desc("XCN IP.").build());
+        opts.addOption(Option.builder("route").numberOfArgs(1).desc("Hub route SRC_IP:DST_IP[,DST_IP...].").build());
+        opts.addOption(Option.builder("group").numberOfArgs(1).desc("Hub group IP,IP[,IP...]; each member sends to all others.").build());
+        opts.addOption("file", true, "File of pairs (CNR_IP:XCN_IP) or XCN IPs, one per line; reloaded when changed.");
         opts.addOption("port", true, "Bridge Server port to connect to. [Default: " + port + "]");
+        opts.addOption("cluster", true, "Share pairs with other instances, HOST:PORT,...; each instance on its own host address.");
+        opts.addOption("self", true, "This instance in the cluster, HOST:PORT.");
+        opts.addOption("heartbeat", true,"Close hub connections silent for MISSES heartbeats of MS, MS[:MISSES], and bridges after the same silence; 0 to disable. [Default: " + Heartbeat.DEFAULT_INTERVAL_MS + ":" + Heartbeat.DEFAULT_MISSES + " for hub connections, bridges are not closed]");
         opts.addOption("log", true,"Log output level. [Default: " + TcpClient.getLevel() + "]");
         opts.addOption("help","Print this message.");
 
@@ -77,6 +99,7 @@ public class BridgeServer {
         CommandLineParser parser = new DefaultParser();
         AtomicBoolean paired = new AtomicBoolean(false);
         AtomicBoolean xcns = new AtomicBoolean(false);
+        Map<String, Set<String>> routes = new LinkedHashMap<>();
         try {
             CommandLine line = parser.parse(opts, args);
             //print help
@@ -110,6 +133,32 @@ public class BridgeServer {
                 }
             }
 
+            //get the hub routes; frames are routed by the server instead of piped between pairs.
+            if(line.hasOption("route")) {
+                for (String arg : line.getOptionValues("route")) {
+                    BridgeHub.addRoute(routes, arg);
+                }
+            }
+            if(line.hasOption("group")) {
+                for (String arg : line.getOptionValues("group")) {
+                    BridgeHub.addGroup(routes, arg);
+                }
+            }
+
+            //get all the pairs or xcn IPs from a file, the mode is set by what the file contains.
+            if(line.hasOption("file")) {
+                Path path = Paths.get(line.getOptionValue("file"));
+                for (BridgePair pair : BridgeDemux.readPairs(path)) {
+                    if (pair.getLeft().isEmpty()) {
+                        xcns.set(true);
+                    } else {
+                        paired.set(true);
+                    }
+                    bd.addPair(pair);
+                }
+                watch(path, bd);
+            }
+
             //set the logging level
             if (line.hasOption("log")) {
                 String val = line.getOptionValue("log");
@@ -118,10 +167,26 @@ public class BridgeServer {
                 LOGGER.log(level, "Logging Level: {0}", level);
             }
 
+            if (line.hasOption("heartbeat")) {
+                Heartbeat.configure(line.getOptionValue("heartbeat"));
+                //only judge bridges by silence when asked to; not every client heartbeats
+                Bridge.setTimeout(Heartbeat.getTimeoutMillis());
+            }
+
             //set the non-default port value
             if (line.hasOption("port")) {
                 port = Integer.parseInt(line.getOptionValue("port"));
             }
+
+            //share the pairs with other instances
+            if (line.hasOption("cluster")) {
+                if (!line.hasOption("self")) {
+                    throw new ParseException("-cluster requires -self");
+                }
+                String self = line.getOptionValue("self");
+                cluster = new BridgeCluster(self, line.getOptionValue("cluster"), BridgeCluster.DEFAULT_PROBE_MS);
+                port = cluster.getPort();
+            }
         } catch (ParseException pe) {
             System.out.println(pe.getMessage());
             //print help
@@ -129,6 +194,16 @@ public class BridgeServer {
             formatter.printHelp("bridge-server", opts, true);
         }
 
+        if(!routes.isEmpty()) {
+            if(paired.get() || xcns.get()) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("bridge-server", opts, true);
+                return;
+            }
+            HubServer(new BridgeHub(routes, new PduClassifier()), port);
+            return;
+        }
+
         //Only XOR of paired and xcns is valid.
         if(paired.get() && xcns.get()) {
             //print help
@@ -139,6 +214,8 @@ public class BridgeServer {
             //print help
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("bridge-server", opts, true);
+        } else if(paired.get() && !bd.getPairs().isEmpty() && cluster != null) {
+            ClusteredServer(bd, bridges, cluster);
         } else if(paired.get() && !bd.getPairs().isEmpty()) {
             PairedServer(bd, bridges, port);
         } else if(xcns.get() && !bd.getPairs().isEmpty()) {
@@ -151,6 +228,63 @@ public class BridgeServer {
         }
     }
 
+    /**
+     * Configured to route frames between participants through a hub.
+     *
+     * @param hub the hub
+     * @param port port to listen on
+     * @throws IOException error on server
+     */
+    public static void HubServer(BridgeHub hub, int port) throws IOException {
+        LOGGER.log(Level.FINE, "Starting Hub: {0}", hub);
+        Runtime.getRuntime().addShutdownHook(new Thread(hub::halt));
+        hub.serve(new ServerSocket(port));
+    }
+
+    /**
+     * Configured to pair specific IP addresses, sharing the pairs with the other instances of a cluster.  Clients
+     * whose pair is owned by another instance are redirected to it.
+     *
+     * @param bd BridgeDemux
+     * @param bridges List of pairs
+     * @param c the cluster
+     * @throws IOException error on server
+     */
+    public static void ClusteredServer(BridgeDemux bd, List<Bridge> bridges, BridgeCluster c) throws IOException {
+        LOGGER.log(Level.FINE, "Starting Clustered Server: {0}", c);
+        cluster = c;
+        c.setListener(() -> rebalance(bd));
+        ServerSocket ss = new ServerSocket();
+        ss.bind(new InetSocketAddress(c.getHost(), c.getPort()));
+        c.start();
+        serve(bd, bridges, ss, false);
+    }
+
+    /**
+     * Close bridges, and clients waiting for their pair, for pairs now owned by another instance.  The clients
+     * reconnect and are redirected.
+     *
+     * @param bd BridgeDemux
+     */
+    private static void rebalance(BridgeDemux bd) {
+        int moved = 0;
+        for (BridgePair pair : bd.getPairs()) {
+            if (cluster.isLocal(pair)) {
+                continue;
+            }
+            Bridge b = LIVE.remove(pair);
+            if (b != null) {
+                b.halt();
+                moved++;
+            }
+            synchronized (SOCKETS) {
+                closeWaiting(SOCKETS.remove(pair.getLeft()));
+                closeWaiting(SOCKETS.remove(pair.getRight()));
+            }
+        }
+        LOGGER.log(Level.INFO, "Cluster now {0}; moved {1} bridges", new Object[]{cluster.getMembers(), moved});
+    }
+
     /**
      * Configured to pair on first-come, first-serve basis.
      *
@@ -162,75 +296,20 @@ public class BridgeServer {
     public static void NonPairedServer(BridgeDemux bd, List<Bridge> bridges, int port) throws IOException {
         //if there are pairs (should be true as at least one '-pairs' is required by CLI)
         LOGGER.log(Level.FINE, "Starting Server...");
-        ServerSocket ss = new ServerSocket(port);
-
-        //run forever
-        while (!Rebroadcaster.INSTANCE.isHalted()) {
-            Socket client = ss.accept();
-
-            //check for existing match
-            final String ip = client.getInetAddress().getHostAddress();
-            LOGGER.log(Level.FINE, "Client Connected: {0}", ip);
-
-            String pairedIp = null;
-            BridgePair pair = null;
-            for (BridgePair bp : bd.getPairs()) {
-                //get paired IP
-                if (bp.getLeft().equals(ip)) {
-                    pairedIp = bp.getRight();
-                    pair = bp;
-                } else if (bp.getRight().equals(ip)) {
-                    pairedIp = bp.getLeft();
-                    pair = bp;
-                }
-            }
-
-            if (pairedIp == null) {
-                //will be null if the IP address is previously unknown
-                //now that we know the IP address, set it to the left value
-                //of the first available bridge pair.
-                //once this value is set, it will always be assigned to this node
-                for (BridgePair bp : bd.getPairs()) {
-                    //check for an available EMPTY left slot
-                    if (pairedIp == null && "".equals(bp.getLeft())) {
-                        //update the paired ip to be the xcn ip address
-
-                        bp.setLeft(ip);
-                        pairedIp = bp.getRight();
-                        pair = bp;
-
-                        SOCKETS.put(bp.getLeft(), client);
-                    }
-                }
-            }
+        NonPairedServer(bd, bridges, new ServerSocket(port));
+    }
 
-            //if pairedIP is still null, then there are no more available slots, ignore
-            if (pairedIp != null) {
-                //check if there is already a waiting pairing
-                if (SOCKETS.containsKey(pairedIp)) {
-                    SOCKETS.put(ip, client);
-
-                    final Socket sockLeft = SOCKETS.get(pair.left);
-                    final Socket sockRight = SOCKETS.get(pair.right);
-                    SOCKETS.remove(pair.left);
-                    SOCKETS.remove(pair.right);
-
-                    Thread t = new Thread(() -> {
-                        Bridge b = new Bridge(sockLeft, sockRight);
-                        b.run();
-                        b.halt();
-                        bridges.add(b);
-                    });
-                    t.setDaemon(true);
-                    LOGGER.log(Level.FINE, "Starting Bridge: {0} to {1}", new Object[]{ip, pairedIp});
-                    t.start();
-                } else {
-                    //paired connection not yet present; store and wait
-                    LOGGER.log(Level.FINE, "Waiting for paired IP: {0} to {1}", new Object[]{ip, pairedIp});
-                    SOCKETS.put(ip, client);
-                }
-            }
-        }
+    /**
+     * Configured to pair on first-come, first-serve basis.
+     * Accepts clients on an existing server socket until the socket is closed.
+     *
+     * @param bd BridgeDemux
+     * @param bridges List of pairs
+     * @param ss server socket to accept clients on
+     * @throws IOException error on server
+     */
+    public static void NonPairedServer(BridgeDemux bd, List<Bridge> bridges, ServerSocket ss) throws IOException {
+        serve(bd, bridges, ss, true);
     }
 
     /**
@@ -244,8 +323,32 @@ public class BridgeServer {
     public static void PairedServer(BridgeDemux bd, List<Bridge> bridges, int port) throws IOException {
         //if there are pairs (should be true as at least one '-pairs' is required by CLI)
         LOGGER.log(Level.FINE, "Starting Server...");
-        ServerSocket ss = new ServerSocket(port);
+        PairedServer(bd, bridges, new ServerSocket(port));
+    }
 
+    /**
+     * Configured to pair specific IP addresses from CNR to XCN
+     * Accepts clients on an existing server socket until the socket is closed.
+     *
+     * @param bd BridgeDemux
+     * @param bridges List of pairs
+     * @param ss server socket to accept clients on
+     * @throws IOException error on server
+     */
+    public static void PairedServer(BridgeDemux bd, List<Bridge> bridges, ServerSocket ss) throws IOException {
+        serve(bd, bridges, ss, false);
+    }
+
+    /**
+     * Accept clients and bridge each one to its paired IP once both are connected.
+     *
+     * @param bd BridgeDemux
+     * @param bridges List of pairs
+     * @param ss server socket to accept clients on
+     * @param firstComeFirstServe if true, unknown IPs are assigned to the next available slot
+     * @throws IOException error on server
+     */
+    private static void serve(BridgeDemux bd, List<Bridge> bridges, ServerSocket ss, boolean firstComeFirstServe) throws IOException {
         //run forever
         while (!Rebroadcaster.INSTANCE.isHalted()) {
             Socket client = ss.accept();
@@ -254,59 +357,147 @@ public class BridgeServer {
             final String ip = client.getInetAddress().getHostAddress();
             LOGGER.log(Level.FINE, "Client Connected: {0}", ip);
 
-            boolean found = false;
-            for (BridgePair bp : bd.getPairs()) {
-                //if we already found a match in a previous bp, continue on and stop looking.
-                if (found) {
-                    continue;
-                }
-
-                //get paired IP
-                String pairedIp = null;
-                if (bp.getLeft().equals(ip)) {
-                    pairedIp = bp.getRight();
-                } else if (bp.getRight().equals(ip)) {
-                    pairedIp = bp.getLeft();
-                }
-
-                final String pairedIpFinal = pairedIp;
-
-                //check for existing...
-                if (pairedIp != null) {
-                    //found a match, stop all future searches.
-                    found = true;
-
-                    //check if there is already a waiting pairing
-                    if (SOCKETS.containsKey(pairedIp)) {
-                        SOCKETS.put(ip, client);
-
-                        final Socket sockLeft = SOCKETS.get(bp.left);
-                        final Socket sockRight = SOCKETS.get(bp.right);
-                        SOCKETS.remove(bp.left);
-                        SOCKETS.remove(bp.right);
-
-                        Thread t = new Thread(() -> {
-                            Bridge b = new Bridge(sockLeft, sockRight);
-                            b.run();
-                            b.halt();
-                            bridges.add(b);
-                        });
-                        t.setDaemon(true);
-                        LOGGER.log(Level.FINE, "Starting Bridge: {0} to {1}", new Object[]{ip, pairedIpFinal});
-                        t.start();
-                    } else {
-                        //paired connection not yet present; store and wait
-                        LOGGER.log(Level.FINE, "Waiting for paired IP: {0} to {1}", new Object[]{ip, pairedIpFinal});
-                        SOCKETS.put(ip, client);
-                    }
-                }
+            BridgePair pair = bd.find(ip);
+            if (pair == null && firstComeFirstServe) {
+                //will be null if the IP address is previously unknown
+                //now that we know the IP address, assign it to the first available slot.
+                //once this value is set, it will always be assigned to this node
+                pair = bd.claim(ip);
             }
 
-            //if no ip is found, then the current instance is not configured to look for pairs with the IP.
-            if (!found) {
+            //if no pair is found, then the current instance is not configured to look for pairs with the IP
+            //or there are no more available slots.
+            if (pair == null) {
                 LOGGER.log(Level.WARNING, "Not Configured: {0}", ip);
                 client.close();
+                continue;
+            }
+
+            //only the owner bridges a pair; the client reconnects there.
+            if (cluster != null && !cluster.isLocal(pair)) {
+                cluster.redirect(client, cluster.owner(pair));
+                continue;
+            }
+
+            final boolean isLeft = ip.equals(pair.getLeft());
+            final String pairedIp = isLeft ? pair.getRight() : pair.getLeft();
+
+            //check if there is already a waiting pairing
+            Socket other = rendezvous(ip, pairedIp, client);
+            if (other != null) {
+                final Socket sockLeft = isLeft ? client : other;
+                final Socket sockRight = isLeft ? other : client;
+                final BridgePair bridged = pair;
+                Thread t = new Thread(() -> {
+                    Bridge b = new Bridge(sockLeft, sockRight);
+                    bridges.add(b);
+                    LIVE.put(bridged, b);
+                    b.run();
+                    b.halt();
+                    LIVE.remove(bridged, b);
+                    bridges.remove(b);
+                });
+                t.setDaemon(true);
+                LOGGER.log(Level.FINE, "Starting Bridge: {0} to {1}", new Object[]{ip, pairedIp});
+                t.start();
+            } else {
+                //paired connection not yet present; store and wait
+                LOGGER.log(Level.FINE, "Waiting for paired IP: {0} to {1}", new Object[]{ip, pairedIp});
             }
         }
     }
+
+    /**
+     * Take the socket waiting for this client, or store this client to wait for its pair.
+     *
+     * @param ip IP of the connecting client
+     * @param pairedIp IP of its pair
+     * @param client the connecting client
+     * @return the paired socket, null if this client is now waiting
+     */
+    private static Socket rendezvous(String ip, String pairedIp, Socket client) {
+        synchronized (SOCKETS) {
+            Socket other = SOCKETS.remove(pairedIp);
+            if (other != null && !other.isClosed()) {
+                return other;
+            }
+            //a client that reconnects replaces its stale waiting socket.
+            closeWaiting(SOCKETS.put(ip, client));
+            return null;
+        }
+    }
+
+    /**
+     * Close a socket that is waiting for its pair.
+     *
+     * @param socket socket to close, may be null
+     */
+    private static void closeWaiting(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Watch a pair file and apply changes to the registry.  Live bridges of removed pairs are not affected; clients
+     * waiting on a removed pair are disconnected.  When a pair's CNR IP changes its live bridge is closed, as is the
+     * old CNR client if it is waiting, while the EMANE client keeps waiting for its new pair.
+     *
+     * @param path the pair file
+     * @param bd BridgeDemux
+     */
+    private static void watch(Path path, BridgeDemux bd) {
+        final Path file = path.toAbsolutePath();
+        Thread t = new Thread(() -> {
+            try (WatchService ws = file.getFileSystem().newWatchService()) {
+                file.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (!Rebroadcaster.INSTANCE.isHalted()) {
+                    WatchKey key = ws.take();
+                    boolean changed = false;
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (file.getFileName().equals(event.context())) {
+                                changed = true;
+                            }
+                        }
+                        key.reset();
+                        //editors truncate then write; wait for the writes to settle before reading.
+                        key = ws.poll(RELOAD_SETTLE_MS, TimeUnit.MILLISECONDS);
+                    }
+                    if (changed) {
+                        try {
+                            for (BridgePair removed : bd.update(BridgeDemux.readPairs(file))) {
+                                if (bd.find(removed.getRight()) != null) {
+                                    //changed pair: the EMANE IP is still configured, with another CNR IP
+                                    Bridge b = LIVE.remove(removed);
+                                    if (b != null) {
+                                        b.halt();
+                                    }
+                                    if (bd.find(removed.getLeft()) == null) {
+                                        synchronized (SOCKETS) {
+                                            closeWaiting(SOCKETS.remove(removed.getLeft()));
+                                        }
+                                    }
+                                    continue;
+                                }
+                                synchronized (SOCKETS) {
+                                    closeWaiting(SOCKETS.remove(removed.getLeft()));
+                                    closeWaiting(SOCKETS.remove(removed.getRight()));
+                                }
+                            }
+                        } catch (IOException ex) {
+                            LOGGER.log(Level.WARNING, "Unable to reload: {0}", file);
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Broadcasts PDUs on the local subnet.
+ */
+public class BroadcastTransport extends DatagramTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(BroadcastTransport.class.getName());
+
+    private final InetAddress group;
+
+    /**
+     * Constructor.
+     *
+     * @param address an address on the subnet to broadcast to (x.y.z.255), null for the first interface's
+     * @throws IOException error creating the socket, or no broadcast address
+     */
+    public BroadcastTransport(String address) throws IOException {
+        super(new DatagramSocket());
+        try {
+            if(address == null) {
+                group = Rebroadcaster.listAllBroadcastAddresses().get(0);
+            } else {
+                //set off of the address base:
+                //x.y.z.255
+                int index = address.lastIndexOf('.');
+                group = InetAddress.getByName(address.substring(0, index) + ".255");
+            }
+            LOGGER.log(Level.INFO, "Broadcast Address: {0}", new Object[]{group.getHostAddress()});
+            socket.setBroadcast(true);
+        } catch(IOException | IndexOutOfBoundsException ex) {
+            socket.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("No broadcast address", ex);
+        }
+    }
+
+    @Override
+    protected InetAddress target(byte[] pdu) {
+        return group;
+    }
+
+    @Override
+    public Rebroadcaster.CastingEnum getType() {
+        return Rebroadcaster.CastingEnum.Broad;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Trace;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Sends each PDU as one datagram.  The socket also receives, so the client forwards what it hears on it.
+ */
+public abstract class DatagramTransport implements EgressTransport {
+
+    protected final DatagramSocket socket;
+
+    /**
+     * Constructor.
+     *
+     * @param socket the socket, owned by the transport
+     */
+    protected DatagramTransport(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Get the address a PDU is sent to.
+     *
+     * @param pdu the PDU
+     * @return destination group or broadcast address
+     */
+    protected abstract InetAddress target(byte[] pdu);
+
+    /**
+     * Send a PDU.  The socket serializes concurrent sends itself.
+     *
+     * @param pdu the PDU
+     * @throws IOException error sending
+     */
+    @Override
+    public void send(byte[] pdu) throws IOException {
+        socket.send(new DatagramPacket(pdu, pdu.length, target(pdu), Rebroadcaster.MCAST_PORT));
+        Trace.event(Trace.Kind.REBROADCAST, pdu.length > 2 ? 255 & pdu[2] : -1, pdu.length, 0);
+    }
+
+    /**
+     * Get the socket.
+     *
+     * @return the socket, for receiving
+     */
+    public DatagramSocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
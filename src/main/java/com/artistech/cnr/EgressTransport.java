@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.IOException;
+
+/**
+ * Where the Rebroadcaster sends PDUs received from the bridge.
+ *
+ * Implementations may be sent to from several threads at once and lock no more than their own state, so one slow
+ * transport doesn't hold up the others.
+ */
+public interface EgressTransport {
+
+    /**
+     * Get the kind of transport.
+     *
+     * @return the cast type
+     */
+    Rebroadcaster.CastingEnum getType();
+
+    /**
+     * Send a PDU.
+     *
+     * @param pdu the PDU, not modified
+     * @throws IOException error sending
+     */
+    void send(byte[] pdu) throws IOException;
+
+    /**
+     * Release the transport's sockets and threads.
+     */
+    void close();
+}
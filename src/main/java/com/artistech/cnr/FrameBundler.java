@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs consecutive PDUs into BUNDLE frames so that a link with a high per-packet cost (EMANE) carries fewer, larger
+ * packets.  A bundle is written when the next PDU would not fit in maxBytes, or when the first PDU in it has waited
+ * maxNanos.  A bundle holding a single PDU is written as a plain data frame.
+ *
+ * Bundles, PDUs, bytes and the delay added by waiting are published to Metrics under the given name.
+ *
+ * Not thread safe; used by a single writer thread.
+ */
+public class FrameBundler {
+
+    private final FrameWriter writer;
+    private final String name;
+    private final ByteBuffer buffer;
+    private final long maxNanos;
+    private int count = 0;
+    private long firstNanos = 0;
+    private byte[] single = null;
+
+    private final AtomicLong bundles;
+    private final AtomicLong pdus;
+    private final AtomicLong bytes;
+    private final AtomicLong delayTotal;
+    private volatile long delayMax = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param writer writer for the connection
+     * @param name metrics name prefix
+     * @param maxBytes maximum bundle payload size
+     * @param maxMillis maximum time the first PDU in a bundle waits
+     */
+    public FrameBundler(FrameWriter writer, String name, int maxBytes, long maxMillis) {
+        this.writer = writer;
+        this.name = name;
+        this.buffer = ByteBuffer.allocate(maxBytes);
+        this.maxNanos = maxMillis * 1_000_000L;
+        bundles = Metrics.counter(name + ".bundles");
+        pdus = Metrics.counter(name + ".pdus");
+        bytes = Metrics.counter(name + ".bytes");
+        delayTotal = Metrics.counter(name + ".delay.total.us");
+        Metrics.gauge(name + ".delay.max.us", () -> delayMax / 1000);
+        Metrics.gauge(name + ".pdus.per.bundle", () -> {
+            long b = bundles.get();
+            return b == 0 ? 0 : pdus.get() / b;
+        });
+    }
+
+    /**
+     * Add a PDU, writing the pending bundle first if the PDU does not fit.  PDUs larger than a bundle are written on
+     * their own.
+     *
+     * @param data the PDU
+     * @throws IOException error writing
+     */
+    public void add(byte[] data) throws IOException {
+        int size = Integer.BYTES + data.length;
+        if (size > buffer.capacity()) {
+            flush();
+            writer.write(data);
+            return;
+        }
+        if (size > buffer.remaining()) {
+            flush();
+        }
+        if (count == 0) {
+            firstNanos = System.nanoTime();
+            single = data;
+        }
+        buffer.putInt(data.length);
+        buffer.put(data);
+        count++;
+        if (isDue()) {
+            flush();
+        }
+    }
+
+    /**
+     * Is there a pending bundle?
+     *
+     * @return true if no PDUs are waiting
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Has the first PDU in the pending bundle waited long enough?
+     *
+     * @return true if the bundle should be written
+     */
+    public boolean isDue() {
+        return count > 0 && remainingNanos() <= 0;
+    }
+
+    /**
+     * Get how much longer the pending bundle may wait.
+     *
+     * @return nanoseconds; the full budget if there is no pending bundle
+     */
+    public long remainingNanos() {
+        return count == 0 ? maxNanos : maxNanos - (System.nanoTime() - firstNanos);
+    }
+
+    /**
+     * Write the pending bundle, if any.
+     *
+     * @throws IOException error writing
+     */
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (count == 1) {
+            writer.write(single);
+        } else {
+            writer.writeControl(Frames.BUNDLE, buffer.array(), 0, buffer.position());
+        }
+        long delay = System.nanoTime() - firstNanos;
+        bundles.incrementAndGet();
+        pdus.addAndGet(count);
+        bytes.addAndGet(buffer.position());
+        delayTotal.addAndGet(delay / 1000);
+        if (delay > delayMax) {
+            delayMax = delay;
+        }
+        buffer.clear();
+        count = 0;
+        single = null;
+    }
+
+    /**
+     * Remove this bundler's metrics.
+     */
+    public void unregister() {
+        Metrics.remove(name + ".");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a stream, returning data frames and passing control frames to a listener.  BUNDLE frames are
+ * unpacked here and their PDUs returned one at a time, so callers never see them.
+ *
+ * Frames longer than the largest a peer sends, a PDU in a RELAY frame, are rejected as malformed, so a corrupt or
+ * hostile length fails the read instead of the allocation.
+ */
+public class FrameReader {
+
+    /**
+     * Receives control frames.
+     */
+    public interface ControlListener {
+        /**
+         * Handle a control frame.
+         *
+         * @param code control code
+         * @param payload control payload
+         * @throws IOException error responding to the control frame
+         */
+        void control(int code, ByteBuffer payload) throws IOException;
+
+        /**
+         * Note that a frame of any kind has been read, before it is handled.
+         */
+        default void heard() {
+        }
+    }
+
+    /**
+     * Get the longest frame payload accepted.
+     *
+     * @return payload length limit
+     */
+    public static int maxLength() {
+        return TcpClient.BUFFER_SIZE + RelayOverlay.HEADER;
+    }
+
+    private final DataInputStream in;
+    private final ControlListener listener;
+    private ByteBuffer bundle = null;
+
+    /**
+     * Constructor.
+     *
+     * @param is stream to read from
+     * @param listener receives control frames and is told of every frame read, may be null to ignore them
+     */
+    public FrameReader(InputStream is, ControlListener listener) {
+        this.in = new DataInputStream(new BufferedInputStream(is, TcpClient.BUFFER_SIZE));
+        this.listener = listener;
+    }
+
+    /**
+     * Read the next data frame, handling any control frames before it.
+     *
+     * @return the PDU
+     * @throws IOException error reading, end of stream, or a malformed frame
+     */
+    public byte[] read() throws IOException {
+        if (bundle != null) {
+            return unbundle();
+        }
+        while (true) {
+            int length = in.readInt();
+            if (length >= 0) {
+                if (length > maxLength()) {
+                    throw new IOException("Malformed frame");
+                }
+                byte[] data = new byte[length];
+                in.readFully(data, 0, length);
+                if (listener != null) {
+                    listener.heard();
+                }
+                return data;
+            }
+
+            int size = in.readInt();
+            if (size < 0 || size > maxLength()) {
+                throw new IOException("Malformed frame");
+            }
+            byte[] payload = new byte[size];
+            in.readFully(payload, 0, size);
+            if (listener != null) {
+                listener.heard();
+            }
+            if (length == Frames.BUNDLE) {
+                if (size > 0) {
+                    bundle = ByteBuffer.wrap(payload);
+                    return unbundle();
+                }
+            } else if (listener != null) {
+                listener.control(length, ByteBuffer.wrap(payload));
+            }
+        }
+    }
+
+    /**
+     * Take the next PDU out of the current bundle.
+     *
+     * @return the PDU
+     * @throws IOException if the bundle is malformed
+     */
+    private byte[] unbundle() throws IOException {
+        int length = bundle.remaining() >= Integer.BYTES ? bundle.getInt() : -1;
+        if (length < 0 || length > bundle.remaining()) {
+            bundle = null;
+            throw new IOException("Malformed bundle");
+        }
+        byte[] data = new byte[length];
+        bundle.get(data);
+        if (!bundle.hasRemaining()) {
+            bundle = null;
+        }
+        return data;
+    }
+}
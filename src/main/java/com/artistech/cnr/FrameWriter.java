@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes data and control frames to a stream.  Each frame is written with a single flush, and writes from
+ * multiple threads do not interleave.
+ */
+public class FrameWriter {
+
+    private final DataOutputStream os;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor.
+     *
+     * @param os stream to write to
+     */
+    public FrameWriter(OutputStream os) {
+        this.os = new DataOutputStream(new BufferedOutputStream(os, TcpClient.BUFFER_SIZE));
+    }
+
+    /**
+     * Write a data frame.
+     *
+     * @param data buffer holding the PDU
+     * @param offset start of the PDU
+     * @param length length of the PDU
+     * @throws IOException error writing
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            os.writeInt(length);
+            os.write(data, offset, length);
+            os.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write a data frame.
+     *
+     * @param data the PDU
+     * @throws IOException error writing
+     */
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Write a control frame with a payload of longs.
+     *
+     * @param code control code (negative)
+     * @param values payload
+     * @throws IOException error writing
+     */
+    public void writeControl(int code, long... values) throws IOException {
+        lock.lock();
+        try {
+            control(code, values);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write a control frame with a payload of longs, unless another write is in progress.  For timers that must not
+     * block behind a stalled connection.
+     *
+     * @param code control code (negative)
+     * @param values payload
+     * @return true if the frame was written
+     * @throws IOException error writing
+     */
+    public boolean tryWriteControl(int code, long... values) throws IOException {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            control(code, values);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void control(int code, long... values) throws IOException {
+        os.writeInt(code);
+        os.writeInt(values.length * Long.BYTES);
+        for (long value : values) {
+            os.writeLong(value);
+        }
+        os.flush();
+    }
+
+    /**
+     * Write a control frame with a raw payload.
+     *
+     * @param code control code (negative)
+     * @param payload payload bytes
+     * @throws IOException error writing
+     */
+    public void writeControl(int code, byte[] payload) throws IOException {
+        writeControl(code, payload, 0, payload.length);
+    }
+
+    /**
+     * Write a control frame with a raw payload.
+     *
+     * @param code control code (negative)
+     * @param payload buffer holding the payload
+     * @param offset start of the payload
+     * @param length length of the payload
+     * @throws IOException error writing
+     */
+    public void writeControl(int code, byte[] payload, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            os.writeInt(code);
+            os.writeInt(length);
+            os.write(payload, offset, length);
+            os.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+/**
+ * Wire format of framed connections (client to bridge server, and between XCN nodes).
+ *
+ * A data frame is a non-negative int length followed by that many bytes of PDU.  A control frame is a negative int
+ * code, followed by an int payload length and the payload, so that a reader can skip codes it does not know.
+ */
+public final class Frames {
+
+    /**
+     * Sent by each side when a connection is made: sender epoch (8), epoch of the peer the sender last heard from (8),
+     * number of data frames received from that peer (8), or -1 if no replay is wanted.
+     */
+    public static final int RESUME = -1;
+
+    /**
+     * Sequence number (8) of the next data frame on the connection.
+     */
+    public static final int SYNC = -2;
+
+    /**
+     * Several data frames packed into one: repeated int length (4) and PDU, filling the payload.
+     */
+    public static final int BUNDLE = -3;
+
+    /**
+     * Sent by a unicast client to a Rebroadcaster: UTF-8 Subscription, replacing any earlier one.
+     */
+    public static final int SUBSCRIBE = -4;
+
+    /**
+     * Heartbeat: sender's clock (8), in nanoseconds.  Answered with a PONG carrying the same payload.
+     */
+    public static final int PING = -5;
+
+    /**
+     * Heartbeat reply: the payload of the PING being answered.
+     */
+    public static final int PONG = -6;
+
+    /**
+     * Sent by a clustered BridgeServer to a client whose pair it doesn't own: UTF-8 HOST:PORT of the owner.  The
+     * connection is closed after it.
+     */
+    public static final int REDIRECT = -7;
+
+    /**
+     * PDU relayed between XCN nodes in the overlay: origin (8), sequence (8), hops (4), then the PDU.
+     */
+    public static final int RELAY = -8;
+
+    /**
+     * Constants only.
+     */
+    private Frames() {}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps PDUs to multicast groups by exercise ID or radio frequency, so that listeners can join only the groups they
+ * need and the kernel drops the rest.
+ *
+ * Rules are a comma separated list of @EXERCISE=GROUP or LOW-HIGH=GROUP (frequencies in Hz, inclusive).  Exercise
+ * rules are checked first, then frequency rules, first match wins.  Anything else, including signal PDUs of a radio
+ * whose transmitter PDU hasn't been seen yet, goes to the default group.
+ */
+public class GroupMap {
+
+    private final InetAddress defaultGroup;
+    private final InetAddress[] exercises = new InetAddress[256];
+    private final long[] lows;
+    private final long[] highs;
+    private final InetAddress[] bands;
+    private final Set<InetAddress> groups = new LinkedHashSet<>();
+
+    private final RadioTable radios = new RadioTable();
+
+    /**
+     * Constructor.
+     *
+     * @param rules mapping rules
+     * @param defaultGroup group for PDUs no rule matches
+     * @throws UnknownHostException if a group can't be resolved
+     * @throws IllegalArgumentException if the rules can't be parsed
+     */
+    public GroupMap(String rules, InetAddress defaultGroup) throws UnknownHostException {
+        this.defaultGroup = defaultGroup;
+        groups.add(defaultGroup);
+
+        List<long[]> ranges = new ArrayList<>();
+        List<InetAddress> rangeGroups = new ArrayList<>();
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int eq = rule.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Invalid group rule: " + rule);
+            }
+            String match = rule.substring(0, eq).trim();
+            InetAddress group = InetAddress.getByName(rule.substring(eq + 1).trim());
+            if (!group.isMulticastAddress()) {
+                throw new IllegalArgumentException("Not a multicast group: " + rule);
+            }
+            groups.add(group);
+
+            if (match.startsWith("@")) {
+                int exercise = Integer.parseInt(match.substring(1).trim());
+                if (exercise < 0 || exercise > 255) {
+                    throw new IllegalArgumentException("Invalid exercise: " + rule);
+                }
+                if (exercises[exercise] == null) {
+                    exercises[exercise] = group;
+                }
+            } else {
+                String[] range = match.split("-");
+                long lo = (long) Double.parseDouble(range[0]);
+                long hi = range.length > 1 ? (long) Double.parseDouble(range[1]) : lo;
+                ranges.add(new long[]{Math.min(lo, hi), Math.max(lo, hi)});
+                rangeGroups.add(group);
+            }
+        }
+
+        lows = new long[ranges.size()];
+        highs = new long[ranges.size()];
+        bands = rangeGroups.toArray(new InetAddress[0]);
+        for (int ii = 0; ii < lows.length; ii++) {
+            lows[ii] = ranges.get(ii)[0];
+            highs[ii] = ranges.get(ii)[1];
+        }
+    }
+
+    /**
+     * Get the group for a PDU.  Safe to call from several threads.
+     *
+     * @param pdu raw PDU
+     * @return multicast group
+     */
+    public InetAddress group(byte[] pdu) {
+        if (pdu.length < 3) {
+            return defaultGroup;
+        }
+        InetAddress ret = exercises[255 & pdu[1]];
+        if (ret != null) {
+            return ret;
+        }
+        if (bands.length > 0 && RadioTable.isRadio(pdu)) {
+            long frequency = radios.update(pdu);
+            if (frequency >= 0) {
+                //few bands are expected, a scan beats anything cleverer.
+                for (int ii = 0; ii < bands.length; ii++) {
+                    if (frequency >= lows[ii] && frequency <= highs[ii]) {
+                        return bands[ii];
+                    }
+                }
+            }
+        }
+        return defaultGroup;
+    }
+
+    /**
+     * Get every group PDUs may be sent to.
+     *
+     * @return groups, the default group first
+     */
+    public List<InetAddress> getGroups() {
+        return new ArrayList<>(groups);
+    }
+
+    /**
+     * Parse a list of groups to join.
+     *
+     * @param value comma separated groups, or "all"
+     * @return groups to join
+     * @throws UnknownHostException if a group can't be resolved
+     */
+    public List<InetAddress> parseJoin(String value) throws UnknownHostException {
+        if (value == null || "all".equalsIgnoreCase(value.trim())) {
+            return getGroups();
+        }
+        List<InetAddress> ret = new ArrayList<>();
+        for (String group : value.split(",")) {
+            ret.add(InetAddress.getByName(group.trim()));
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "default=" + defaultGroup.getHostAddress() + " bands=" + Arrays.toString(bands) + " groups=" + groups;
+    }
+}
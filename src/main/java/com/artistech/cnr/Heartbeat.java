@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-band heartbeat on a framed connection.
+ *
+ * Every interval a PING carrying the sender's clock is written; the peer echoes it in a PONG, giving the round trip
+ * time, which is smoothed and published as NAME.rtt.us (and NAME.rtt.max.us).  A connection is declared dead when
+ * nothing has been heard from the peer (any frame, data or control) for the configured number of intervals, and its
+ * dead action, normally closing the socket, is run so the blocked reader fails at once instead of waiting on TCP.
+ *
+ * A connection is only judged once the peer has sent a PING or PONG, so peers that don't send heartbeats, or that
+ * are not yet connected (a pair whose other side is still waiting), are never declared dead.
+ *
+ * PINGs are written from one shared timer thread and PONGs from the reader, and both are skipped while another write
+ * holds the connection, so a stalled connection can't delay the others' heartbeats or block its own reader.  A
+ * skipped PING or PONG is covered by the data holding the connection, which the peer counts as heard.  Other control
+ * frames are passed to the next listener.
+ */
+public class Heartbeat implements FrameReader.ControlListener {
+
+    private static final Logger LOGGER = Logger.getLogger(Heartbeat.class.getName());
+
+    public static final long DEFAULT_INTERVAL_MS = 250;
+    public static final int DEFAULT_MISSES = 4;
+
+    private static long intervalMillis = DEFAULT_INTERVAL_MS;
+    private static int misses = DEFAULT_MISSES;
+    private static final AtomicLong DEAD = Metrics.counter("heartbeat.dead");
+    private static ScheduledExecutorService timer = null;
+
+    private final String name;
+    private final FrameWriter writer;
+    private final FrameReader.ControlListener next;
+    private final Runnable dead;
+    private volatile long lastHeard = 0;
+    private volatile boolean beating = false;
+    private volatile long rtt = -1;
+    private volatile long maxRtt = 0;
+    private ScheduledFuture<?> task = null;
+
+    /**
+     * Set the heartbeat for connections made after.
+     *
+     * @param interval milliseconds between PINGs, 0 to send none (PINGs are still answered)
+     * @param missed intervals without hearing from the peer before it is declared dead
+     */
+    public static synchronized void configure(long interval, int missed) {
+        intervalMillis = interval;
+        misses = Math.max(1, missed);
+    }
+
+    /**
+     * Parse and set the heartbeat, MS[:MISSES].
+     *
+     * @param value the setting
+     */
+    public static void configure(String value) {
+        String[] sp = value.split(":");
+        configure(Long.parseLong(sp[0].trim()), sp.length > 1 ? Integer.parseInt(sp[1].trim()) : DEFAULT_MISSES);
+    }
+
+    /**
+     * How long a connection may be silent before it is dead.
+     *
+     * @return milliseconds, 0 if heartbeats are off
+     */
+    public static synchronized long getTimeoutMillis() {
+        return intervalMillis * misses;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name metric prefix
+     * @param writer writer of the connection
+     * @param next receives other control frames, may be null
+     * @param dead run once when the peer is declared dead
+     */
+    public Heartbeat(String name, FrameWriter writer, FrameReader.ControlListener next, Runnable dead) {
+        this.name = name;
+        this.writer = writer;
+        this.next = next;
+        this.dead = dead;
+    }
+
+    /**
+     * Start sending PINGs, if heartbeats are on.
+     *
+     * @return this
+     */
+    public Heartbeat start() {
+        long interval;
+        synchronized (Heartbeat.class) {
+            interval = intervalMillis;
+            if (interval <= 0) {
+                return this;
+            }
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "heartbeat");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(interval * misses);
+        Metrics.gauge(name + ".rtt.us", () -> rtt < 0 ? -1 : rtt / 1000);
+        Metrics.gauge(name + ".rtt.max.us", () -> maxRtt / 1000);
+        synchronized (this) {
+            task = timer.scheduleAtFixedRate(() -> tick(timeout), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stop sending PINGs and forget the metrics.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (task == null) {
+                return;
+            }
+            task.cancel(false);
+            task = null;
+        }
+        Metrics.remove(name + ".");
+    }
+
+    private void tick(long timeout) {
+        long heard = lastHeard;
+        long now = System.nanoTime();
+        if (beating && now - heard > timeout) {
+            LOGGER.log(Level.WARNING, "{0}: nothing heard for {1} ms, closing", new Object[]{name, (now - heard) / 1_000_000});
+            DEAD.incrementAndGet();
+            stop();
+            dead.run();
+            return;
+        }
+        try {
+            writer.tryWriteControl(Frames.PING, now);
+        } catch (IOException ex) {
+            //the reader sees the failure too
+            LOGGER.log(Level.FINE, "{0}: {1}", new Object[]{name, ex.getMessage()});
+        }
+    }
+
+    /**
+     * Note that the peer has been heard from; called by the reader for every frame.
+     */
+    @Override
+    public void heard() {
+        lastHeard = System.nanoTime();
+    }
+
+    /**
+     * Answer PINGs, time PONGs and pass other control frames on.
+     *
+     * @param code control code
+     * @param payload control payload
+     * @throws IOException error writing a PONG, or from the next listener
+     */
+    @Override
+    public void control(int code, ByteBuffer payload) throws IOException {
+        switch (code) {
+            case Frames.PING:
+                beating = true;
+                //never block the reader behind a large write; the peer counts any frame, so a lost PONG is harmless
+                writer.tryWriteControl(Frames.PONG, payload.getLong());
+                break;
+            case Frames.PONG:
+                beating = true;
+                long now = System.nanoTime();
+                long sample = now - payload.getLong();
+                //smoothed as TCP does, 1/8 of each new sample
+                rtt = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+                maxRtt = Math.max(maxRtt, sample);
+                break;
+            default:
+                if (next != null) {
+                    next.control(code, payload);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get the smoothed round trip time.
+     *
+     * @return nanoseconds, -1 if no PONG has been received
+     */
+    public long getRtt() {
+        return rtt;
+    }
+}
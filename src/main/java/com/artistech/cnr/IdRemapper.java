@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.LongLongMap;
+
+/**
+ * Rewrites DIS entity and radio IDs in place in the raw PDU bytes, so that several CNR instances with colliding IDs
+ * can share one scenario without unmarshalling and remarshalling every PDU.
+ *
+ * Rules are comma separated FROM=TO pairs of dotted IDs:
+ *
+ *   1.1=2.1              site.application: every entity of the simulation
+ *   1.1.5=2.1.9          site.application.entity: one entity
+ *   1.1.5.1=2.1.9.3      site.application.entity.radio: one radio, in radio PDUs
+ *
+ * The most specific rule wins.  Each rule is reversible: frames leaving through the bridge are mapped FROM to TO, and
+ * frames arriving from the bridge are mapped TO back to FROM, so targets must be unique.
+ *
+ * Only ID fields at known offsets of known PDU types are patched: the originating entity of every entity information,
+ * warfare, simulation management and radio PDU, the target and munition of fire and detonation PDUs, the other
+ * entity of collision and simulation management PDUs, the transmitter of receiver PDUs, and the source and master of
+ * intercom control PDUs.  Radio rules apply to the radio of radio PDUs, the comm device of intercom signal PDUs and
+ * the master comm device of intercom control PDUs; the source comm device of intercom control is a single byte, so
+ * only entity rules apply to it.
+ *
+ * Immutable once built, so it can be shared between threads.
+ */
+public class IdRemapper {
+
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final long SITE_APP_MASK = 0xFFFFFFFFL << 16;
+
+    //ID offsets by PDU type
+    private static final int[][] ENTITY_OFFSETS = new int[256][];
+    private static final int RECEIVER_TRANSMITTER_OFFSET = 28;
+    private static final int INTERCOM_SOURCE_OFFSET = 14;
+    private static final int INTERCOM_MASTER_OFFSET = 25;
+
+    static {
+        //entity state
+        ENTITY_OFFSETS[1] = new int[]{12};
+        //fire, detonation: firing, target, munition
+        ENTITY_OFFSETS[2] = new int[]{12, 18, 24};
+        ENTITY_OFFSETS[3] = new int[]{12, 18, 24};
+        //collision: issuing, colliding
+        ENTITY_OFFSETS[4] = new int[]{12, 18};
+        //simulation management: originating, receiving
+        for (int type = 11; type <= 22; type++) {
+            ENTITY_OFFSETS[type] = new int[]{12, 18};
+        }
+        ENTITY_OFFSETS[RadioTable.TRANSMITTER] = new int[]{12};
+        ENTITY_OFFSETS[RadioTable.SIGNAL] = new int[]{12};
+        ENTITY_OFFSETS[RadioTable.RECEIVER] = new int[]{12, RECEIVER_TRANSMITTER_OFFSET};
+        //intercom signal: entity and comm device; intercom control: source and master
+        ENTITY_OFFSETS[PduHandler.INTERCOM_SIGNAL] = new int[]{12};
+        ENTITY_OFFSETS[PduHandler.INTERCOM_CONTROL] = new int[]{INTERCOM_SOURCE_OFFSET, INTERCOM_MASTER_OFFSET};
+    }
+
+    /**
+     * One direction of the mapping.
+     */
+    private static class Table {
+        //site.application << 16
+        final LongLongMap sites = new LongLongMap();
+        //site.application.entity
+        final LongLongMap entities = new LongLongMap();
+        //site.application.entity.radio
+        final LongLongMap radios = new LongLongMap();
+
+        LongLongMap map(int parts) {
+            return parts == 2 ? sites : parts == 3 ? entities : radios;
+        }
+    }
+
+    private final Table out = new Table();
+    private final Table in = new Table();
+    private final String rules;
+
+    /**
+     * Constructor.
+     *
+     * @param rules FROM=TO,...
+     * @throws IllegalArgumentException if a rule can't be parsed or a target is used twice
+     */
+    public IdRemapper(String rules) {
+        this.rules = rules;
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            String[] sp = rule.split("=");
+            if (sp.length != 2) {
+                throw new IllegalArgumentException("Invalid remap rule: " + rule);
+            }
+            String[] from = sp[0].trim().split("\\.");
+            String[] to = sp[1].trim().split("\\.");
+            if (from.length != to.length || from.length < 2 || from.length > 4) {
+                throw new IllegalArgumentException("Invalid remap rule: " + rule);
+            }
+            long f = pack(from);
+            long t = pack(to);
+            LongLongMap forward = out.map(from.length);
+            LongLongMap reverse = in.map(from.length);
+            if (forward.containsKey(f) || reverse.containsKey(t) || t == MISSING) {
+                throw new IllegalArgumentException("Duplicate remap rule: " + rule);
+            }
+            forward.put(f, t);
+            reverse.put(t, f);
+        }
+    }
+
+    /**
+     * Pack a dotted ID the way it appears in the PDU: site.application in bits 16-47, entity in bits 0-15, radio in
+     * the low 16 bits of a 64 bit radio ID.
+     */
+    private static long pack(String[] parts) {
+        long ret = 0;
+        for (String part : parts) {
+            int v = Integer.parseInt(part.trim());
+            if (v < 0 || v > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid ID part: " + part);
+            }
+            ret = ret << 16 | v;
+        }
+        //site.application sits above the entity number
+        return parts.length == 2 ? ret << 16 : ret;
+    }
+
+    /**
+     * Map IDs of a PDU leaving through the bridge.
+     *
+     * @param pdu buffer holding the PDU at offset 0, patched in place
+     * @param length length of the PDU
+     */
+    public void outbound(byte[] pdu, int length) {
+        apply(out, pdu, length);
+    }
+
+    /**
+     * Map IDs of a PDU arriving from the bridge back.
+     *
+     * @param pdu buffer holding the PDU at offset 0, patched in place
+     * @param length length of the PDU
+     */
+    public void inbound(byte[] pdu, int length) {
+        apply(in, pdu, length);
+    }
+
+    private static void apply(Table table, byte[] pdu, int length) {
+        if (length < 3) {
+            return;
+        }
+        int type = 255 & pdu[2];
+        int[] offsets = ENTITY_OFFSETS[type];
+        if (offsets == null) {
+            return;
+        }
+        for (int off : offsets) {
+            if (off + 8 <= length && (off == RadioTable.RADIO_OFFSET && type >= RadioTable.TRANSMITTER
+                    || off == RECEIVER_TRANSMITTER_OFFSET && type == RadioTable.RECEIVER
+                    || off == INTERCOM_MASTER_OFFSET && type == PduHandler.INTERCOM_CONTROL)) {
+                //radio PDUs: entity followed by radio number
+                long radio = RadioTable.getLong(pdu, off);
+                long mapped = table.radios.get(radio, MISSING);
+                if (mapped != MISSING) {
+                    putId(pdu, off, mapped, Long.BYTES);
+                    continue;
+                }
+            }
+            if (off + 6 <= length) {
+                long entity = getId(pdu, off);
+                long mapped = table.entities.get(entity, MISSING);
+                if (mapped == MISSING) {
+                    long site = table.sites.get(entity & SITE_APP_MASK, MISSING);
+                    mapped = site == MISSING ? MISSING : site | (entity & 0xFFFF);
+                }
+                if (mapped != MISSING) {
+                    putId(pdu, off, mapped, 6);
+                }
+            }
+        }
+    }
+
+    private static long getId(byte[] b, int off) {
+        long ret = 0;
+        for (int ii = 0; ii < 6; ii++) {
+            ret = ret << 8 | (255 & b[off + ii]);
+        }
+        return ret;
+    }
+
+    private static void putId(byte[] b, int off, long value, int bytes) {
+        for (int ii = bytes - 1; ii >= 0; ii--) {
+            b[off + ii] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return rules;
+    }
+}
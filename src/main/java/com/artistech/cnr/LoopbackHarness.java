@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+
+/**
+ * End-to-end scaling harness.  Starts a bridge server in-process on loopback and N CNR-side plus N XCN-side
+ * endpoints, each bound to its own 127.x.y.z address, that speak the same length-prefixed framing as TcpClient.
+ * Traffic is driven in both directions and throughput, latency percentiles, thread count and heap are reported for
+ * each N.
+ *
+ * TcpClient keeps its connection state in static fields (one client per JVM), so the endpoints here implement the
+ * client side of the wire protocol directly rather than instantiating TcpClient.
+ *
+ * Binding to addresses other than 127.0.0.1 requires the whole 127/8 block be routed to loopback (the Linux default).
+ */
+public class LoopbackHarness {
+
+    private static final Logger LOGGER = Logger.getLogger(LoopbackHarness.class.getName());
+
+    //offset of the send timestamp in each frame; after the DIS header and radio id like a signal pdu.
+    private static final int STAMP_OFFSET = 32;
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    /**
+     * Collects latency samples in a fixed array.
+     */
+    private static class Recorder {
+        private final long[] samples = new long[MAX_SAMPLES];
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile boolean recording = false;
+
+        void record(long nanos, int length) {
+            if (recording) {
+                int index = count.getAndIncrement();
+                if (index < samples.length) {
+                    samples[index] = nanos;
+                }
+                bytes.addAndGet(length);
+            }
+        }
+
+        long[] sorted() {
+            long[] ret = Arrays.copyOf(samples, Math.min(count.get(), samples.length));
+            Arrays.sort(ret);
+            return ret;
+        }
+    }
+
+    /**
+     * One side of a bridge pair.
+     */
+    private static class Endpoint {
+        private final Socket socket;
+        private final DataOutputStream os;
+        private final byte[] frame;
+        private final Thread reader;
+
+        Endpoint(String local, InetSocketAddress server, int size, Recorder recorder, AtomicBoolean halted) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName(local), 0));
+            socket.connect(server);
+            os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TcpClient.BUFFER_SIZE));
+
+            //make the frame look like a signal pdu so packet-aware components will accept it.
+            frame = new byte[Math.max(size, STAMP_OFFSET + 8)];
+            frame[0] = 6;
+            frame[2] = 26;
+            frame[3] = 4;
+
+            reader = new Thread(() -> {
+                byte[] data = new byte[TcpClient.BUFFER_SIZE];
+                try {
+                    DataInputStream dIn = new DataInputStream(socket.getInputStream());
+                    while (!halted.get()) {
+                        int length = dIn.readInt();
+                        if (length > data.length) {
+                            data = new byte[length];
+                        }
+                        dIn.readFully(data, 0, length);
+                        long sent = ByteBuffer.wrap(data).getLong(STAMP_OFFSET);
+                        recorder.record(System.nanoTime() - sent, length);
+                    }
+                } catch (IOException ex) {
+                    //socket closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send() throws IOException {
+            ByteBuffer.wrap(frame).putLong(STAMP_OFFSET, System.nanoTime());
+            os.writeInt(frame.length);
+            os.write(frame);
+            os.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Build a loopback address for the given block and index.
+     *
+     * @param block second octet
+     * @param index endpoint index
+     * @return dotted address
+     */
+    private static String address(int block, int index) {
+        return "127." + block + "." + (index / 250) + "." + (index % 250 + 1);
+    }
+
+    /**
+     * Run one scaling step.
+     *
+     * @param n number of bridge pairs
+     * @param paired true for -pair mode, false for -xcn (first-come, first-serve) mode
+     * @param step step index, used to select a fresh address block
+     * @param rate frames per second per endpoint
+     * @param size frame size in bytes
+     * @param seconds measurement duration
+     * @throws Exception error setting up sockets or threads
+     */
+    private static void runStep(int n, boolean paired, int step, int rate, int size, int seconds) throws Exception {
+        int cnrBlock = 10 + 2 * step;
+        int xcnBlock = cnrBlock + 1;
+
+        BridgeDemux bd = new BridgeDemux();
+        for (int ii = 0; ii < n; ii++) {
+            bd.addPair(new BridgePair(paired ? address(cnrBlock, ii) : "", address(xcnBlock, ii)));
+        }
+
+        final List<Bridge> bridges = Collections.synchronizedList(new ArrayList<>());
+        final ServerSocket ss = new ServerSocket(0, n * 2, InetAddress.getLoopbackAddress());
+        Thread server = new Thread(() -> {
+            try {
+                if (paired) {
+                    BridgeServer.PairedServer(bd, bridges, ss);
+                } else {
+                    BridgeServer.NonPairedServer(bd, bridges, ss);
+                }
+            } catch (IOException ex) {
+                //server socket closed
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), ss.getLocalPort());
+        AtomicBoolean halted = new AtomicBoolean(false);
+        Recorder recorder = new Recorder();
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (int ii = 0; ii < n; ii++) {
+            endpoints.add(new Endpoint(address(cnrBlock, ii), addr, size, recorder, halted));
+            endpoints.add(new Endpoint(address(xcnBlock, ii), addr, size, recorder, halted));
+        }
+
+        //one pacing thread per slice of endpoints
+        int senders = Math.min(endpoints.size(), Runtime.getRuntime().availableProcessors());
+        List<Thread> threads = new ArrayList<>();
+        for (int jj = 0; jj < senders; jj++) {
+            final int slice = jj;
+            Thread t = new Thread(() -> {
+                long period = 1_000_000_000L / rate;
+                long next = System.nanoTime();
+                while (!halted.get()) {
+                    for (int ii = slice; ii < endpoints.size(); ii += senders) {
+                        try {
+                            endpoints.get(ii).send();
+                        } catch (IOException ex) {
+                            //endpoint closed
+                        }
+                    }
+                    next += period;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        //warm up so that all pairs are bridged before measuring
+        Thread.sleep(1000 + n * 2L);
+        recorder.recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        recorder.recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        halted.set(true);
+        for (Endpoint e : endpoints) {
+            e.close();
+        }
+        ss.close();
+        for (Thread t : threads) {
+            t.join(1000);
+        }
+
+        long[] lat = recorder.sorted();
+        long frames = recorder.count.get();
+        long expected = (long) (2L * n * rate * elapsed);
+        System.out.printf("%6d %12.0f %10.2f %8.1f%% %10.3f %10.3f %10.3f %10.3f %8d %10.1f%n",
+                n,
+                frames / elapsed,
+                recorder.bytes.get() / elapsed / (1024 * 1024),
+                expected > 0 ? 100.0 * frames / expected : 0,
+                percentile(lat, 0.50) / 1e6,
+                percentile(lat, 0.90) / 1e6,
+                percentile(lat, 0.99) / 1e6,
+                lat.length > 0 ? lat[lat.length - 1] / 1e6 : 0,
+                threadCount,
+                heap / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Get the percentile from a sorted array.
+     *
+     * @param sorted sorted samples
+     * @param p percentile in [0, 1]
+     * @return value at the percentile, 0 if there are no samples
+     */
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))];
+    }
+
+    /**
+     * Entry point for the harness.
+     *
+     * @param args command line args
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tF %1$tT] [%4$-7s] %5$s %n");
+
+        Options opts = new Options();
+        opts.addOption("mode", true, "[xcn | pair] bridge server mode. [Default: xcn]");
+        opts.addOption("n", true, "Comma separated list of pair counts. [Default: 1,10,100,500]");
+        opts.addOption("rate", true, "Frames per second sent by each endpoint. [Default: 50]");
+        opts.addOption("size", true, "Frame size in bytes. [Default: 672]");
+        opts.addOption("duration", true, "Seconds to measure each step. [Default: 10]");
+        opts.addOption("log", true, "Log output level. [Default: " + TcpClient.getLevel() + "]");
+        opts.addOption("help", "Print this message.");
+
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine line = parser.parse(opts, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("cnr-harness", opts, true);
+                System.exit(0);
+            }
+
+            if (line.hasOption("log")) {
+                Level level = Level.parse(line.getOptionValue("log"));
+                TcpClient.setLevel(level);
+                LOGGER.log(level, "Logging Level: {0}", level);
+            }
+
+            boolean paired = "pair".equals(line.getOptionValue("mode", "xcn"));
+            int rate = Integer.parseInt(line.getOptionValue("rate", "50"));
+            int size = Integer.parseInt(line.getOptionValue("size", "672"));
+            int seconds = Integer.parseInt(line.getOptionValue("duration", "10"));
+            String[] counts = line.getOptionValue("n", "1,10,100,500").split(",");
+
+            System.out.printf("%6s %12s %10s %9s %10s %10s %10s %10s %8s %10s%n",
+                    "pairs", "frames/s", "MiB/s", "delivered", "p50 ms", "p90 ms", "p99 ms", "max ms", "threads", "heap MiB");
+            for (int ii = 0; ii < counts.length; ii++) {
+                int n = Integer.parseInt(counts[ii].trim());
+                try {
+                    runStep(n, paired, ii, rate, size, seconds);
+                } catch (Exception ex) {
+                    LOGGER.log(Level.SEVERE, "Step " + n + " failed", ex);
+                }
+                System.gc();
+            }
+        } catch (ParseException pe) {
+            System.out.println(pe.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("cnr-harness", opts, true);
+        }
+        System.exit(0);
+    }
+}
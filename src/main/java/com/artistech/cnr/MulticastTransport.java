@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.List;
+
+/**
+ * Multicasts PDUs on the loopback interface, to one group or to groups by exercise or frequency.
+ */
+public class MulticastTransport extends DatagramTransport {
+
+    private final InetAddress group;
+    private final GroupMap groupMap;
+
+    /**
+     * Constructor.
+     *
+     * @param groupMap group for each PDU, null to send everything to the default group
+     * @param joined groups to listen on, null for the default group only
+     * @throws IOException error creating the socket
+     */
+    public MulticastTransport(GroupMap groupMap, List<InetAddress> joined) throws IOException {
+        super(open(joined));
+        this.group = InetAddress.getByName(Rebroadcaster.MCAST_GRP);
+        this.groupMap = groupMap;
+    }
+
+    private static MulticastSocket open(List<InetAddress> joined) throws IOException {
+        MulticastSocket ms = new MulticastSocket(Rebroadcaster.MCAST_PORT);
+        try {
+            //only listen to multicast from localhost
+            //CNR should be setup to only multicast to localhost as well
+            ms.setInterface(InetAddress.getLoopbackAddress());
+            if(joined == null) {
+                ms.joinGroup(InetAddress.getByName(Rebroadcaster.MCAST_GRP));
+            } else {
+                //only the groups this node needs; the kernel drops the rest.
+                for(InetAddress g : joined) {
+                    ms.joinGroup(g);
+                }
+            }
+        } catch(IOException ex) {
+            ms.close();
+            throw ex;
+        }
+        return ms;
+    }
+
+    @Override
+    protected InetAddress target(byte[] pdu) {
+        return groupMap != null ? groupMap.group(pdu) : group;
+    }
+
+    @Override
+    public Rebroadcaster.CastingEnum getType() {
+        return Rebroadcaster.CastingEnum.Multi;
+    }
+}
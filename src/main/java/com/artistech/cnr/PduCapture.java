@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only, memory-mapped capture of PDU traffic passing through the bridge.
+ *
+ * File layout (all values big endian):
+ * <pre>
+ * header:  magic "CNRCAP01" (8) | start epoch millis (8) | end offset (8) | record count (8)
+ * record:  receive nanos since start (8) | direction (1) | length (4) | data (length)
+ * </pre>
+ *
+ * The end offset and record count in the header are updated after every record, so a capture that was not closed
+ * cleanly can still be read up to the last complete record.
+ */
+public class PduCapture implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PduCapture.class.getName());
+
+    public static final byte[] MAGIC = "CNRCAP01".getBytes(StandardCharsets.US_ASCII);
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = 13;
+
+    /**
+     * Data received from CNR/XCN and sent towards the bridge.
+     */
+    public static final byte INGRESS = 0;
+
+    /**
+     * Data received from the bridge and rebroadcast.
+     */
+    public static final byte EGRESS = 1;
+
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+    private static volatile PduCapture active = null;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final long startNanos;
+    private MappedByteBuffer region;
+    private long position;
+    private long count;
+
+    /**
+     * Constructor.  Creates (or truncates) the capture file.
+     *
+     * @param path file to write to
+     * @throws IOException error creating or mapping the file
+     */
+    public PduCapture(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        startNanos = System.nanoTime();
+        header.put(MAGIC);
+        header.putLong(System.currentTimeMillis());
+        position = HEADER_SIZE;
+        commit();
+        map(position, 0);
+    }
+
+    /**
+     * Start capturing to the specified file.  Any current capture is closed.
+     *
+     * @param path file to write to
+     * @throws IOException error creating the file
+     */
+    public static void start(File path) throws IOException {
+        PduCapture old = active;
+        active = new PduCapture(path);
+        LOGGER.log(Level.INFO, "Capturing to: {0}", path);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Stop the current capture (if any).
+     */
+    public static void stop() {
+        PduCapture old = active;
+        active = null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Record data to the active capture.  Does nothing if no capture is active.
+     *
+     * @param direction INGRESS or EGRESS
+     * @param data buffer holding the packet
+     * @param offset start of the packet in the buffer
+     * @param length length of the packet
+     */
+    public static void record(byte direction, byte[] data, int offset, int length) {
+        PduCapture c = active;
+        if (c != null) {
+            try {
+                c.write(direction, data, offset, length);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Capture stopped", ex);
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param direction INGRESS or EGRESS
+     * @param data buffer holding the packet
+     * @param offset start of the packet in the buffer
+     * @param length length of the packet
+     * @throws IOException error growing the file
+     */
+    public synchronized void write(byte direction, byte[] data, int offset, int length) throws IOException {
+        if (region == null) {
+            //already closed
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        int need = RECORD_HEADER_SIZE + length;
+        if (region.remaining() < need) {
+            map(position, need);
+        }
+        region.putLong(nanos);
+        region.put(direction);
+        region.putInt(length);
+        region.put(data, offset, length);
+        position += need;
+        count++;
+        commit();
+    }
+
+    /**
+     * Map the next region of the file starting at the given position.
+     *
+     * @param start file position of the new region
+     * @param need minimum size of the region
+     * @throws IOException error mapping
+     */
+    private void map(long start, int need) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.max(REGION_SIZE, need));
+    }
+
+    /**
+     * Update the header with the current end of data.
+     */
+    private void commit() {
+        header.putLong(16, position);
+        header.putLong(24, count);
+    }
+
+    /**
+     * Get the number of records written.
+     *
+     * @return record count
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Flush and trim the file to the recorded data.
+     */
+    @Override
+    public synchronized void close() {
+        if (region == null) {
+            return;
+        }
+        try {
+            region.force();
+            header.force();
+            //unmapping is left to the GC; truncating a mapped file is allowed on unix, but not on windows.
+            region = null;
+            try {
+                channel.truncate(position);
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Unable to truncate capture", ex);
+            }
+            file.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.PriorityScheduler;
+import edu.nps.moves.disenum.PduType;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Assigns PDUs to scheduling classes by PDU type and exercise ID, read straight from the DIS header.
+ *
+ * Rules are a comma separated list of TYPE[@EXERCISE]=CLASS, where TYPE is a PDU type name (e.g. TRANSMITTER), a
+ * type number or '*', and EXERCISE is an exercise ID.  The first matching rule wins; PDUs matching no rule go in the
+ * last class.  Class 0 is the highest priority.
+ *
+ * The schedule is either "strict" or a comma separated list of weights, one per class, for weighted round-robin.
+ */
+public class PduClassifier {
+
+    public static final String DEFAULT_RULES = "TRANSMITTER=0,RECEIVER=0,INTERCOM_CONTROL=0,*=1";
+    public static final String DEFAULT_SCHEDULE = "strict";
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //indexed by exercise << 8 | type
+    private final byte[] table = new byte[256 * 256];
+    private final int[] weights;
+    private final boolean strict;
+
+    /**
+     * Constructor using the default rules and schedule.
+     */
+    public PduClassifier() {
+        this(DEFAULT_RULES, DEFAULT_SCHEDULE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rules classification rules
+     * @param schedule "strict" or class weights
+     * @throws IllegalArgumentException if the rules or schedule can't be parsed
+     */
+    public PduClassifier(String rules, String schedule) {
+        String[] sp = rules.split(",");
+        int[] types = new int[sp.length];
+        int[] exercises = new int[sp.length];
+        int[] classes = new int[sp.length];
+        int max = 0;
+        boolean catchAll = false;
+        for (int ii = 0; ii < sp.length; ii++) {
+            String rule = sp[ii].trim();
+            int eq = rule.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Invalid rule: " + rule);
+            }
+            String match = rule.substring(0, eq).trim();
+            classes[ii] = Integer.parseInt(rule.substring(eq + 1).trim());
+            if (classes[ii] < 0 || classes[ii] > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid class: " + rule);
+            }
+            max = Math.max(max, classes[ii]);
+
+            int at = match.indexOf('@');
+            exercises[ii] = at < 0 ? -1 : Integer.parseInt(match.substring(at + 1).trim());
+            String type = at < 0 ? match : match.substring(0, at).trim();
+            types[ii] = "*".equals(type) ? -1 : typeValue(type);
+            catchAll |= types[ii] < 0 && exercises[ii] < 0;
+        }
+
+        //without a catch-all rule, unmatched PDUs get a class of their own.
+        int count = catchAll ? max + 1 : max + 2;
+
+        if ("strict".equalsIgnoreCase(schedule.trim())) {
+            strict = true;
+            weights = new int[count];
+            Arrays.fill(weights, 1);
+        } else {
+            strict = false;
+            String[] ws = schedule.split(",");
+            weights = new int[Math.max(ws.length, count)];
+            Arrays.fill(weights, 1);
+            for (int ii = 0; ii < ws.length; ii++) {
+                weights[ii] = Integer.parseInt(ws[ii].trim());
+            }
+        }
+
+        //unmatched goes in the last class; apply rules last to first so that the first match wins.
+        Arrays.fill(table, (byte) (weights.length - 1));
+        for (int ii = sp.length - 1; ii >= 0; ii--) {
+            for (int exercise = 0; exercise < 256; exercise++) {
+                if (exercises[ii] >= 0 && exercises[ii] != exercise) {
+                    continue;
+                }
+                for (int type = 0; type < 256; type++) {
+                    if (types[ii] < 0 || types[ii] == type) {
+                        table[exercise << 8 | type] = (byte) classes[ii];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the numeric value of a PDU type.
+     *
+     * @param type PDU type name or number
+     * @return PDU type value
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    public static int typeValue(String type) {
+        int handled = PduHandler.typeValue(type);
+        if (handled >= 0) {
+            return handled;
+        }
+        for (int ii = 0; ii < PduType.lookup.length; ii++) {
+            if (PduType.lookup[ii] != null && PduType.lookup[ii].name().equalsIgnoreCase(type)) {
+                return ii;
+            }
+        }
+        try {
+            int value = Integer.parseInt(type);
+            if (value >= 0 && value < 256) {
+                return value;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        throw new IllegalArgumentException("Unknown PDU type: " + type);
+    }
+
+    /**
+     * Get the class of a PDU.
+     *
+     * @param data raw PDU
+     * @return class
+     */
+    public int classify(byte[] data) {
+        if (data.length < 3) {
+            return weights.length - 1;
+        }
+        return table[(255 & data[1]) << 8 | (255 & data[2])];
+    }
+
+    /**
+     * Get the number of classes.
+     *
+     * @return number of classes
+     */
+    public int getClasses() {
+        return weights.length;
+    }
+
+    /**
+     * Create a scheduler for these classes.
+     *
+     * @param name metrics name prefix
+     * @param capacity maximum items queued per class
+     * @param <T> Paramaterized type of item
+     * @return new scheduler
+     */
+    public <T> PriorityScheduler<T> newScheduler(String name, int capacity) {
+        return new PriorityScheduler<>(name, weights, strict, capacity);
+    }
+
+    /**
+     * Create a scheduler for these classes that shares each class fairly between the PDUs' sources.
+     *
+     * @param name metrics name prefix
+     * @param capacity maximum PDUs queued per source and class
+     * @param sourceWeights weight of each source; sources not listed have weight 1
+     * @return new scheduler
+     */
+    public PriorityScheduler<byte[]> newFairScheduler(String name, int capacity, Map<String, Integer> sourceWeights) {
+        return new PriorityScheduler<>(name, weights, strict, capacity, PriorityScheduler.DEFAULT_QUANTUM, sourceWeights,
+                pdu -> pdu.length);
+    }
+}
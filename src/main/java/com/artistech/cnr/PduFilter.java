@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Filter expressions over raw PDU bytes, compiled once into a tree of small predicates so that unwanted PDUs can be
+ * dropped before they are parsed or copied.
+ *
+ * Grammar:
+ *
+ *   expr    := and ( '||' and )*
+ *   and     := unary ( '&amp;&amp;' unary )*
+ *   unary   := '!' unary | '(' expr ')' | 'true' | 'false' | field op value | field 'in' '{' value ( ',' value )* '}'
+ *   op      := '==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;='
+ *
+ * Fields are version, exercise, type, family, length, site, application, entity, radio and frequency.  Values are
+ * numbers (frequency also accepts 30e6 style) or, for type, PDU type names.  site/application/entity/radio are read
+ * from the radio PDU header and frequency from transmitter PDUs; on other PDUs those fields are absent and every
+ * comparison with them is false.
+ *
+ *   type == SIGNAL &amp;&amp; exercise == 3 &amp;&amp; radio in {11761, 11762}
+ */
+public final class PduFilter {
+
+    /**
+     * Compiled filter.
+     */
+    public interface Matcher {
+        /**
+         * Test a PDU.
+         *
+         * @param pdu buffer holding the PDU at offset 0
+         * @param length length of the PDU
+         * @return true if the PDU passes
+         */
+        boolean test(byte[] pdu, int length);
+    }
+
+    /**
+     * Reads a field from a PDU; -1 if absent.
+     */
+    private interface Field {
+        long get(byte[] pdu, int length);
+    }
+
+    public static final Matcher ALL = (pdu, length) -> true;
+
+    private final String text;
+    private int pos = 0;
+
+    private PduFilter(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Compile a filter expression.
+     *
+     * @param expression the expression
+     * @return compiled filter
+     * @throws IllegalArgumentException if the expression can't be parsed
+     */
+    public static Matcher compile(String expression) {
+        PduFilter parser = new PduFilter(expression);
+        Matcher ret = parser.or();
+        parser.skipSpace();
+        if (parser.pos < expression.length()) {
+            throw parser.error("Unexpected input");
+        }
+        return ret;
+    }
+
+    private Matcher or() {
+        Matcher left = and();
+        while (accept("||")) {
+            final Matcher a = left;
+            final Matcher b = and();
+            left = (pdu, length) -> a.test(pdu, length) || b.test(pdu, length);
+        }
+        return left;
+    }
+
+    private Matcher and() {
+        Matcher left = unary();
+        while (accept("&&")) {
+            final Matcher a = left;
+            final Matcher b = unary();
+            left = (pdu, length) -> a.test(pdu, length) && b.test(pdu, length);
+        }
+        return left;
+    }
+
+    private Matcher unary() {
+        if (accept("!")) {
+            final Matcher a = unary();
+            return (pdu, length) -> !a.test(pdu, length);
+        }
+        if (accept("(")) {
+            Matcher ret = or();
+            expect(")");
+            return ret;
+        }
+        String name = word();
+        if ("true".equals(name)) {
+            return ALL;
+        }
+        if ("false".equals(name)) {
+            return (pdu, length) -> false;
+        }
+        final Field field = field(name);
+        if (accept("in")) {
+            expect("{");
+            List<Long> values = new ArrayList<>();
+            do {
+                values.add(value(name));
+            } while (accept(","));
+            expect("}");
+            return in(field, values.stream().mapToLong(Long::longValue).sorted().distinct().toArray());
+        }
+
+        String op = operator();
+        final long v = value(name);
+        switch (op) {
+            case "==":
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f == v;
+                };
+            case "!=":
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f != v;
+                };
+            case "<":
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f < v;
+                };
+            case "<=":
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f <= v;
+                };
+            case ">":
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f > v;
+                };
+            default:
+                return (pdu, length) -> {
+                    long f = field.get(pdu, length);
+                    return f >= 0 && f >= v;
+                };
+        }
+    }
+
+    /**
+     * Membership test: a lookup table for byte and short fields, a binary search otherwise.
+     */
+    private static Matcher in(final Field field, final long[] values) {
+        if (values[0] >= 0 && values[values.length - 1] <= 0xFFFF) {
+            final boolean[] table = new boolean[(int) values[values.length - 1] + 1];
+            for (long v : values) {
+                table[(int) v] = true;
+            }
+            return (pdu, length) -> {
+                long f = field.get(pdu, length);
+                return f >= 0 && f < table.length && table[(int) f];
+            };
+        }
+        return (pdu, length) -> {
+            long f = field.get(pdu, length);
+            return f >= 0 && Arrays.binarySearch(values, f) >= 0;
+        };
+    }
+
+    private Field field(String name) {
+        switch (name) {
+            case "version":
+                return (pdu, length) -> length > 0 ? 255 & pdu[0] : -1;
+            case "exercise":
+                return (pdu, length) -> length > 1 ? 255 & pdu[1] : -1;
+            case "type":
+                return (pdu, length) -> length > 2 ? 255 & pdu[2] : -1;
+            case "family":
+                return (pdu, length) -> length > 3 ? 255 & pdu[3] : -1;
+            case "length":
+                return (pdu, length) -> length;
+            case "site":
+                return radioField(0);
+            case "application":
+                return radioField(2);
+            case "entity":
+                return radioField(4);
+            case "radio":
+                return radioField(6);
+            case "frequency":
+                return (pdu, length) -> length >= RadioTable.FREQUENCY_OFFSET + Long.BYTES
+                        && (255 & pdu[2]) == RadioTable.TRANSMITTER ? RadioTable.getLong(pdu, RadioTable.FREQUENCY_OFFSET) : -1;
+            default:
+                throw error("Unknown field '" + name + "'");
+        }
+    }
+
+    /**
+     * An unsigned short of the radio ID at the start of a radio PDU body.
+     */
+    private static Field radioField(final int offset) {
+        final int off = RadioTable.RADIO_OFFSET + offset;
+        return (pdu, length) -> {
+            if (length < RadioTable.RADIO_OFFSET + Long.BYTES) {
+                return -1;
+            }
+            int type = 255 & pdu[2];
+            if (type < RadioTable.TRANSMITTER || type > RadioTable.RECEIVER) {
+                return -1;
+            }
+            return (255 & pdu[off]) << 8 | (255 & pdu[off + 1]);
+        };
+    }
+
+    private long value(String field) {
+        skipSpace();
+        int start = pos;
+        while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_'
+                || text.charAt(pos) == '.' || text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+            pos++;
+        }
+        String v = text.substring(start, pos);
+        if (v.isEmpty()) {
+            throw error("Expected a value");
+        }
+        try {
+            if ("type".equals(field)) {
+                return PduClassifier.typeValue(v);
+            }
+            return "frequency".equals(field) ? (long) Double.parseDouble(v) : Long.parseLong(v);
+        } catch (IllegalArgumentException ex) {
+            throw error("Invalid value '" + v + "'");
+        }
+    }
+
+    private String operator() {
+        for (String op : new String[]{"==", "!=", "<=", ">=", "<", ">"}) {
+            if (accept(op)) {
+                return op;
+            }
+        }
+        throw error("Expected an operator");
+    }
+
+    private String word() {
+        skipSpace();
+        int start = pos;
+        while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Expected a field");
+        }
+        return text.substring(start, pos);
+    }
+
+    private boolean accept(String token) {
+        skipSpace();
+        if (!text.startsWith(token, pos)) {
+            return false;
+        }
+        //keywords must not run into a following word
+        int end = pos + token.length();
+        if (Character.isLetter(token.charAt(0)) && end < text.length() && Character.isLetterOrDigit(text.charAt(end))) {
+            return false;
+        }
+        pos = end;
+        return true;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw error("Expected '" + token + "'");
+        }
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at " + pos + ": " + text);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+/**
+ * How the bridge treats each PDU type, in a table indexed by the raw type byte so that dispatching a PDU costs one
+ * array load and nothing is unmarshalled.
+ *
+ * Every type in the radio communications family is handled: transmitter, signal, receiver, intercom signal and
+ * intercom control.  These are forwarded from the datagram socket to the bridge if they are at least long enough
+ * to hold the fields the bridge reads, and are recognised when they loop back after being rebroadcast by their
+ * dedup key, the PDU type and DIS timestamp.  The key doesn't use entity or radio IDs, which differ on the two sides
+ * of a remapping.  Other types are never forwarded.
+ *
+ * Classes and filters are still set by PduClassifier and PduFilter, which look types up by the names here.
+ */
+public final class PduHandler {
+
+    public static final int INTERCOM_SIGNAL = 31;
+    public static final int INTERCOM_CONTROL = 32;
+    private static final int HEADER_LENGTH = 12;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int SIGNAL_DATA_OFFSET = 32;
+    private static final PduHandler[] TABLE = new PduHandler[256];
+
+    static {
+        register(new PduHandler(RadioTable.TRANSMITTER, "TRANSMITTER", RadioTable.RADIO_OFFSET + Long.BYTES));
+        register(new PduHandler(RadioTable.SIGNAL, "SIGNAL", SIGNAL_DATA_OFFSET));
+        register(new PduHandler(RadioTable.RECEIVER, "RECEIVER", RadioTable.RADIO_OFFSET + Long.BYTES));
+        register(new PduHandler(INTERCOM_SIGNAL, "INTERCOM_SIGNAL", SIGNAL_DATA_OFFSET));
+        register(new PduHandler(INTERCOM_CONTROL, "INTERCOM_CONTROL", HEADER_LENGTH));
+    }
+
+    private final int type;
+    private final String name;
+    private final int minLength;
+
+    /**
+     * Constructor.
+     *
+     * @param type PDU type value
+     * @param name PDU type name
+     * @param minLength shortest PDU of the type that is forwarded
+     */
+    private PduHandler(int type, String name, int minLength) {
+        this.type = type;
+        this.name = name;
+        this.minLength = minLength;
+    }
+
+    private static void register(PduHandler handler) {
+        TABLE[handler.type] = handler;
+    }
+
+    /**
+     * Get the handler for a PDU.
+     *
+     * @param pdu raw PDU
+     * @return the handler, null if the type isn't handled
+     */
+    public static PduHandler of(byte[] pdu) {
+        return pdu.length > 2 ? TABLE[255 & pdu[2]] : null;
+    }
+
+    /**
+     * Get the value of a handled PDU type.
+     *
+     * @param name PDU type name, ignoring case
+     * @return PDU type value, -1 if the type isn't handled
+     */
+    public static int typeValue(String name) {
+        for (PduHandler h : TABLE) {
+            if (h != null && h.name.equalsIgnoreCase(name)) {
+                return h.type;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if a PDU of this type should be forwarded through the bridge.
+     *
+     * @param length length of the PDU
+     * @return true if it should be forwarded
+     */
+    public boolean isForwarded(int length) {
+        return length >= minLength;
+    }
+
+    /**
+     * Get the key a PDU is recognised by when it loops back.
+     *
+     * @param pdu raw PDU, at least a DIS header long
+     * @return dedup key
+     */
+    public long dedupKey(byte[] pdu) {
+        long timestamp = (255L & pdu[TIMESTAMP_OFFSET]) << 24 | (255 & pdu[TIMESTAMP_OFFSET + 1]) << 16
+                | (255 & pdu[TIMESTAMP_OFFSET + 2]) << 8 | (255 & pdu[TIMESTAMP_OFFSET + 3]);
+        return (long) type << 32 | timestamp;
+    }
+
+    /**
+     * Get the PDU type value.
+     *
+     * @return PDU type
+     */
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
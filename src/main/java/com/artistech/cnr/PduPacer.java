@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+import com.artistech.utils.TimerWheel;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces the signal PDUs received from the bridge back to the cadence they were sent at, so that audio delayed in a
+ * TCP stall and then delivered in a burst is not rebroadcast to CNR as a burst.
+ *
+ * Each radio's audio is released one PDU after another: a PDU is due when the one before it has played, or as far
+ * after it as their DIS timestamps are apart when the timestamps show continuous audio.  A PDU that is due is sent at
+ * once on the caller's thread; one that is early is held on a timer wheel, whose single thread releases the held
+ * PDUs of every radio.  A PDU that would be held longer than the maximum hold is dropped, which bounds the delay
+ * added after a long stall.  A PDU that arrives after it was due, in the middle of a transmission, is sent at once
+ * and counted as late.  Other PDUs of a radio with audio held are held behind it, so a transmitter PDU can't
+ * overtake the radio's audio; PDUs of anything else are sent at once.
+ *
+ * Released, held, late and dropped PDUs, the longest hold and the number of radios are published to Metrics as
+ * pace.*.
+ */
+public class PduPacer {
+
+    private static final Logger LOGGER = Logger.getLogger(PduPacer.class.getName());
+
+    public static final long DEFAULT_MAX_HOLD_MS = 200;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SLOTS = 1024;
+    private static final int MAX_RADIOS = 4096;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int DATA_OFFSET = 32;
+    //a DIS timestamp counts 2^31 units an hour
+    private static final double NANOS_PER_UNIT = 3600e9 / (1L << 31);
+
+    /**
+     * Pacing of one radio.
+     */
+    private static class Radio {
+        //when the last PDU was released, and when its audio ends
+        long last;
+        long end;
+        long duration;
+        int timestamp;
+        int held = 0;
+    }
+
+    /**
+     * A PDU on the timer wheel.
+     */
+    private static class Held {
+        final byte[] pdu;
+        final Radio radio;
+        final Rebroadcaster target;
+
+        Held(byte[] pdu, Radio radio, Rebroadcaster target) {
+            this.pdu = pdu;
+            this.radio = radio;
+            this.target = target;
+        }
+    }
+
+    private final long maxHold;
+    private final TimerWheel<Held> wheel;
+    private final AtomicLong released = Metrics.counter("pace.released");
+    private final AtomicLong heldCount = Metrics.counter("pace.held");
+    private final AtomicLong late = Metrics.counter("pace.late");
+    private final AtomicLong dropped = Metrics.counter("pace.dropped");
+    private volatile long holdMax = 0;
+    //least recently heard radio first; radios with PDUs held are kept
+    private final Map<Long, Radio> radios = new LinkedHashMap<Long, Radio>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Radio> eldest) {
+            return size() > MAX_RADIOS && eldest.getValue().held == 0;
+        }
+    };
+
+    /**
+     * Constructor.  Starts the timer wheel.
+     *
+     * @param maxHoldMillis longest a PDU may be held
+     */
+    public PduPacer(long maxHoldMillis) {
+        this.maxHold = TimeUnit.MILLISECONDS.toNanos(maxHoldMillis);
+        this.wheel = new TimerWheel<>("pace.wheel", TICK_NANOS, SLOTS, this::release);
+        Metrics.gauge("pace.hold.max.us", () -> holdMax / 1000);
+        Metrics.gauge("pace.radios", this::radioCount);
+    }
+
+    /**
+     * Send a PDU, now or when it is due.
+     *
+     * @param target where to send it
+     * @param pdu the PDU
+     * @throws IOException error sending at once
+     */
+    public void offer(Rebroadcaster target, byte[] pdu) throws IOException {
+        if (!RadioTable.isRadio(pdu)) {
+            send(target, pdu);
+            return;
+        }
+        long now = System.nanoTime();
+        long release;
+        Radio radio;
+        synchronized (this) {
+            Long id = RadioTable.radioId(pdu);
+            radio = radios.get(id);
+            if ((255 & pdu[2]) != RadioTable.SIGNAL || pdu.length < DATA_OFFSET) {
+                //keep the radio's other PDUs behind its held audio
+                if (radio == null || radio.held == 0) {
+                    release = now;
+                } else {
+                    release = Math.max(now, radio.last);
+                }
+            } else {
+                int timestamp = getInt(pdu, TIMESTAMP_OFFSET);
+                long rate = AudioMixer.sampleRate(pdu);
+                long duration = rate > 0 ? AudioMixer.sampleCount(pdu) * 1_000_000_000L / rate : 0;
+                if (radio == null) {
+                    radio = new Radio();
+                    radios.put(id, radio);
+                    release = now;
+                } else {
+                    release = due(radio, timestamp, now);
+                    if (release < 0) {
+                        //skip the PDU but keep its place in the audio
+                        radio.timestamp = timestamp;
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+                radio.last = release;
+                radio.end = release + duration;
+                radio.timestamp = timestamp;
+                if (duration > 0) {
+                    radio.duration = duration;
+                }
+            }
+            if (release - now > TICK_NANOS / 2 || radio != null && radio.held > 0) {
+                radio.held++;
+                heldCount.incrementAndGet();
+                holdMax = Math.max(holdMax, release - now);
+                if (wheel.schedule(new Held(pdu, radio, target), release)) {
+                    return;
+                }
+                radio.held--;
+            }
+        }
+        send(target, pdu);
+    }
+
+    /**
+     * Work out when a radio's next signal PDU is due.
+     *
+     * @param radio the radio
+     * @param timestamp the PDU's DIS timestamp
+     * @param now current time
+     * @return when to release it, -1 to drop it
+     */
+    private long due(Radio radio, int timestamp, long now) {
+        long gap = gap(radio.timestamp, timestamp);
+        boolean continuous = gap < 0 ? now - radio.end <= maxHold : gap <= 2 * radio.duration + TICK_NANOS;
+        if (!continuous) {
+            //a new transmission: only don't overlap the last one
+            return Math.max(now, radio.end);
+        }
+        long due = gap < 0 ? radio.end : radio.last + gap;
+        if (now - due > TICK_NANOS) {
+            late.incrementAndGet();
+            return Math.max(now, radio.end);
+        }
+        if (due - now > maxHold) {
+            return -1;
+        }
+        return Math.max(now, due);
+    }
+
+    /**
+     * Time between two DIS timestamps.
+     *
+     * @param from earlier timestamp
+     * @param to later timestamp
+     * @return nanoseconds, -1 if the timestamps don't tell
+     */
+    private static long gap(int from, int to) {
+        //the low bit marks absolute time; the rest counts up through the hour
+        int units = ((to >>> 1) - (from >>> 1)) & 0x7FFFFFFF;
+        if (units == 0 || units > 1 << 30) {
+            return -1;
+        }
+        return (long) (units * NANOS_PER_UNIT);
+    }
+
+    /**
+     * Send a held PDU when it is due; runs on the wheel's thread.
+     *
+     * @param h the held PDU
+     */
+    private void release(Held h) {
+        try {
+            send(h.target, h.pdu);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+        synchronized (this) {
+            h.radio.held--;
+        }
+    }
+
+    private void send(Rebroadcaster target, byte[] pdu) throws IOException {
+        released.incrementAndGet();
+        target.send(pdu);
+    }
+
+    private synchronized int radioCount() {
+        return radios.size();
+    }
+
+    /**
+     * Stop the timer wheel; held PDUs are dropped.
+     */
+    public void halt() {
+        wheel.halt();
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (255 & b[off]) << 24 | (255 & b[off + 1]) << 16 | (255 & b[off + 2]) << 8 | 255 & b[off + 3];
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+
+/**
+ * Replays a capture written by PduCapture onto the multicast group or into a bridge server.
+ */
+public class PduReplay {
+
+    private static final Logger LOGGER = Logger.getLogger(PduReplay.class.getName());
+
+    /**
+     * Destination of replayed packets.
+     */
+    private interface Target extends AutoCloseable {
+        void send(byte[] data, int length) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Sends each packet as a datagram to the CNR multicast group.
+     */
+    private static class MulticastTarget implements Target {
+        private final DatagramSocket socket;
+        private final InetAddress group;
+
+        MulticastTarget() throws IOException {
+            socket = new DatagramSocket();
+            group = InetAddress.getByName(Rebroadcaster.MCAST_GRP);
+        }
+
+        @Override
+        public void send(byte[] data, int length) throws IOException {
+            socket.send(new DatagramPacket(data, length, group, Rebroadcaster.MCAST_PORT));
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * Writes each packet as a length-prefixed frame to a bridge server.
+     */
+    private static class BridgeTarget implements Target {
+        private final Socket socket;
+        private final DataOutputStream os;
+
+        BridgeTarget(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TcpClient.BUFFER_SIZE));
+        }
+
+        @Override
+        public void send(byte[] data, int length) throws IOException {
+            os.writeInt(length);
+            os.write(data, 0, length);
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Replay the capture file to the target.
+     *
+     * @param path capture file
+     * @param target where to send packets
+     * @param speed replay speed multiplier; 0 or less replays as fast as possible
+     * @param direction direction to replay or -1 for all
+     * @return number of packets sent
+     * @throws IOException error reading the file or sending
+     */
+    private static long replay(File path, Target target, double speed, int direction) throws IOException {
+        long sent = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        long first = -1;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            byte[] magic = new byte[PduCapture.MAGIC.length];
+            dis.readFully(magic);
+            if (!Arrays.equals(magic, PduCapture.MAGIC)) {
+                throw new IOException("Not a capture file: " + path);
+            }
+            dis.readLong(); //start epoch
+            long end = dis.readLong();
+            long count = dis.readLong();
+            LOGGER.log(Level.INFO, "Replaying {0} records", count);
+
+            long position = PduCapture.HEADER_SIZE;
+            byte[] data = new byte[TcpClient.BUFFER_SIZE];
+            while (position < end) {
+                long nanos;
+                try {
+                    nanos = dis.readLong();
+                } catch (EOFException ex) {
+                    break;
+                }
+                byte dir = dis.readByte();
+                int length = dis.readInt();
+                if (length > data.length) {
+                    data = new byte[length];
+                }
+                dis.readFully(data, 0, length);
+                position += PduCapture.RECORD_HEADER_SIZE + length;
+
+                if (direction >= 0 && dir != direction) {
+                    continue;
+                }
+
+                //keep the original spacing (scaled by speed) relative to the first replayed record.
+                if (speed > 0) {
+                    if (first < 0) {
+                        first = nanos;
+                    }
+                    long due = start + (long) ((nanos - first) / speed);
+                    long wait = due - System.nanoTime();
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        wait = due - System.nanoTime();
+                    }
+                }
+
+                target.send(data, length);
+                sent++;
+                bytes += length;
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOGGER.log(Level.INFO, "Sent {0} packets ({1} bytes) in {2} s [{3} pps]",
+                new Object[]{sent, bytes, String.format("%.3f", seconds), String.format("%.1f", sent / Math.max(seconds, 1e-9))});
+        return sent;
+    }
+
+    /**
+     * Entry point for replaying a capture.
+     *
+     * @param args command line args
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tF %1$tT] [%4$-7s] %5$s %n");
+
+        int port = TcpServer.TCP_PORT;
+
+        Options opts = new Options();
+        opts.addOption(Option.builder("file").required().numberOfArgs(1).desc("Capture file to replay.").build());
+        opts.addOption("server", true, "Bridge Server to replay into. [Default: multicast group " + Rebroadcaster.MCAST_GRP + ":" + Rebroadcaster.MCAST_PORT + "]");
+        opts.addOption("port", true, "Bridge Server port to connect to. [Default: " + port + "]");
+        opts.addOption("speed", true, "Replay speed multiplier or 'max'. [Default: 1]");
+        opts.addOption("direction", true, "[in | out | all] records to replay. [Default: in]");
+        opts.addOption("loop", true, "Number of times to replay the file. [Default: 1]");
+        opts.addOption("log", true, "Log output level. [Default: " + TcpClient.getLevel() + "]");
+        opts.addOption("help", "Print this message.");
+
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine line = parser.parse(opts, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("cnr-replay", opts, true);
+                System.exit(0);
+            }
+
+            if (line.hasOption("log")) {
+                Level level = Level.parse(line.getOptionValue("log"));
+                TcpClient.setLevel(level);
+                LOGGER.log(level, "Logging Level: {0}", level);
+            }
+
+            if (line.hasOption("port")) {
+                port = Integer.parseInt(line.getOptionValue("port"));
+            }
+
+            String speedValue = line.getOptionValue("speed", "1");
+            double speed = "max".equals(speedValue) ? 0 : Double.parseDouble(speedValue);
+
+            int direction;
+            switch (line.getOptionValue("direction", "in")) {
+                case "in":
+                    direction = PduCapture.INGRESS;
+                    break;
+                case "out":
+                    direction = PduCapture.EGRESS;
+                    break;
+                default:
+                    direction = -1;
+                    break;
+            }
+
+            int loops = Integer.parseInt(line.getOptionValue("loop", "1"));
+            File path = new File(line.getOptionValue("file"));
+
+            try (Target target = line.hasOption("server")
+                    ? new BridgeTarget(line.getOptionValue("server"), port)
+                    : new MulticastTarget()) {
+                for (int ii = 0; ii < loops; ii++) {
+                    replay(path, target, speed, direction);
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        } catch (ParseException pe) {
+            System.out.println(pe.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("cnr-replay", opts, true);
+        }
+    }
+}
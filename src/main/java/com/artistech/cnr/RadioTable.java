@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.LongLongMap;
+
+/**
+ * Tracks the frequency of each radio from its transmitter PDUs, read straight from the PDU bytes, so that signal
+ * PDUs (which don't carry a frequency) can be routed by frequency too.
+ *
+ * Radios are identified by site/application/entity/radio ID packed into a long, as they appear in the first 8 bytes
+ * after the PDU header of transmitter, signal and receiver PDUs.
+ *
+ * Safe for concurrent use without locking the lookups: they read an immutable snapshot of the table, and a
+ * transmitter PDU that changes a radio's frequency publishes a new one.  Frequencies rarely change, so routing a PDU
+ * normally takes no lock and writes nothing.
+ */
+public class RadioTable {
+
+    public static final int TRANSMITTER = 25;
+    public static final int SIGNAL = 26;
+    public static final int RECEIVER = 27;
+    public static final int RADIO_OFFSET = 12;
+    public static final int FREQUENCY_OFFSET = 72;
+    public static final long ENTITY_MASK = ~0xFFFFL;
+
+    //replaced, never changed, once published
+    private volatile LongLongMap frequencies = new LongLongMap();
+
+    /**
+     * Is the PDU a radio PDU with a radio ID?
+     *
+     * @param pdu raw PDU
+     * @return true for transmitter, signal and receiver PDUs
+     */
+    public static boolean isRadio(byte[] pdu) {
+        int type = 255 & pdu[2];
+        return type >= TRANSMITTER && type <= RECEIVER && pdu.length >= RADIO_OFFSET + Long.BYTES;
+    }
+
+    /**
+     * Get the radio ID of a radio PDU.
+     *
+     * @param pdu raw radio PDU
+     * @return packed site/application/entity/radio
+     */
+    public static long radioId(byte[] pdu) {
+        return getLong(pdu, RADIO_OFFSET);
+    }
+
+    /**
+     * Learn from a PDU and get the frequency of the radio that sent it.
+     *
+     * @param pdu raw radio PDU
+     * @return frequency in Hz, or -1 if not yet known
+     */
+    public long update(byte[] pdu) {
+        long id = radioId(pdu);
+        if ((255 & pdu[2]) == TRANSMITTER && pdu.length >= FREQUENCY_OFFSET + Long.BYTES) {
+            long frequency = getLong(pdu, FREQUENCY_OFFSET);
+            if (frequencies.get(id, -1) != frequency) {
+                learn(id, frequency);
+            }
+            return frequency;
+        }
+        return frequencies.get(id, -1);
+    }
+
+    private synchronized void learn(long id, long frequency) {
+        LongLongMap next = frequencies.copy();
+        next.put(id, frequency);
+        frequencies = next;
+    }
+
+    /**
+     * Read a big-endian long.
+     *
+     * @param b buffer
+     * @param off offset of the long
+     * @return the value
+     */
+    public static long getLong(byte[] b, int off) {
+        long ret = 0;
+        for (int ii = 0; ii < Long.BYTES; ii++) {
+            ret = ret << 8 | (255 & b[off + ii]);
+        }
+        return ret;
+    }
+}
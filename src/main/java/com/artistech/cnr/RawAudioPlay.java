@@ -45,6 +45,18 @@ public class RawAudioPlay implements AutoCloseable, WritableByteChannel {
         line.write(buffer, 0, buffer.length);
     }
 
+    /**
+     * Write part of a byte[] to the audio device.
+     *
+     * @param buffer buffer to write
+     * @param offset start of the audio in the buffer
+     * @param length bytes to write
+     * @throws IOException error writing to the audio line
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        line.write(buffer, offset, length);
+    }
+
     /**
      * Write a ByteBuffer to the audio device.
      *
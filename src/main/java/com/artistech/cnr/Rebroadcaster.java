@@ -3,9 +3,8 @@
  */
 package com.artistech.cnr;
 
-import com.artistech.utils.Mailbox;
+import com.artistech.utils.MappedRing;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
@@ -15,6 +14,10 @@ import java.util.logging.Logger;
 
 /**
  * Rebroadcast data receivied via TCP as UDP
+ *
+ * PDUs are sent through one or more EgressTransports side by side: the primary cast type and any added with
+ * addTransport.  Transports are created when first used, so a process that never rebroadcasts (the BridgeServer)
+ * never binds the rebroadcast port, and sending takes no lock of its own.
  */
 public class Rebroadcaster {
 
@@ -22,73 +25,116 @@ public class Rebroadcaster {
         None,
         Uni,
         Multi,
-        Broad
+        Broad,
+        Shm
     }
 
-    private class RebroadcastThread implements Runnable {
+    private static final EgressTransport[] NONE = new EgressTransport[0];
+    private static final AtomicBoolean halted = new AtomicBoolean(false);
+    private static final Logger LOGGER = Logger.getLogger(Rebroadcaster.class.getName());
+    public static final int MCAST_PORT = 3000;
+    public static final String MCAST_GRP = "226.0.1.1";
+    private static MappedRing shm = null;
 
-        private final Mailbox<byte[]> data = new Mailbox<>();
-        private Socket sock;
-        private DataOutputStream os;
+    private String broadcastFamily = null;
+    private volatile CastingEnum castType;
+    //guarded by this
+    private final List<CastingEnum> added = new ArrayList<>();
+    private GroupMap groupMap = null;
+    private List<InetAddress> joined = null;
+    //null until first used
+    private volatile EgressTransport[] transports = null;
+    public static final Rebroadcaster INSTANCE = new Rebroadcaster(CastingEnum.Multi);
 
-        public void run() {
-            try {
-                os = new DataOutputStream(sock.getOutputStream());
-                while (!data.isHalted()) {
-                    Collection<byte[]> msgs = data.getMessages();
-                    if (msgs != null) {
-                        for(byte[] msg : msgs) {
-                            os.writeInt(msg.length);
-                            os.write(msg);
-                        }
-                    }
-                    os.flush();
-                }
-            } catch (IOException ex) {
-                halt();
-            }
-        }
+    /**
+     * Set the classifier used to prioritize PDUs sent to unicast clients.  Applies to clients that connect after.
+     *
+     * @param value the classifier
+     */
+    public static void setClassifier(PduClassifier value) {
+        UnicastTransport.setClassifier(value);
+    }
 
-        public void halt() {
-            data.halt();
-            try {
-                os.close();
-            } catch(IOException ex) {}
-        }
+    /**
+     * Bundle PDUs sent to unicast clients.  Applies to clients that connect after.
+     *
+     * @param maxBytes maximum bundle size, 0 to disable bundling
+     * @param maxMillis maximum time a PDU waits for a bundle to fill
+     */
+    public static void setBundling(int maxBytes, long maxMillis) {
+        UnicastTransport.setBundling(maxBytes, maxMillis);
+    }
 
-        @Override
-        public String toString() {
-            return sock.getInetAddress().getHostAddress();
-        }
+    /**
+     * Step the audio sent to congested unicast clients down and back up.  Applies to clients that connect after.
+     *
+     * @param intervalMillis how often each client's congestion is judged, 0 to disable
+     */
+    public static void setAdaptive(long intervalMillis) {
+        UnicastTransport.setAdaptive(intervalMillis);
     }
 
-    private static final AtomicBoolean halted = new AtomicBoolean(false);
-    private final List<RebroadcastThread> tmpList = new ArrayList<>();
-    private static final Logger LOGGER = Logger.getLogger(Rebroadcaster.class.getName());
-    public static final int MCAST_PORT = 3000;
-    public static final String MCAST_GRP = "226.0.1.1";
-    private String broadcastFamily = null;
+    /**
+     * Send PDUs to unicast clients as RELAY frames of the overlay instead of data frames.  Applies to clients that
+     * connect after.
+     *
+     * @param overlay the overlay, null for the full mesh
+     */
+    public static void setRelay(RelayOverlay overlay) {
+        UnicastTransport.setRelay(overlay);
+    }
 
-    private ServerSocket server;
-    private final Map<String, RebroadcastThread> clientStreams = new HashMap<>();
+    /**
+     * Also write PDUs to a shared-memory ring for co-located readers such as the sniffer.  When there is no
+     * datagram transport, the PDUs sent are written; otherwise the forwarder writes what it hears on the datagram
+     * socket, which already includes what is rebroadcast.  Applies to transports created after.
+     *
+     * @param ring the ring, null for none
+     */
+    public static void setShm(MappedRing ring) {
+        shm = ring;
+    }
 
-    private CastingEnum castType;
+    /**
+     * Get the shared-memory ring.
+     *
+     * @return the ring, null if there is none
+     */
+    public static MappedRing getShm() {
+        return shm;
+    }
 
-    private DatagramSocket socket;
-    private InetAddress group;
-    public static final Rebroadcaster INSTANCE;
-    private Thread serverThread;
+    /**
+     * Send multicast PDUs to groups by exercise or frequency, and listen only on some of them.  Resets the
+     * transports if they are open and multicasting.
+     *
+     * @param map group for each PDU, null to send everything to the default group
+     * @param join groups to listen on, null for the default group only
+     * @throws IOException error resetting
+     */
+    public synchronized void setGroups(GroupMap map, List<InetAddress> join) throws IOException {
+        groupMap = map;
+        joined = join;
+        if(transports != null && has(CastingEnum.Multi)) {
+            resetSocket();
+        }
+    }
 
     /**
-     * Static Constructor
+     * Also send through another kind of transport, alongside the primary one.  Resets the transports if they are
+     * open.
+     *
+     * @param type the cast type
+     * @throws IOException error resetting
      */
-    static {
-        Rebroadcaster inst = null;
-        try {
-            //default to multicast
-            inst = new Rebroadcaster(CastingEnum.Multi);
-        } catch(IOException ex) {}
-        INSTANCE = inst;
+    public synchronized void addTransport(CastingEnum type) throws IOException {
+        if(type == CastingEnum.None || type == castType || added.contains(type)) {
+            return;
+        }
+        added.add(type);
+        if(transports != null) {
+            resetSocket();
+        }
     }
 
     /**
@@ -110,37 +156,35 @@ public class Rebroadcaster {
     }
 
     /**
-     * Close all resources
+     * Will PDUs sent come back to the forwarder?  True when there is a datagram transport, as multicast and
+     * broadcast loop back.
      *
-     * @throws IOException error closing
+     * @return true if sent PDUs must be recognised when they are heard again
      */
-    private void close() {
-        castType = CastingEnum.None;
-
-        if(server != null) {
-            try {
-                LOGGER.log(Level.FINE, "Closing ServerSocket");
-                server.close();
-                LOGGER.log(Level.FINE, "Closed ServerSocket");
-            } catch(IOException ex) {
+    public boolean loopsBack() {
+        for(EgressTransport t : transports()) {
+            if(t instanceof DatagramTransport) {
+                return true;
             }
-        } else {
-            LOGGER.log(Level.FINE, "ServerSocket is null");
-        }
-
-        //this should fire when server closes...
-        //close all open client connections.
-        for(RebroadcastThread client : Rebroadcaster.this.clientStreams.values()) {
-            client.halt();
         }
-        Rebroadcaster.this.clientStreams.clear();
+        return false;
+    }
 
-        if(socket != null) {
-            socket.close();
-        }
+    private boolean has(CastingEnum type) {
+        return castType == type || castType != CastingEnum.None && added.contains(type);
+    }
 
-        if(serverThread != null) {
-            serverThread.interrupt();
+    /**
+     * Close all resources
+     */
+    private synchronized void close() {
+        castType = CastingEnum.None;
+        EgressTransport[] open = transports;
+        transports = NONE;
+        if(open != null) {
+            for(EgressTransport t : open) {
+                t.close();
+            }
         }
     }
 
@@ -156,77 +200,88 @@ public class Rebroadcaster {
     /**
      * Reset the socket.
      *
-     * @param castType if true, use multicast; if false, use broadcast.
+     * @param castType primary cast type
+     * @param address an address on the subnet to broadcast to, null for the first interface's
      * @throws IOException error if resetting.
      */
-    public void resetSocket(CastingEnum castType, String address) throws IOException {
+    public synchronized void resetSocket(CastingEnum castType, String address) throws IOException {
         close();
         broadcastFamily = address;
         this.castType = castType;
-        //castType = multicast ? CastingEnum.Multi : CastingEnum.Broad;
 
         halted.set(false);
-        if(castType == CastingEnum.Multi) {
-            group = InetAddress.getByName(MCAST_GRP);
-            MulticastSocket ms = new MulticastSocket(MCAST_PORT);
-
-            //only listen to multicast from localhost
-            //CNR should be setup to only multicast to localhost as well
-            ms.setInterface(InetAddress.getLoopbackAddress());
-            ms.joinGroup(group);
-            socket = ms;
-        } else if(castType == CastingEnum.Broad){
-            if(broadcastFamily == null) {
-                group = listAllBroadcastAddresses().get(0);
-            }
-            else {
-                //set off of the address base:
-                //x.y.z.255
-                int index = address.lastIndexOf('.');
-                address = address.substring(0, index) + "255";
-                group = InetAddress.getByName(address);
-            }
-            //group = InetAddress.getByName("255.255.255.255");
-            LOGGER.log(Level.INFO, "Broadcast Address: {0}", new Object[]{group.getHostAddress()});
-
-            socket = new DatagramSocket();
-            socket.setBroadcast(true);
-        } else if (castType == CastingEnum.Uni) {
-            halted.set(false);
-            server = new ServerSocket(MCAST_PORT);
-
-            Thread t = new Thread(() -> {
-                LOGGER.log(Level.FINER, "Starting Socket Server...");
-                while(Rebroadcaster.this.castType == CastingEnum.Uni && !halted.get()) {
+        //asked for by name, so open now: unicast clients connect before anything is sent
+        transports = open();
+    }
+
+    /**
+     * Get the transports, creating them on first use.
+     *
+     * @return the transports, empty if they could not be created
+     */
+    private EgressTransport[] transports() {
+        EgressTransport[] ret = transports;
+        if(ret == null) {
+            synchronized(this) {
+                ret = transports;
+                if(ret == null) {
                     try {
-                        //create a client connection
-                        Socket client = server.accept();
-
-                        if(!clientStreams.containsKey(client.getInetAddress().getHostAddress())) {
-                            LOGGER.log(Level.FINER, "Received Connection: {0}", client.getInetAddress().getHostAddress());
-                            RebroadcastThread rt = new RebroadcastThread();
-                            rt.sock = client;
-                            Thread t2 = new Thread(rt);
-                            t2.setDaemon(true);
-                            t2.start();
-                            clientStreams.put(rt.toString(), rt);
-                        } else {
-                            client.close();
-                        }
+                        ret = open();
                     } catch(IOException ex) {
-                        //this should fire when server closes...
-                        //close all open client connections.
-                        for(RebroadcastThread client : Rebroadcaster.this.clientStreams.values()) {
-                            client.halt();
-                        }
-                        Rebroadcaster.this.clientStreams.clear();
+                        LOGGER.log(Level.SEVERE, "Unable to open " + castType, ex);
+                        ret = NONE;
                     }
+                    transports = ret;
                 }
-            });
+            }
+        }
+        return ret;
+    }
 
-            t.setDaemon(true);
-            t.start();
-            serverThread = t;
+    /**
+     * Create the transports: the primary one, those added and the shared-memory ring.
+     */
+    private EgressTransport[] open() throws IOException {
+        List<EgressTransport> ret = new ArrayList<>();
+        if(castType != CastingEnum.None) {
+            List<CastingEnum> types = new ArrayList<>();
+            types.add(castType);
+            types.addAll(added);
+            try {
+                for(CastingEnum type : types) {
+                    ret.add(create(type));
+                }
+            } catch(IOException ex) {
+                for(EgressTransport t : ret) {
+                    t.close();
+                }
+                throw ex;
+            }
+            MappedRing ring = shm;
+            if(ring != null && !types.contains(CastingEnum.Shm)
+                    && ret.stream().noneMatch(t -> t instanceof DatagramTransport)) {
+                ret.add(new ShmTransport(ring));
+            }
+        }
+        LOGGER.log(Level.FINE, "Transports: {0}", ret.stream().map(EgressTransport::getType).toArray());
+        return ret.toArray(NONE);
+    }
+
+    private EgressTransport create(CastingEnum type) throws IOException {
+        switch(type) {
+            case Multi:
+                return new MulticastTransport(groupMap, joined);
+            case Broad:
+                return new BroadcastTransport(broadcastFamily);
+            case Uni:
+                return new UnicastTransport();
+            case Shm:
+                if(shm == null) {
+                    throw new IOException("No shared-memory ring");
+                }
+                return new ShmTransport(shm);
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + type);
         }
     }
 
@@ -269,53 +324,64 @@ public class Rebroadcaster {
     }
 
     /**
-     * Utilize a singleton of rebroadcaster to reduce likelyhood of feedback.
-     *
-     * @throws IOException
+     * Utilize a singleton of rebroadcaster to reduce likelyhood of feedback.  Nothing is opened until used.
      */
-    private Rebroadcaster(CastingEnum castType) throws IOException{
-        resetSocket(castType, broadcastFamily);
+    private Rebroadcaster(CastingEnum castType) {
+        this.castType = castType;
     }
 
     /**
      * Send a packet of data to uni-, multi-, or broadcast.
      *
      * @param buf the buffer to send.
-     * @throws IOException error sending.
+     * @throws IOException error sending; every transport is still tried.
      */
-    public synchronized void send(byte[] buf) throws IOException {
-        switch(castType) {
-            case Uni:
-                LOGGER.log(Level.FINEST, "Unicasting to clients");
-                //for each attached client, send the data to the client.
-                tmpList.clear();
-                tmpList.addAll(clientStreams.values());
-                for(RebroadcastThread clientStream : tmpList) {
-                    //wrap in a try so that if one client fails, it still goes to the rest.
-                    LOGGER.log(Level.FINEST, "Unicasting to client: {0}", new Object[]{clientStream});
-                    clientStream.data.addMessage(buf);
-                }
-                break;
-            case Broad: //same logic as multi...
-            case Multi:
-                LOGGER.log(Level.FINEST, "Broadcasting on {0} channel", new Object[]{this.castType});
-                DatagramPacket packet = new DatagramPacket(buf, buf.length, group, MCAST_PORT);
-                socket.send(packet);
-                LOGGER.log(Level.FINEST, "Sent on {0} channel", new Object[]{this.castType});
-                break;
-            default:
-                //not currently initialized...
-                LOGGER.log(Level.WARNING, "Not currently initialized");
-                break;
+    public void send(byte[] buf) throws IOException {
+        EgressTransport[] open = transports();
+        if(open.length == 0) {
+            //not currently initialized...
+            LOGGER.log(Level.WARNING, "Not currently initialized");
+            return;
+        }
+        IOException error = null;
+        for(EgressTransport t : open) {
+            try {
+                t.send(buf);
+            } catch(IOException ex) {
+                error = ex;
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Relay a frame of the overlay to the unicast clients other than the neighbour it came from.
+     *
+     * @param pdu the PDU, to classify
+     * @param payload RELAY payload
+     * @param from host the frame came from
+     */
+    public void relay(byte[] pdu, byte[] payload, String from) {
+        for(EgressTransport t : transports()) {
+            if(t instanceof UnicastTransport) {
+                ((UnicastTransport) t).relay(pdu, payload, from);
+            }
         }
     }
 
     /**
      * Get the socket.
      *
-     * @return the current Datagram socket.
+     * @return the current Datagram socket, null if there is no datagram transport.
      */
     public DatagramSocket getSocket() {
-        return socket;
+        for(EgressTransport t : transports()) {
+            if(t instanceof DatagramTransport) {
+                return ((DatagramTransport) t).getSocket();
+            }
+        }
+        return null;
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay tree between XCN nodes, in place of the full mesh.
+ *
+ * In the full mesh every XCN node connects to every other node's unicast server, so each PDU from a bridge is sent
+ * N-1 times by the node it arrived at.  In the overlay the nodes, sorted by address, form a tree of the given degree
+ * (node i's parent is (i-1)/degree and its children are i*degree+1 to i*degree+degree) and each node connects only
+ * to its neighbours in the tree.  A PDU from the bridge is sent to the neighbours in a RELAY frame carrying its origin
+ * and sequence number; a node receiving one forwards the PDU over its own bridge and relays the frame on to its
+ * other neighbours.  Each node then sends a PDU at most degree+1 times, and a PDU crosses at most twice the depth of
+ * the tree to reach every node.
+ *
+ * Nodes drop RELAY frames they have already seen, by origin and sequence, so a frame that arrives again over a
+ * reconnected or redundant link is not delivered twice.  Each origin picks a random id when it starts, so a restarted
+ * node's sequence numbers are not mistaken for old ones.
+ */
+public class RelayOverlay {
+
+    /**
+     * Bytes before the PDU in a RELAY frame: origin (8), sequence (8), hops (4).
+     */
+    public static final int HEADER = 20;
+    private static final int HOPS_OFFSET = 16;
+    //sequences behind the highest seen from an origin that are still remembered
+    private static final int WINDOW = Long.SIZE;
+    private static final int MAX_ORIGINS = 1024;
+
+    private final int degree;
+    private final long origin = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong originated = Metrics.counter("relay.originated");
+    private final AtomicLong accepted = Metrics.counter("relay.accepted");
+    private final AtomicLong duplicates = Metrics.counter("relay.duplicates");
+    private volatile int maxHops = 0;
+    //origin to {highest sequence, bit i set if highest - i was seen}, least recently heard origin first
+    private final Map<Long, long[]> seen = new LinkedHashMap<Long, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > MAX_ORIGINS;
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param degree children of each node in the tree
+     */
+    public RelayOverlay(int degree) {
+        this.degree = Math.max(1, degree);
+        Metrics.gauge("relay.hops.max", () -> maxHops);
+    }
+
+    /**
+     * Get the degree of the tree.
+     *
+     * @return children of each node
+     */
+    public int getDegree() {
+        return degree;
+    }
+
+    /**
+     * Get a node's neighbours in the tree.  Every node must be given the same hosts, in any order.
+     *
+     * @param hosts all of the nodes, including this one
+     * @param self this node
+     * @return the parent and children of this node, empty if it isn't one of the hosts
+     */
+    public List<String> neighbours(List<String> hosts, String self) {
+        List<String> sorted = new ArrayList<>(new TreeSet<>(hosts));
+        List<String> ret = new ArrayList<>();
+        int index = sorted.indexOf(self);
+        if (index < 0) {
+            return ret;
+        }
+        if (index > 0) {
+            ret.add(sorted.get((index - 1) / degree));
+        }
+        for (int ii = index * degree + 1; ii <= index * degree + degree && ii < sorted.size(); ii++) {
+            ret.add(sorted.get(ii));
+        }
+        return ret;
+    }
+
+    /**
+     * Make the RELAY payload for a PDU originating here.
+     *
+     * @param pdu the PDU
+     * @return RELAY payload
+     */
+    public byte[] wrap(byte[] pdu) {
+        byte[] ret = new byte[HEADER + pdu.length];
+        ByteBuffer.wrap(ret).putLong(origin).putLong(sequence.getAndIncrement()).putInt(0);
+        System.arraycopy(pdu, 0, ret, HEADER, pdu.length);
+        originated.incrementAndGet();
+        return ret;
+    }
+
+    /**
+     * Accept a RELAY payload from a neighbour, counting the hop so it may be relayed on.
+     *
+     * @param payload RELAY payload; its hop count is incremented
+     * @return a copy of the PDU, or null if the frame is malformed, was seen before or originated here
+     */
+    public byte[] accept(byte[] payload) {
+        if (payload.length < HEADER) {
+            return null;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(payload);
+        long from = bb.getLong();
+        long seq = bb.getLong();
+        int hops = bb.getInt() + 1;
+        if (from == origin || !first(from, seq)) {
+            duplicates.incrementAndGet();
+            return null;
+        }
+        bb.putInt(HOPS_OFFSET, hops);
+        if (hops > maxHops) {
+            maxHops = hops;
+        }
+        accepted.incrementAndGet();
+        byte[] pdu = new byte[payload.length - HEADER];
+        System.arraycopy(payload, HEADER, pdu, 0, pdu.length);
+        return pdu;
+    }
+
+    /**
+     * Record a sequence from an origin.
+     *
+     * @param from origin
+     * @param seq sequence
+     * @return true if it hasn't been seen before; sequences too far behind the highest seen count as seen
+     */
+    private synchronized boolean first(long from, long seq) {
+        long[] w = seen.get(from);
+        if (w == null) {
+            seen.put(from, new long[]{seq, 1});
+            return true;
+        }
+        if (seq > w[0]) {
+            long shift = seq - w[0];
+            w[1] = shift >= WINDOW ? 1 : w[1] << shift | 1;
+            w[0] = seq;
+            return true;
+        }
+        long back = w[0] - seq;
+        if (back >= WINDOW || (w[1] & 1L << back) != 0) {
+            return false;
+        }
+        w[1] |= 1L << back;
+        return true;
+    }
+}
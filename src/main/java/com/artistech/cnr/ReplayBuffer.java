@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Time-bounded ring of recently sent frames, used to replay frames a peer missed while reconnecting.
+ * Not thread safe; guarded by the owning ResumeSession.
+ */
+public class ReplayBuffer {
+
+    /**
+     * A sent frame.
+     */
+    public static class Entry {
+        public final long seq;
+        public final long nanos;
+        public final byte[] data;
+
+        Entry(long seq, long nanos, byte[] data) {
+            this.seq = seq;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final long windowNanos;
+    private final int capacity;
+
+    /**
+     * Constructor.
+     *
+     * @param windowMillis how long frames are kept
+     * @param capacity maximum number of frames kept
+     */
+    public ReplayBuffer(long windowMillis, int capacity) {
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a frame.  The data is copied.
+     *
+     * @param seq sequence number of the frame
+     * @param data buffer holding the frame
+     * @param offset start of the frame
+     * @param length length of the frame
+     */
+    public void add(long seq, byte[] data, int offset, int length) {
+        long now = System.nanoTime();
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        entries.addLast(new Entry(seq, now, copy));
+        while (entries.size() > capacity) {
+            entries.removeFirst();
+        }
+        expire(now);
+    }
+
+    /**
+     * Get frames with a sequence number of at least the given value that are still inside the window.
+     *
+     * @param from first sequence number wanted
+     * @return frames in sequence order
+     */
+    public List<Entry> since(long from) {
+        expire(System.nanoTime());
+        List<Entry> ret = new ArrayList<>();
+        Iterator<Entry> it = entries.descendingIterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.seq < from) {
+                break;
+            }
+            ret.add(e);
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * Drop frames older than the window.
+     *
+     * @param now current nano time
+     */
+    private void expire(long now) {
+        while (!entries.isEmpty() && now - entries.peekFirst().nanos > windowNanos) {
+            entries.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * State of the logical link to the peer on the other side of the bridge, kept across reconnects.
+ *
+ * Every data frame sent is numbered.  When a connection is made both sides send a RESUME with the number of frames
+ * received from the other.  With a replay buffer, frames sent after connecting are held until the peer's RESUME
+ * arrives, then the frames it missed (that are still inside the window) are written, followed by the held frames.
+ * A SYNC carrying the sequence number of the next frame precedes them so the receiver's count stays correct even if
+ * frames expired from the window.  A peer that sends no RESUME within HOLD_TIMEOUT_MS is sent the held frames anyway.
+ *
+ * The reader only records the peer's RESUME; the replay is written by the thread that sends, when it next sends or
+ * when woken, so a reader never blocks on a write while the peer is doing the same.
+ */
+public class ResumeSession implements FrameReader.ControlListener {
+
+    private static final Logger LOGGER = Logger.getLogger(ResumeSession.class.getName());
+
+    public static final long HOLD_TIMEOUT_MS = 2000;
+    private static final long NONE = Long.MIN_VALUE;
+    private static ScheduledExecutorService timer = null;
+
+    //sending state, guarded by this
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final ReplayBuffer sent;
+    private long nextSeq = 1;
+    private long attachSeq = 1;
+    private FrameWriter writer;
+    private Socket socket;
+    private boolean holding = false;
+    private long holdUntil = 0;
+    //first sequence the peer asked for in its RESUME, -1 for none, NONE until one arrives
+    private final AtomicLong resumeFrom = new AtomicLong(NONE);
+    private volatile Runnable wakeup = null;
+
+    //receiving state, guarded by receiveLock so that reading never waits on a blocked write
+    private final Object receiveLock = new Object();
+    private long peerEpoch = 0;
+    private long received = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param sent replay buffer of sent frames, null to disable replay
+     */
+    public ResumeSession(ReplayBuffer sent) {
+        this.sent = sent;
+    }
+
+    /**
+     * Set how the sending thread is woken to write a replay or release held frames when it has nothing else to
+     * send; it should call flush().
+     *
+     * @param value wakes the sending thread, null to wait for the next send
+     */
+    public void setWakeup(Runnable value) {
+        wakeup = value;
+    }
+
+    /**
+     * Attach a new connection and send the RESUME handshake.
+     *
+     * @param socket connection to the bridge
+     * @return writer for the connection
+     * @throws IOException error writing the handshake
+     */
+    public synchronized FrameWriter attach(Socket socket) throws IOException {
+        this.socket = socket;
+        writer = new FrameWriter(socket.getOutputStream());
+        long knownEpoch;
+        long count;
+        synchronized (receiveLock) {
+            knownEpoch = peerEpoch;
+            count = received;
+        }
+        writer.writeControl(Frames.RESUME, epoch, knownEpoch, count);
+        resumeFrom.set(NONE);
+        holding = sent != null;
+        attachSeq = nextSeq;
+        if (holding) {
+            //don't hold for a peer that never resumes
+            holdUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HOLD_TIMEOUT_MS);
+            timer().schedule(this::wake, HOLD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        return writer;
+    }
+
+    /**
+     * Detach the current connection.  Frames sent until the next attach are only buffered.
+     */
+    public synchronized void detach() {
+        writer = null;
+        socket = null;
+        holding = sent != null;
+        resumeFrom.set(NONE);
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "resume-timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return timer;
+    }
+
+    private void wake() {
+        Runnable w = wakeup;
+        if (w != null) {
+            w.run();
+        }
+    }
+
+    /**
+     * Write a replay the peer asked for, or release held frames the peer hasn't asked for in time.  Called on the
+     * sending thread when woken.
+     *
+     * @throws IOException error writing
+     */
+    public synchronized void flush() throws IOException {
+        try {
+            drain();
+        } catch (IOException ex) {
+            fail();
+            throw ex;
+        }
+    }
+
+    /**
+     * Send a data frame, numbering it and keeping it for replay.  If the write fails, the connection is closed so
+     * that the reader notices and the client reconnects.
+     *
+     * @param data buffer holding the PDU
+     * @param offset start of the PDU
+     * @param length length of the PDU
+     * @throws IOException error writing
+     */
+    public synchronized void send(byte[] data, int offset, int length) throws IOException {
+        //before numbering this frame, so a replay ends just before it
+        flush();
+        long seq = nextSeq++;
+        if (sent != null) {
+            sent.add(seq, data, offset, length);
+        }
+        if (holding || writer == null) {
+            return;
+        }
+        try {
+            writer.write(data, offset, length);
+        } catch (IOException ex) {
+            fail();
+            throw ex;
+        }
+    }
+
+    /**
+     * Drop the connection after a failed write, so that the reader notices.
+     *
+     * @throws IOException error closing
+     */
+    private void fail() throws IOException {
+        Socket s = socket;
+        detach();
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    /**
+     * Count a data frame received from the peer.
+     */
+    public void received() {
+        synchronized (receiveLock) {
+            received++;
+        }
+    }
+
+    /**
+     * Handle RESUME and SYNC control frames from the peer.
+     *
+     * @param code control code
+     * @param payload control payload
+     */
+    @Override
+    public void control(int code, ByteBuffer payload) {
+        switch (code) {
+            case Frames.RESUME:
+                long theirEpoch = payload.getLong();
+                long knownEpoch = payload.getLong();
+                long count = payload.getLong();
+                synchronized (receiveLock) {
+                    if (theirEpoch != peerEpoch) {
+                        //a new peer (or a restarted one), start counting again.
+                        peerEpoch = theirEpoch;
+                        received = 0;
+                    }
+                }
+                //leave the writing to the sending thread
+                resumeFrom.set(knownEpoch == epoch && count >= 0 ? count + 1 : -1);
+                wake();
+                break;
+            case Frames.SYNC:
+                long next = payload.getLong();
+                synchronized (receiveLock) {
+                    received = next - 1;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Resume if the peer has asked to, or has taken too long to.
+     *
+     * @throws IOException error writing
+     */
+    private void drain() throws IOException {
+        long from = resumeFrom.getAndSet(NONE);
+        if (from != NONE) {
+            resume(from);
+        } else if (holding && writer != null && System.nanoTime() - holdUntil >= 0) {
+            LOGGER.log(Level.FINE, "No RESUME from the peer, releasing held frames");
+            resume(-1);
+        }
+    }
+
+    /**
+     * Write the frames the peer missed and release held frames.
+     *
+     * @param from first sequence number the peer is missing, -1 for none
+     * @throws IOException error writing
+     */
+    private void resume(long from) throws IOException {
+        if (writer == null) {
+            return;
+        }
+        List<ReplayBuffer.Entry> missed = null;
+        if (sent != null) {
+            //without a usable sequence, only release what was held since this connection was made.
+            missed = sent.since(from > 0 ? from : attachSeq);
+        }
+        if (missed == null || missed.isEmpty()) {
+            writer.writeControl(Frames.SYNC, nextSeq);
+        } else {
+            writer.writeControl(Frames.SYNC, missed.get(0).seq);
+            for (ReplayBuffer.Entry e : missed) {
+                writer.write(e.data);
+            }
+            LOGGER.log(Level.FINE, "Replayed {0} frames from {1}", new Object[]{missed.size(), missed.get(0).seq});
+        }
+        holding = false;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.MappedRing;
+
+/**
+ * Writes PDUs to a shared-memory ring for co-located readers such as the sniffer.
+ */
+public class ShmTransport implements EgressTransport {
+
+    private final MappedRing ring;
+
+    /**
+     * Constructor.
+     *
+     * @param ring the ring; it is not closed with the transport, as the forwarder writes to it as well
+     */
+    public ShmTransport(MappedRing ring) {
+        this.ring = ring;
+    }
+
+    @Override
+    public void send(byte[] pdu) {
+        ring.offer(pdu);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Rebroadcaster.CastingEnum getType() {
+        return Rebroadcaster.CastingEnum.Shm;
+    }
+}
@@ -5,6 +5,7 @@ package com.artistech.cnr;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
@@ -14,6 +15,7 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.artistech.utils.MappedRing;
 import edu.nps.moves.dis.OneByteChunk;
 import edu.nps.moves.disenum.PduType;
 import edu.nps.moves.dis.TransmitterPdu;
@@ -97,31 +99,21 @@ public class Sniffer {
         System.setProperty("java.util.logging.SimpleFormatter.format",
                 "[%1$tF %1$tT] [%4$-7s] %5$s %n");
 
-        InetAddress group = InetAddress.getByName(Rebroadcaster.MCAST_GRP);
-        final MulticastSocket ms = new MulticastSocket(Rebroadcaster.MCAST_PORT);
-        ms.setInterface(InetAddress.getLoopbackAddress());
-//        ms.setInterface(InetAddress.getByName(InetAddress.getLocalHost().getHostName()));
-        ms.joinGroup(group);
-
         Options opts = new Options();
+        opts.addOption("join", true,"Additional multicast groups to listen on, GROUP,...");
         opts.addOption("log", true,"Log output level. [Default: " + TcpClient.getLevel() + "]");
+        opts.addOption("wav", true,"Record the mixed audio to a WAV file instead of playing it.");
+        opts.addOption("jitter", true,"Audio buffered per radio before it plays, in ms. [Default: " + AudioMixer.DEFAULT_JITTER_MS + "]");
+        opts.addOption("shm", true,"Read PDUs from the shared-memory ring written by a co-located cnr-client instead of multicast.");
         opts.addOption("help","Print this message.");
 
         byte[] buffer = new byte[8192];
         LOGGER.log(Level.FINE, "receiving...");
-        final RawAudioPlay rap = new RawAudioPlay();
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            LOGGER.log(Level.FINE, "closing...");
-            rap.close();
-            try {
-                ms.leaveGroup(group);
-                ms.close();
-            } catch(IOException ex) {
-                LOGGER.log(Level.WARNING, null, ex);
-            }
-        }));
 
+        String wav = null;
+        String shm = null;
+        String join = null;
+        int jitter = AudioMixer.DEFAULT_JITTER_MS;
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine line = parser.parse(opts, args);
@@ -131,27 +123,98 @@ public class Sniffer {
                 System.exit(0);
             }
 
+            if(line.hasOption("shm")) {
+                shm = line.getOptionValue("shm");
+            }
+
+            if(line.hasOption("join")) {
+                join = line.getOptionValue("join");
+            }
+
             if(line.hasOption("log")) {
                 String val = line.getOptionValue("log");
                 Level level = Level.parse(val);
                 TcpClient.setLevel(level);
                 LOGGER.log(level, "Logging Level: {0}", level);
             }
+
+            if(line.hasOption("wav")) {
+                wav = line.getOptionValue("wav");
+            }
+            if(line.hasOption("jitter")) {
+                jitter = Integer.parseInt(line.getOptionValue("jitter"));
+            }
         } catch(ParseException pe) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("cnr-sniffer", opts, true);
         }
 
+        //only bind the multicast port when reading multicast, so a ring reader can share a host with a listener
+        final MulticastSocket ms;
+        if(shm == null) {
+            ms = new MulticastSocket(Rebroadcaster.MCAST_PORT);
+            ms.setInterface(InetAddress.getLoopbackAddress());
+//            ms.setInterface(InetAddress.getByName(InetAddress.getLocalHost().getHostName()));
+            ms.joinGroup(InetAddress.getByName(Rebroadcaster.MCAST_GRP));
+            //listen on the groups that frequencies/exercises are mapped to
+            if(join != null) {
+                for(String g : join.split(",")) {
+                    ms.joinGroup(InetAddress.getByName(g.trim()));
+                }
+            }
+        } else {
+            ms = null;
+        }
+
+        //the client creates the ring, so it may not be there yet
+        MappedRing.Reader reader = null;
+        while(shm != null && reader == null) {
+            try {
+                reader = MappedRing.open(new File(shm)).reader("sniffer.shm");
+                LOGGER.log(Level.FINE, "Reading ring {0}", shm);
+            } catch(IOException ex) {
+                LOGGER.log(Level.FINE, "Waiting for ring {0}: {1}", new Object[]{shm, ex.getMessage()});
+                Thread.sleep(1000);
+            }
+        }
+
+        //concurrent radios are mixed rather than interleaved on the line.
+        final AudioMixer mixer = new AudioMixer(wav == null ? new AudioMixer.LineSink() : new AudioMixer.WavSink(new File(wav)),
+                AudioMixer.DEFAULT_FRAME_MS, jitter, Math.max(AudioMixer.DEFAULT_MAX_LATENCY_MS, jitter * 2));
+        mixer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOGGER.log(Level.FINE, "closing...");
+            try {
+                mixer.close();
+                if(ms != null) {
+                    ms.close();
+                }
+            } catch(IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }));
+
         while (true) {
-            DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-            ms.receive(dp);
-            byte[] data = dp.getData();
+            int length;
+            String from;
+            if(reader != null) {
+                length = reader.take(buffer);
+                from = shm;
+            } else {
+                DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+                ms.receive(dp);
+                length = dp.getLength();
+                from = dp.getAddress().getHostAddress() + ":" + dp.getPort();
+            }
+            byte[] data = buffer;
             int pduType = 255 & data[2];
             PduType pduTypeEnum = PduType.lookup[pduType];
             ByteBuffer buf = ByteBuffer.wrap(data);
 
-            LOGGER.log(Level.FINER, "{0}", pduTypeEnum);
-            LOGGER.log(Level.FINER, "{0}:{1}", new Object[]{dp.getAddress().getHostName(), dp.getPort()});
+            if(LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.log(Level.FINER, "{0} {1}", new Object[]{pduTypeEnum, from});
+            }
 
             switch(pduTypeEnum) {
                 case SIGNAL:
@@ -159,10 +222,8 @@ public class Sniffer {
                     spdu.unmarshal(buf);
                     printInfo(spdu);
 
-                    try (ByteArrayOutputStream baos = getData(spdu)) {
-                        //audio is: 16-bit Linear PCM 2's complement, Big Endian (4) <- ENCODING SCHEME 4
-                        rap.write(baos.toByteArray());
-                    }
+                    //audio is: 16-bit Linear PCM 2's complement, Big Endian (4) <- ENCODING SCHEME 4
+                    mixer.add(data, length);
                     break;
                 case TRANSMITTER:
                     TransmitterPdu tpdu = new TransmitterPdu();
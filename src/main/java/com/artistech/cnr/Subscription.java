@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * What a unicast client wants to receive from a Rebroadcaster.
+ *
+ * Written as semicolon separated fields, each a comma separated list; a field that is absent matches everything:
+ *
+ *   exercise=1,2;type=SIGNAL,TRANSMITTER;entity=1.2.3;radio=1.2.3.1;freq=30000000-88000000
+ *
+ * entity and radio (site.application.entity[.radio]) are alternatives: a radio PDU matches if either lists it.
+ * Frequency ranges are in Hz, inclusive.  Radio and frequency fields only apply to radio PDUs (transmitter, signal and
+ * receiver); a radio whose frequency is not yet known matches any range.
+ */
+public class Subscription {
+
+    public static final Subscription ALL = new Subscription(null, null, new long[0], new long[0], new long[0][]);
+
+    //null means any
+    final BitSet exercises;
+    final BitSet types;
+    //empty means any, unless the other is non-empty
+    final long[] entities;
+    final long[] radios;
+    //empty means any
+    final long[][] frequencies;
+
+    private Subscription(BitSet exercises, BitSet types, long[] entities, long[] radios, long[][] frequencies) {
+        this.exercises = exercises;
+        this.types = types;
+        this.entities = entities;
+        this.radios = radios;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Parse a subscription.
+     *
+     * @param spec the subscription
+     * @return the subscription
+     * @throws IllegalArgumentException if the subscription can't be parsed
+     */
+    public static Subscription parse(String spec) {
+        BitSet exercises = null;
+        BitSet types = null;
+        List<Long> entities = new ArrayList<>();
+        List<Long> radios = new ArrayList<>();
+        List<long[]> frequencies = new ArrayList<>();
+
+        for (String field : spec.split(";")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            int eq = field.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Invalid subscription field: " + field);
+            }
+            String name = field.substring(0, eq).trim().toLowerCase();
+            String[] values = field.substring(eq + 1).split(",");
+            switch (name) {
+                case "exercise":
+                    exercises = new BitSet(256);
+                    for (String v : values) {
+                        exercises.set(part(v, 255));
+                    }
+                    break;
+                case "type":
+                    types = new BitSet(256);
+                    for (String v : values) {
+                        types.set(PduClassifier.typeValue(v.trim()));
+                    }
+                    break;
+                case "entity":
+                    for (String v : values) {
+                        entities.add(radioKey(v.trim(), 3));
+                    }
+                    break;
+                case "radio":
+                    for (String v : values) {
+                        radios.add(radioKey(v.trim(), 4));
+                    }
+                    break;
+                case "freq":
+                    for (String v : values) {
+                        String[] range = v.trim().split("-");
+                        long lo = (long) Double.parseDouble(range[0]);
+                        long hi = range.length > 1 ? (long) Double.parseDouble(range[1]) : lo;
+                        frequencies.add(new long[]{Math.min(lo, hi), Math.max(lo, hi)});
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown subscription field: " + name);
+            }
+        }
+        return new Subscription(exercises, types,
+                entities.stream().mapToLong(Long::longValue).toArray(),
+                radios.stream().mapToLong(Long::longValue).toArray(),
+                frequencies.toArray(new long[0][]));
+    }
+
+    /**
+     * Pack site.application.entity[.radio] as it appears in the first 8 bytes after the PDU header.
+     *
+     * @param value dotted ID
+     * @param parts number of parts expected
+     * @return packed ID; the radio part is 0 for an entity
+     */
+    private static long radioKey(String value, int parts) {
+        String[] sp = value.split("\\.");
+        if (sp.length != parts) {
+            throw new IllegalArgumentException("Invalid ID: " + value);
+        }
+        long ret = 0;
+        for (int ii = 0; ii < 4; ii++) {
+            ret = ret << 16 | (ii < parts ? part(sp[ii], 0xFFFF) : 0);
+        }
+        return ret;
+    }
+
+    /**
+     * Parse a number that must fit its field.
+     *
+     * @param value the number
+     * @param max largest value of the field
+     * @return the value
+     * @throws IllegalArgumentException if it isn't a number from 0 to max
+     */
+    private static int part(String value, int max) {
+        int v = Integer.parseInt(value.trim());
+        if (v < 0 || v > max) {
+            throw new IllegalArgumentException("Out of range: " + value.trim());
+        }
+        return v;
+    }
+
+    /**
+     * Does this subscription take everything?
+     *
+     * @return true if no field restricts it
+     */
+    public boolean isAll() {
+        return exercises == null && types == null && entities.length == 0 && radios.length == 0 && frequencies.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "exercise=" + (exercises == null ? "*" : exercises)
+                + ";type=" + (types == null ? "*" : types)
+                + ";entities=" + entities.length + ";radios=" + radios.length
+                + ";freq=" + Arrays.deepToString(frequencies);
+    }
+}
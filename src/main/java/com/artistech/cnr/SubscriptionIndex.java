@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.LongLongMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Routes PDUs to the subscribers whose Subscription matches them.
+ *
+ * Subscriptions are compiled into bit masks with one bit per subscriber: one mask per exercise ID, per PDU type, per
+ * listed entity/radio and per frequency segment.  Routing a PDU is then a few table lookups and an AND of the masks,
+ * independent of how many fields each subscriber set.  The index is rebuilt whenever a subscription changes.
+ *
+ * The frequency of each radio is learned from its transmitter PDUs as they are routed.
+ *
+ * @param <T> Paramaterized type of subscriber
+ */
+public class SubscriptionIndex<T> {
+
+    /**
+     * Compiled masks.  Immutable once built.
+     */
+    private static class Index {
+        final Object[] subscribers;
+        final long[] all;
+        final long[][] exercises = new long[256][];
+        final long[][] types = new long[256][];
+        final long[] anyRadio;
+        final LongLongMap entityIds = new LongLongMap();
+        final LongLongMap radioIds = new LongLongMap();
+        final List<long[]> idMasks = new ArrayList<>();
+        final long[] anyFrequency;
+        final long[] points;
+        final long[][] segments;
+
+        Index(List<?> subs, List<Subscription> specs) {
+            int n = subs.size();
+            int words = (n + 63) >>> 6;
+            subscribers = subs.toArray();
+            all = new long[words];
+            anyRadio = new long[words];
+            anyFrequency = new long[words];
+            for (int ii = 0; ii < 256; ii++) {
+                exercises[ii] = new long[words];
+                types[ii] = new long[words];
+            }
+
+            TreeSet<Long> bounds = new TreeSet<>();
+            for (int bit = 0; bit < n; bit++) {
+                Subscription s = specs.get(bit);
+                set(all, bit);
+                for (int ii = 0; ii < 256; ii++) {
+                    if (s.exercises == null || s.exercises.get(ii)) {
+                        set(exercises[ii], bit);
+                    }
+                    if (s.types == null || s.types.get(ii)) {
+                        set(types[ii], bit);
+                    }
+                }
+                if (s.entities.length == 0 && s.radios.length == 0) {
+                    set(anyRadio, bit);
+                }
+                for (long id : s.entities) {
+                    set(idMask(entityIds, id, words), bit);
+                }
+                for (long id : s.radios) {
+                    set(idMask(radioIds, id, words), bit);
+                }
+                if (s.frequencies.length == 0) {
+                    set(anyFrequency, bit);
+                }
+                for (long[] range : s.frequencies) {
+                    bounds.add(range[0]);
+                    bounds.add(range[1] + 1);
+                }
+            }
+
+            //split the frequency axis at every range boundary; each segment gets the subscribers covering it.
+            points = bounds.stream().mapToLong(Long::longValue).toArray();
+            segments = new long[Math.max(0, points.length - 1)][];
+            for (int seg = 0; seg < segments.length; seg++) {
+                segments[seg] = anyFrequency.clone();
+            }
+            for (int bit = 0; bit < n; bit++) {
+                for (long[] range : specs.get(bit).frequencies) {
+                    int seg = Arrays.binarySearch(points, range[0]);
+                    for (; seg < segments.length && points[seg] <= range[1]; seg++) {
+                        set(segments[seg], bit);
+                    }
+                }
+            }
+        }
+
+        private long[] idMask(LongLongMap ids, long id, int words) {
+            int ii = (int) ids.get(id, -1);
+            if (ii < 0) {
+                ii = idMasks.size();
+                ids.put(id, ii);
+                idMasks.add(new long[words]);
+            }
+            return idMasks.get(ii);
+        }
+
+        long[] idMask(LongLongMap ids, long id) {
+            int ii = (int) ids.get(id, -1);
+            return ii < 0 ? null : idMasks.get(ii);
+        }
+
+        long[] frequencyMask(long frequency) {
+            if (frequency < 0) {
+                return all;
+            }
+            int seg = Arrays.binarySearch(points, frequency);
+            if (seg < 0) {
+                seg = -seg - 2;
+            }
+            return seg < 0 || seg >= segments.length ? anyFrequency : segments[seg];
+        }
+
+        private static void set(long[] mask, int bit) {
+            mask[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    //guarded by this
+    private final Map<T, Subscription> subscriptions = new LinkedHashMap<>();
+    private volatile Index index = new Index(new ArrayList<>(), new ArrayList<>());
+
+    private final RadioTable radios = new RadioTable();
+
+    /**
+     * Add a subscriber, or change its subscription.
+     *
+     * @param subscriber the subscriber
+     * @param subscription what it wants
+     */
+    public synchronized void put(T subscriber, Subscription subscription) {
+        subscriptions.put(subscriber, subscription);
+        rebuild();
+    }
+
+    /**
+     * Remove a subscriber.
+     *
+     * @param subscriber the subscriber
+     */
+    public synchronized void remove(T subscriber) {
+        if (subscriptions.remove(subscriber) != null) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Get the number of subscribers.
+     *
+     * @return number of subscribers
+     */
+    public int size() {
+        return index.subscribers.length;
+    }
+
+    /**
+     * Find the subscribers of a PDU.  Safe to call from several threads.
+     *
+     * @param pdu raw PDU
+     * @param out receives the matching subscribers
+     * @return number of matching subscribers
+     */
+    @SuppressWarnings("unchecked")
+    public int route(byte[] pdu, List<T> out) {
+        Index ix = index;
+        if (ix.subscribers.length == 0 || pdu.length < 3) {
+            return 0;
+        }
+        long[] exercise = ix.exercises[255 & pdu[1]];
+        long[] types = ix.types[255 & pdu[2]];
+
+        long[] entity = null;
+        long[] radio = null;
+        long[] frequency = null;
+        boolean isRadio = RadioTable.isRadio(pdu);
+        if (isRadio) {
+            long id = RadioTable.radioId(pdu);
+            entity = ix.idMask(ix.entityIds, id & RadioTable.ENTITY_MASK);
+            radio = ix.idMask(ix.radioIds, id);
+            frequency = ix.frequencyMask(radios.update(pdu));
+        }
+
+        int count = 0;
+        for (int w = 0; w < ix.all.length; w++) {
+            long m = exercise[w] & types[w];
+            if (isRadio) {
+                long ids = ix.anyRadio[w] | (entity == null ? 0 : entity[w]) | (radio == null ? 0 : radio[w]);
+                m &= ids & frequency[w];
+            }
+            while (m != 0) {
+                int bit = Long.numberOfTrailingZeros(m);
+                m &= m - 1;
+                out.add((T) ix.subscribers[(w << 6) + bit]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void rebuild() {
+        index = new Index(new ArrayList<>(subscriptions.keySet()), new ArrayList<>(subscriptions.values()));
+    }
+}
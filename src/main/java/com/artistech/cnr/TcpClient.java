@@ -6,19 +6,28 @@ package com.artistech.cnr;
 import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import edu.nps.moves.disenum.PduType;
-import edu.nps.moves.dis.SignalPdu;
-import edu.nps.moves.dis.TransmitterPdu;
+import com.artistech.utils.ConnectionManager;
+import com.artistech.utils.MappedRing;
+import com.artistech.utils.Metrics;
+import com.artistech.utils.PriorityScheduler;
+import com.artistech.utils.SpscRing;
+import com.artistech.utils.Trace;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Option;
@@ -35,24 +44,56 @@ public class TcpClient {
 
     private static Thread socketThread = null;
     public static int BUFFER_SIZE = 8192;
-    private static final List<Socket> clients = new ArrayList<>();
-    private static final Object LOCK = new Object();
+    private static final List<Socket> clients = new CopyOnWriteArrayList<>();
     private static final AtomicBoolean halted = new AtomicBoolean(false);
+    private static long minBackoff = ConnectionManager.DEFAULT_MIN_BACKOFF;
+    private static long maxBackoff = ConnectionManager.DEFAULT_MAX_BACKOFF;
+    private static ConnectionManager bridge = null;
+    private static String[] seeds = new String[0];
+    private static int seed = 0;
+    private static int serverPort = TcpServer.TCP_PORT;
+    private static volatile String redirectTo = null;
+    private static boolean redirected = false;
+    private static int redirects = 0;
+    private static final long SEED_ATTEMPTS = 3;
+    private static ResumeSession session = new ResumeSession(null);
+    private static PduClassifier classifier = new PduClassifier();
+    private static PriorityScheduler<byte[]> outbound = null;
+    private static Map<String, Integer> sourceWeights = new HashMap<>();
+    //source of the PDUs heard on the datagram socket
+    private static final String LOCAL_SOURCE = "local";
+    //queued to wake the send stage so the session writes a replay; never sent
+    private static final byte[] RESUME_MARKER = new byte[0];
+    private static SpscRing<byte[]> ingest = null;
+    private static AtomicLong looped = null;
+    private static final int INGEST_CAPACITY = 4096;
+    private static final long DEFAULT_BUNDLE_MS = 20;
+    private static String subscription = null;
+    private static PduFilter.Matcher filter = PduFilter.ALL;
+    private static IdRemapper remapper = null;
+    private static RelayOverlay relay = null;
+    private static final AtomicLong rejected = Metrics.counter("ingest.filtered");
+    private static final int REPLAY_CAPACITY = 4096;
 
     /**
      * Forward data from the multicast/broadcast socket to the tcp socket.
      * This should be on the cnr-side, the xcn-side doesn't handle broadcast well and no multicast at all.
      * cnr-side should be uni-cast
      *
+     * This is the receive stage of the ingest pipeline: it only copies each datagram onto the ingest ring so that
+     * the socket is drained as fast as possible.  If the ring is full the datagram is dropped (and counted) rather
+     * than waiting on the later stages.
+     *
      * @param ms the multicast socket
      * @param socket the tcp socket
      * @throws IOException any error from read/writing socket data
      */
     private static void forward(final DatagramSocket ms, Socket socket) throws IOException {
         byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
         LOGGER.log(Level.FINE, "Starting fowarding service...");
+        LOGGER.log(Level.FINER, "Listening [{0}]", new Object[]{Rebroadcaster.INSTANCE.getCastType()});
 
-        DataOutputStream socketOutputStream = new DataOutputStream(socket.getOutputStream());
         while (!halted.get()) {
             //if the bridge socket is closed, then return.
             if(socket.isClosed()) {
@@ -60,57 +101,89 @@ public class TcpClient {
                 return;
             }
 
-            LOGGER.log(Level.FINEST, "Socket: {0}", new Object[]{socket.getRemoteSocketAddress()});
-            LOGGER.log(Level.FINER, "Listening [{0}]", new Object[]{Rebroadcaster.INSTANCE.getCastType()});
-
             //receive data from the datagram socket.
-            DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+            dp.setLength(buffer.length);
             ms.receive(dp);
+            PduCapture.record(PduCapture.INGRESS, dp.getData(), dp.getOffset(), dp.getLength());
+            MappedRing ring = Rebroadcaster.getShm();
+            if(ring != null) {
+                ring.offer(dp.getData(), dp.getOffset(), dp.getLength());
+            }
+            Trace.event(Trace.Kind.RECEIVE, dp.getLength() > 2 ? 255 & buffer[2] : -1, dp.getLength(), 0);
 
-            byte[] data = dp.getData();
-
-            int pduType = 255 & data[2];
-            PduType pduTypeEnum = PduType.lookup[pduType];
-            ByteBuffer bb = ByteBuffer.wrap(data);
-
-            //log debug data
-            LOGGER.log(Level.FINEST, "PDU Type: {0}", new Object[]{pduTypeEnum});
-            LOGGER.log(Level.FINEST, "Receive From: {0}:{1}", new Object[]{dp.getAddress().getHostName(), dp.getPort()});
-
-            //HACK: we must deserialize the PDU to get the timestamp.
-            //this is so that we don't end up with a feedback loop.
-            //TODO: if we can come up with a better solution to this, that would be great.
-            boolean send;
-
-            //deserialize and get the timestamp.
-            switch (pduTypeEnum) {
-                case TRANSMITTER:
-                    TransmitterPdu tpdu = new TransmitterPdu();
-                    tpdu.unmarshal(bb);
-                    send = !TcpServer.hasSent(tpdu);
-                    break;
-                case SIGNAL:
-                    SignalPdu spdu = new SignalPdu();
-                    spdu.unmarshal(bb);
-                    send = !TcpServer.hasSent(spdu);
-                    break;
-                default:
-                    send = false;
-                    break;
-            }
-
-            //if we are safe to send, forward the packet to the bridge server.
-            if(send) {
-                LOGGER.log(Level.FINEST, "Forwarding to datagram socket...");
-                //write the length
-                socketOutputStream.writeInt(data.length);
-                //write the data
-                socketOutputStream.write(data);
-                socketOutputStream.flush();
-            } else {
-                LOGGER.log(Level.FINEST, "Found Sent Packet");
+            //reject unwanted traffic before doing any more work on it.
+            if(!filter.test(dp.getData(), dp.getLength())) {
+                rejected.incrementAndGet();
+                Trace.event(Trace.Kind.DROP, dp.getLength() > 2 ? 255 & buffer[2] : -1, dp.getLength(), Trace.DROP_FILTER);
+                continue;
+            }
+
+            //copy out of the receive buffer; the copy is handed to the classify stage.
+            byte[] data = Arrays.copyOfRange(dp.getData(), dp.getOffset(), dp.getOffset() + dp.getLength());
+            if(remapper != null) {
+                remapper.outbound(data, data.length);
+            }
+            if(!ingest.offer(data)) {
+                Trace.event(Trace.Kind.DROP, data.length > 2 ? 255 & data[2] : -1, data.length, Trace.DROP_INGEST_FULL);
+            }
+        }
+    }
+
+    /**
+     * Get the cast type named on the command line.
+     *
+     * @param name uni, multi or broad
+     * @return the cast type, null if unknown
+     */
+    private static Rebroadcaster.CastingEnum castType(String name) {
+        switch(name) {
+            case "uni":
+                return Rebroadcaster.CastingEnum.Uni;
+            case "multi":
+                return Rebroadcaster.CastingEnum.Multi;
+            case "broad":
+                return Rebroadcaster.CastingEnum.Broad;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Classify stage of the ingest pipeline: drop PDUs that were received from the bridge and looped back by
+     * multicast/broadcast, and queue the rest by priority for the send stage.
+     */
+    private static void classify() {
+        byte[] data;
+        while ((data = ingest.take()) != null) {
+            if(data.length < 3) {
+                continue;
             }
+            if(isLoopback(data)) {
+                looped.incrementAndGet();
+                Trace.event(Trace.Kind.DEDUP, 255 & data[2], data.length, 0);
+                continue;
+            }
+
+            //queue the frame by priority for the bridge writer
+            int cls = classifier.classify(data);
+            outbound.offer(cls, LOCAL_SOURCE, data);
+            Trace.event(Trace.Kind.FORWARD, 255 & data[2], data.length, cls);
+        }
+    }
+
+    /**
+     * Check if a PDU was sent out by this client after being received from the bridge.
+     *
+     * @param data raw PDU
+     * @return true if the PDU should not be forwarded; PDU types without a PduHandler are never forwarded
+     */
+    private static boolean isLoopback(byte[] data) {
+        PduHandler handler = PduHandler.of(data);
+        if(handler == null || !handler.isForwarded(data.length)) {
+            return true;
         }
+        //the type and timestamp are read in place, so that we don't end up with a feedback loop.
+        return TcpServer.hasSent(handler.dedupKey(data));
     }
 
     /**
@@ -123,64 +196,95 @@ public class TcpClient {
      */
     private static void forward(String[] clients, final Socket socket) {
         List<String> addrs = new ArrayList<>();
-        DataOutputStream sosTemp = null;
         try {
             addrs.addAll(Rebroadcaster.listAllAddresses());
-            sosTemp = new DataOutputStream(socket.getOutputStream());
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
 
-        //socketOutputStream is shared between all of the threads
-        final DataOutputStream socketOutputStream = sosTemp;
-
         List<Thread> threads = new ArrayList<>();
+        List<ConnectionManager> peers = new ArrayList<>();
+
+        //in the overlay only connect to the neighbours in the tree
+        List<String> hosts = Arrays.asList(clients);
+        if(relay != null) {
+            String self = null;
+            for(String host : clients) {
+                if(addrs.contains(host)) {
+                    self = host;
+                }
+            }
+            if(self != null) {
+                hosts = relay.neighbours(hosts, self);
+                LOGGER.log(Level.FINE, "Relay neighbours of {0}: {1}", new Object[]{self, hosts});
+            } else {
+                LOGGER.log(Level.WARNING, "This node is not one of the clients, connecting to all of them");
+            }
+        }
 
         //for each host inside xcn/emane, try to connect
-        for(String host : clients) {
+        for(String host : hosts) {
             //do not connect to self
             if(!addrs.contains(host)) {
+                final ConnectionManager peer = new ConnectionManager(host, Rebroadcaster.MCAST_PORT,
+                        ConnectionManager.DEFAULT_CONNECT_TIMEOUT, minBackoff, maxBackoff);
+                peers.add(peer);
+
                 //create a new thread for reading data from the network from the connected host
                 Thread t = new Thread(() -> {
 
                     //loop forever 1: keep trying to connect
                     while (!halted.get()) {
+                        //connect to the xcn/emane node, backing off while it is unreachable
+                        final Socket client = peer.connect();
+                        if (client == null) {
+                            break;
+                        }
+                        TcpClient.clients.add(client);
+                        Heartbeat heartbeat = null;
                         try {
-                            //connect to the xcn/emane node
-                            final Socket client = new Socket(host, Rebroadcaster.MCAST_PORT);
-                            TcpClient.clients.add(client);
+                            //only ask for what this node needs
+                            FrameWriter writer = new FrameWriter(client.getOutputStream());
+                            if (subscription != null && relay == null) {
+                                writer.writeControl(Frames.SUBSCRIBE, subscription.getBytes(StandardCharsets.UTF_8));
+                            }
+                            heartbeat = new Heartbeat("heartbeat.peer." + host, writer, (code, payload) -> {
+                                if (code == Frames.RELAY && relay != null) {
+                                    relayed(host, payload);
+                                }
+                            }, () -> {
+                                try {
+                                    client.close();
+                                } catch (IOException ex) {
+                                }
+                            }).start();
 
-                            //get an input stream from the client
-                            DataInputStream dIn = new DataInputStream(client.getInputStream());
+                            //get a frame reader from the client; bundles are unpacked by the reader
+                            FrameReader reader = new FrameReader(client.getInputStream(), heartbeat);
 
                             LOGGER.log(Level.FINEST, "Socket: {0}", new Object[]{socket.getRemoteSocketAddress()});
                             LOGGER.log(Level.FINER, "Listening [{0}]", new Object[]{"uni"});
 
                             //loop forever 2: keep reading data
                             while (!halted.get()) {
-                                //read the length
-                                int length = dIn.readInt();
-                                byte[] data = null;
                                 // read the message
-                                if (length > 0) {
-                                    data = new byte[length];
-                                    dIn.readFully(data, 0, data.length);
-                                }
-
-                                LOGGER.log(Level.FINEST, "Forwarding to {0}", host);
-                                //the lock here is to stop incoming data from xcn to write
-                                //one at a time through the bridge.
-                                synchronized (LOCK) {
-                                    //write the length
-                                    socketOutputStream.writeInt(data.length);
-                                    //write the data
-                                    socketOutputStream.write(data);
-                                    socketOutputStream.flush();
+                                byte[] data = reader.read();
+                                if (data.length > 0) {
+                                    deliver(host, data);
                                 }
                             }
-                            TcpClient.clients.remove(client);
                         } catch (IOException ex) {
                             //LOGGER.log(Level.FINEST, "{0}: {1}:{2} - isClosed: {3}", new Object[]{ex.getMessage(), host, Rebroadcaster.MCAST_PORT, socket.isClosed()});
+                        } finally {
+                            if (heartbeat != null) {
+                                heartbeat.stop();
+                            }
+                            TcpClient.clients.remove(client);
+                            try {
+                                client.close();
+                            } catch (IOException ex) {
+                            }
+                            peer.disconnected();
                         }
                     }
                     LOGGER.log(Level.FINER, "Forward thread to {0} shutdown...", host);
@@ -195,43 +299,146 @@ public class TcpClient {
                 Thread.sleep(100);
             } catch(Exception ex) {}
         }
+        for(ConnectionManager peer : peers) {
+            LOGGER.log(Level.FINER, "Peer {0}: {1} reconnects, {2} failed attempts",
+                    new Object[]{peer, peer.getReconnects(), peer.getFailures()});
+            peer.halt();
+        }
         for(Thread t : threads) {
             t.interrupt();
         }
     }
 
     /**
-     * Send data from the multicast socket to the specified host/port pair.
+     * Queue a PDU from a unicast peer for the bridge.
+     *
+     * @param host the peer
+     * @param data the PDU
+     */
+    private static void deliver(String host, byte[] data) {
+        PduCapture.record(PduCapture.INGRESS, data, 0, data.length);
+
+        //the scheduler serializes incoming data from xcn to write
+        //one at a time through the bridge.
+        if (filter.test(data, data.length)) {
+            if (remapper != null) {
+                remapper.outbound(data, data.length);
+            }
+            int cls = classifier.classify(data);
+            outbound.offer(cls, host, data);
+            Trace.event(Trace.Kind.FORWARD, data.length > 2 ? 255 & data[2] : -1, data.length, cls);
+        } else {
+            rejected.incrementAndGet();
+            Trace.event(Trace.Kind.DROP, data.length > 2 ? 255 & data[2] : -1, data.length, Trace.DROP_FILTER);
+        }
+    }
+
+    /**
+     * Handle a RELAY frame from a neighbour in the overlay: relay it on to the other neighbours and queue its PDU for
+     * the bridge, unless it was seen before.
+     *
+     * @param host the neighbour
+     * @param payload RELAY payload
+     */
+    private static void relayed(String host, ByteBuffer payload) {
+        byte[] frame = new byte[payload.remaining()];
+        payload.get(frame);
+        byte[] data = relay.accept(frame);
+        if (data == null) {
+            return;
+        }
+        //relay before delivering, as remapping changes the PDU
+        Rebroadcaster.INSTANCE.relay(data, frame, host);
+        deliver(host, data);
+    }
+
+    /**
+     * Start the classify and send stages of the ingest pipeline.  The send stage drains the outbound scheduler to
+     * the bridge, highest priority first and, within a class, sharing the bridge between the sources (the local
+     * datagram socket and each unicast peer) by their weights.  Both run for the life of the process; while the bridge is disconnected
+     * the session holds (or drops) frames.
+     */
+    private static void startPipeline() {
+        ingest = new SpscRing<>("ingest.received", INGEST_CAPACITY);
+        looped = Metrics.counter("ingest.looped");
+        outbound = classifier.newFairScheduler("bridge.outbound", PduClassifier.DEFAULT_CAPACITY, sourceWeights);
+
+        Thread c = new Thread(TcpClient::classify, "ingest-classify");
+        c.setDaemon(true);
+        c.start();
+
+        Thread t = new Thread(() -> {
+            byte[] data;
+            while ((data = outbound.take()) != null) {
+                try {
+                    if (data == RESUME_MARKER) {
+                        session.flush();
+                    } else {
+                        session.send(data, 0, data.length);
+                    }
+                } catch (IOException ex) {
+                    LOGGER.log(Level.FINE, "Bridge write failed: {0}", ex.getMessage());
+                }
+            }
+        }, "ingest-send");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Send data from the multicast socket to the bridge server.
      *
-     * @param host to send to
-     * @param port port to connect to
+     * @param bridge connection to the bridge server
+     * @param existing socket to return if already connected
+     * @return the connected socket, null if halted
      * @throws IOException any error reading/writing to socket
      */
-    private static Socket connect(String host, int port, Socket existing) throws IOException {
+    private static Socket connect(ConnectionManager bridge, Socket existing) throws IOException {
         if(socketThread != null) {
             return existing;
         }
-        LOGGER.log(Level.FINEST, "waiting for server: {0}:{1}", new Object[]{host, port});
+        LOGGER.log(Level.FINEST, "waiting for server: {0}", bridge);
+
+        //connect to waiting server, backing off while it is unreachable.
+        //with other servers to try, give up on this one after a few attempts.
+        final Socket socket = bridge.connect(seeds.length > 1 || redirected ? SEED_ATTEMPTS : Long.MAX_VALUE);
+        if(socket == null) {
+            return null;
+        }
 
-        //connect to waiting server...
-        Socket s = null;
-        while(s == null) {
+        //tell the peer what we have received so it can replay what we missed.
+        //the replay is written by the send stage, woken here.
+        session.setWakeup(() -> outbound.offer(0, LOCAL_SOURCE, RESUME_MARKER));
+        FrameWriter writer = session.attach(socket);
+        Trace.event(Trace.Kind.RECONNECT, -1, -1, bridge.getReconnects());
+
+        //close the connection as soon as the other side goes quiet.
+        final Heartbeat heartbeat = new Heartbeat("heartbeat.bridge", writer, (code, payload) -> {
+            if (code == Frames.REDIRECT) {
+                //a clustered server that doesn't own our pair; reconnect to the one that does.
+                redirectTo = StandardCharsets.UTF_8.decode(payload).toString();
+                LOGGER.log(Level.FINE, "Redirected to {0}", redirectTo);
+                socket.close();
+            } else {
+                session.control(code, payload);
+            }
+        }, () -> {
             try {
-                s = new Socket(host, port);
+                socket.close();
             } catch(IOException ex) {
             }
-        }
-        final Socket socket = s;
+        }).start();
 
         Thread t = new Thread(() -> {
             LOGGER.log(Level.FINEST,"Starting Server Thread...");
             try {
                 //blocking call that will receive data until error.
                 //data is received from the bridge server.
-                TcpServer.receive(socket, Rebroadcaster.INSTANCE);
+                TcpServer.receive(socket, Rebroadcaster.INSTANCE, session, heartbeat);
             } catch(IOException ex) {
                 LOGGER.log(Level.WARNING, null, ex);
             }
+            heartbeat.stop();
 
             //once the blocking call exits, close down the socket.
             try {
@@ -240,6 +447,10 @@ public class TcpClient {
                 LOGGER.log(Level.WARNING, null, ex);
             }
 
+            //stop accepting new work on this connection.
+            bridge.draining();
+            session.detach();
+
             //reset the socket (just in case).
             try {
                 Rebroadcaster.INSTANCE.resetSocket();
@@ -254,7 +465,7 @@ public class TcpClient {
             }
             TcpClient.clients.clear();
             halted.set(true);
-            LOGGER.log(Level.FINER, "Socket disconnect from server: {0}:{1}", new Object[]{host, port});
+            LOGGER.log(Level.FINER, "Socket disconnect from server: {0} [{1} reconnects]", new Object[]{bridge, bridge.getReconnects()});
             socketThread = null;
         });
 
@@ -266,6 +477,59 @@ public class TcpClient {
         return socket;
     }
 
+    /**
+     * Make a connection manager for a server.
+     *
+     * @param server HOST[:PORT]
+     * @return the manager
+     */
+    private static ConnectionManager manager(String server) {
+        String host = server.trim();
+        int p = serverPort;
+        int colon = host.lastIndexOf(':');
+        if (colon > 0) {
+            p = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        return new ConnectionManager(host, p, ConnectionManager.DEFAULT_CONNECT_TIMEOUT, minBackoff, maxBackoff);
+    }
+
+    /**
+     * Pick the server to connect to next: the one a redirect named, the seeds again if the server we were sent to
+     * has gone, or the next seed if this one couldn't be reached.
+     *
+     * @param connected true if the last attempt connected
+     */
+    private static void nextServer(boolean connected) {
+        if (bridge.getState() == ConnectionManager.State.HALTED) {
+            return;
+        }
+        String target = redirectTo;
+        redirectTo = null;
+        if (target != null) {
+            //servers that disagree about the owner would bounce us back and forth; slow down if that happens.
+            if (++redirects > 2) {
+                try {
+                    Thread.sleep(Math.min(maxBackoff, minBackoff << Math.min(redirects, 16)));
+                } catch (InterruptedException ex) {
+                }
+            }
+            bridge = manager(target);
+            redirected = true;
+            return;
+        }
+        if (connected) {
+            redirects = 0;
+        }
+        if (redirected) {
+            redirected = false;
+            bridge = manager(seeds[seed]);
+        } else if (!connected && seeds.length > 1) {
+            seed = (seed + 1) % seeds.length;
+            bridge = manager(seeds[seed]);
+        }
+    }
+
     /**
      * Set the logging level
      *
@@ -296,6 +560,9 @@ public class TcpClient {
     public static void main(String[] args) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             halted.set(true);
+            if(bridge != null) {
+                bridge.halt();
+            }
             LOGGER.log(Level.INFO, "Cleaning up for shutdown");
                 for(Socket socket : clients) {
                     try {
@@ -305,6 +572,7 @@ public class TcpClient {
                     }
                 }
                 Rebroadcaster.INSTANCE.halt();
+                PduCapture.stop();
             }));
 
         System.setProperty("java.util.logging.SimpleFormatter.format",
@@ -324,10 +592,31 @@ public class TcpClient {
         String cast = "multi";
 
         Options opts = new Options();
-        opts.addOption(Option.builder("server").required().numberOfArgs(1).desc("Server to connect to.").build());
+        opts.addOption(Option.builder("server").required().numberOfArgs(1).desc("Server to connect to; clustered servers as HOST[:PORT],...").build());
         opts.addOption("port", true, "Bridge Server port to connect to. [Default: " + port + "]");
-        opts.addOption("cast", true,"[uni | multi | broad] cast. [Default: " + cast +"]");
+        opts.addOption("cast", true,"[uni | multi | broad][,uni | multi | broad ...] cast; the first is listened on, the others are sent to as well. [Default: " + cast +"]");
         opts.addOption("client", true,"Client to connect to for unicast");
+        opts.addOption("backoff", true,"Reconnect backoff MIN_MS:MAX_MS. [Default: " + minBackoff + ":" + maxBackoff + "]");
+        opts.addOption("replay", true,"Keep sent frames for MS milliseconds to replay after a reconnect.");
+        opts.addOption("priority", true,"PDU classes as TYPE[@EXERCISE]=CLASS,... [Default: " + PduClassifier.DEFAULT_RULES + "]");
+        opts.addOption("schedule", true,"[strict | W0,W1,...] class scheduling. [Default: " + PduClassifier.DEFAULT_SCHEDULE + "]");
+        opts.addOption("fair", true,"Share of the bridge for each source within a class, SOURCE=WEIGHT,... where SOURCE is a peer host or " + LOCAL_SOURCE + ". [Default: 1 each]");
+        opts.addOption("bundle", true,"Bundle PDUs sent to unicast clients, MAX_BYTES:MAX_MS.");
+        opts.addOption("adapt", true,"Step audio to congested unicast clients down to half rate, mu-law or nothing, judged every MS. [Default: " + AdaptiveBitrate.DEFAULT_INTERVAL_MS + "]");
+        opts.getOption("adapt").setOptionalArg(true);
+        opts.addOption("pace", true,"Rebroadcast audio from the bridge at the cadence it was sent, holding PDUs at most MS. [Default: " + PduPacer.DEFAULT_MAX_HOLD_MS + "]");
+        opts.getOption("pace").setOptionalArg(true);
+        opts.addOption("subscribe", true,"Subscription sent to unicast peers, e.g. exercise=1;type=SIGNAL,TRANSMITTER;freq=30e6-88e6");
+        opts.addOption("relay", true,"Relay between unicast peers over a tree of DEGREE children per node instead of connecting to every peer; all peers must use the same clients and DEGREE.");
+        opts.addOption("groups", true,"Multicast groups by exercise or frequency, @EXERCISE=GROUP or LOW-HIGH=GROUP,...");
+        opts.addOption("join", true,"[all | GROUP,...] multicast groups to listen on. [Default: all]");
+        opts.addOption("filter", true,"Only forward PDUs matching the expression, e.g. \"type == SIGNAL && exercise == 3\"");
+        opts.addOption("remap", true,"Rewrite entity/radio IDs sent through the bridge, FROM=TO,... e.g. 1.1=2.1,1.1.5.1=2.1.9.3");
+        opts.addOption("trace", true,"[ring[:SIZE] | jfr] trace packet events; dump the ring through JMX.");
+        opts.addOption("heartbeat", true,"Heartbeat every MS, closing connections after MISSES silent beats, MS[:MISSES]; 0 to disable. [Default: " + Heartbeat.DEFAULT_INTERVAL_MS + ":" + Heartbeat.DEFAULT_MISSES + "]");
+        opts.addOption("metrics", true,"Log metrics every N seconds.");
+        opts.addOption("capture", true,"Capture all forwarded and received PDUs to the specified file.");
+        opts.addOption("shm", true,"Also write PDUs to a shared-memory ring for co-located sniffers, FILE[:BYTES] e.g. /dev/shm/cnr. [Default size: " + MappedRing.DEFAULT_CAPACITY + "]");
         opts.addOption("log", true,"Log output level. [Default: " + getLevel() + "]");
         opts.addOption("help","Print this message.");
 
@@ -349,11 +638,110 @@ public class TcpClient {
                 LOGGER.log(level, "Logging Level: {0}", level);
             }
 
+            //set the pdu classes and how they are scheduled
+            if(line.hasOption("priority") || line.hasOption("schedule")) {
+                classifier = new PduClassifier(line.getOptionValue("priority", PduClassifier.DEFAULT_RULES),
+                        line.getOptionValue("schedule", PduClassifier.DEFAULT_SCHEDULE));
+            }
+            Rebroadcaster.setClassifier(classifier);
+
+            //pack PDUs to unicast clients into fewer packets
+            if(line.hasOption("bundle")) {
+                String[] sp = line.getOptionValue("bundle").split(":");
+                Rebroadcaster.setBundling(Integer.parseInt(sp[0]), sp.length > 1 ? Long.parseLong(sp[1]) : DEFAULT_BUNDLE_MS);
+            }
+
+            //reduce audio to unicast clients that can't keep up
+            if(line.hasOption("adapt")) {
+                Rebroadcaster.setAdaptive(Long.parseLong(line.getOptionValue("adapt", Long.toString(AdaptiveBitrate.DEFAULT_INTERVAL_MS))));
+            }
+
+            //smooth out audio that arrives in bursts after a stall
+            if(line.hasOption("pace")) {
+                TcpServer.setPacer(new PduPacer(Long.parseLong(line.getOptionValue("pace", Long.toString(PduPacer.DEFAULT_MAX_HOLD_MS)))));
+            }
+
+            //weight the sources sharing the bridge
+            if(line.hasOption("fair")) {
+                for(String rule : line.getOptionValue("fair").split(",")) {
+                    int eq = rule.lastIndexOf('=');
+                    if(eq <= 0) {
+                        throw new ParseException("Invalid source weight: " + rule);
+                    }
+                    sourceWeights.put(rule.substring(0, eq).trim(), Integer.parseInt(rule.substring(eq + 1).trim()));
+                }
+            }
+            startPipeline();
+
+            //compile the ingress filter once
+            if(line.hasOption("filter")) {
+                filter = PduFilter.compile(line.getOptionValue("filter"));
+            }
+
+            //rewrite colliding IDs on the way out, and back on the way in
+            if(line.hasOption("remap")) {
+                remapper = new IdRemapper(line.getOptionValue("remap"));
+                TcpServer.setRemapper(remapper);
+                LOGGER.log(Level.FINE, "Remapping IDs: {0}", remapper);
+            }
+
+            //check the subscription now rather than have every peer reject it
+            if(line.hasOption("subscribe")) {
+                subscription = line.getOptionValue("subscribe");
+                Subscription.parse(subscription);
+            }
+
+            //relay through a tree of peers instead of the full mesh
+            if(line.hasOption("relay")) {
+                relay = new RelayOverlay(Integer.parseInt(line.getOptionValue("relay")));
+                Rebroadcaster.setRelay(relay);
+                if(subscription != null) {
+                    LOGGER.log(Level.WARNING, "Subscriptions are not used with -relay; peers relay everything");
+                }
+            }
+
+            if(line.hasOption("trace")) {
+                Trace.start(line.getOptionValue("trace"));
+            }
+
+            if(line.hasOption("heartbeat")) {
+                Heartbeat.configure(line.getOptionValue("heartbeat"));
+            }
+
+            if(line.hasOption("metrics")) {
+                Metrics.start(Long.parseLong(line.getOptionValue("metrics")));
+            }
+
+            //record traffic for later replay
+            if(line.hasOption("capture")) {
+                try {
+                    PduCapture.start(new File(line.getOptionValue("capture")));
+                } catch(IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+
+            //hand PDUs to co-located readers through shared memory instead of another multicast socket
+            if(line.hasOption("shm")) {
+                String val = line.getOptionValue("shm");
+                int colon = val.lastIndexOf(':');
+                //a drive letter is not a size
+                boolean sized = colon > 1 && val.substring(colon + 1).matches("\\d+");
+                try {
+                    Rebroadcaster.setShm(MappedRing.create(new File(sized ? val.substring(0, colon) : val),
+                            sized ? Integer.parseInt(val.substring(colon + 1)) : MappedRing.DEFAULT_CAPACITY, "shm"));
+                } catch(IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+
             String[] clients = new String[]{};
 
             //set if app should use broadcast instead of the default multicast
+            //more than one may be given, the first is the one listened on
             if(line.hasOption("cast")) {
-                cast = line.getOptionValue("cast");
+                String[] casts = line.getOptionValue("cast").split(",");
+                cast = casts[0].trim();
                 switch(cast) {
                     case "multi":
                         break;
@@ -380,6 +768,30 @@ public class TcpClient {
                         System.exit(0);
                         break;
                 }
+                for(int ii = 1; ii < casts.length; ii++) {
+                    Rebroadcaster.CastingEnum extra = castType(casts[ii].trim());
+                    if(extra == null) {
+                        HelpFormatter formatter = new HelpFormatter();
+                        formatter.printHelp("cnr-client", opts, true);
+                        System.exit(0);
+                    }
+                    try {
+                        Rebroadcaster.INSTANCE.addTransport(extra);
+                    } catch(IOException ex) {
+                        LOGGER.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+
+            //split multicast traffic over groups, listening only on the ones asked for
+            if(line.hasOption("groups") && cast.equals("multi")) {
+                try {
+                    GroupMap groups = new GroupMap(line.getOptionValue("groups"), InetAddress.getByName(Rebroadcaster.MCAST_GRP));
+                    Rebroadcaster.INSTANCE.setGroups(groups, groups.parseJoin(line.getOptionValue("join")));
+                    LOGGER.log(Level.FINE, "Multicast groups: {0}", groups);
+                } catch(IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
             }
 
             //set the non-default port value
@@ -387,16 +799,32 @@ public class TcpClient {
                 port = Integer.parseInt(line.getOptionValue("port"));
             }
 
+            //set the reconnect backoff
+            if(line.hasOption("backoff")) {
+                String[] sp = line.getOptionValue("backoff").split(":");
+                minBackoff = Long.parseLong(sp[0]);
+                maxBackoff = sp.length > 1 ? Long.parseLong(sp[1]) : Math.max(minBackoff, maxBackoff);
+            }
+
+            //keep recently sent frames to replay after reconnecting
+            if(line.hasOption("replay")) {
+                long window = Long.parseLong(line.getOptionValue("replay"));
+                session = new ResumeSession(new ReplayBuffer(window, REPLAY_CAPACITY));
+            }
+
             //read the server to connect to for pairing.
             //this should always be present as it is required by the CLI.
-            while(!halted.get()) {
+            seeds = line.getOptionValue("server").split(",");
+            serverPort = port;
+            bridge = manager(seeds[0]);
+            while(!halted.get() && bridge.getState() != ConnectionManager.State.HALTED) {
                 //connect to the bridge server and return the socket.
                 //also sets up a thread for receiving data from the server.
                 Socket socket = null;
                 try {
                     LOGGER.log(Level.FINEST, "Connect to server");
                     //blocking call until a socket connection is made.
-                    socket = connect(line.getOptionValue("server"), port, socket);
+                    socket = connect(bridge, socket);
                     LOGGER.log(Level.FINER, "Connected to server");
                     if(socket != null) {
                         //blocking call to forward data from the datagram socket to the bridge server.
@@ -426,6 +854,10 @@ public class TcpClient {
                         }
                     }
 
+                    //back off before reconnecting if the connection was short lived.
+                    bridge.disconnected();
+                    nextServer(socket != null);
+
                     //HACK, we want to tell all threads that we are halting, but
                     //the program isn't halting, just re-setting.
                     halted.set(false);
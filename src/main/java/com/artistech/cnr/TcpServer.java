@@ -3,17 +3,10 @@
  */
 package com.artistech.cnr;
 
-import edu.nps.moves.dis.Pdu;
-import edu.nps.moves.dis.SignalPdu;
-import edu.nps.moves.disenum.PduType;
-import edu.nps.moves.dis.TransmitterPdu;
-
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,19 +18,68 @@ public class TcpServer {
 
     private static final Logger LOGGER = Logger.getLogger(TcpServer.class.getName());
 
-    private static final List<Long> SENT = new ArrayList<>();
+    //keys of rebroadcast PDUs not yet seen looping back, with how many times each is outstanding
+    private static final int MAX_SENT = 4096;
+    private static final Map<Long, Integer> SENT = new LinkedHashMap<Long, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            //forget PDUs that never came back
+            return size() > MAX_SENT;
+        }
+    };
     public static final int TCP_PORT = 6789;
+    private static IdRemapper remapper = null;
+    private static PduPacer pacer = null;
+
+    /**
+     * Pace the PDUs received from the bridge back to the cadence they were sent at before rebroadcasting them.
+     *
+     * @param value the pacer, null to rebroadcast PDUs as they arrive
+     */
+    public static void setPacer(PduPacer value) {
+        pacer = value;
+    }
+
+    /**
+     * Set the ID remapping reversed on PDUs received from the bridge.
+     *
+     * @param value the remapping, null for none
+     */
+    public static void setRemapper(IdRemapper value) {
+        remapper = value;
+    }
 
-    public static void addSent(Pdu pdu) {
-        SENT.add(pdu.getTimestamp());
+    /**
+     * Remember a PDU that is being rebroadcast, so it isn't forwarded back through the bridge when it loops back.
+     *
+     * @param key dedup key of the PDU, from its PduHandler
+     */
+    //the bridge receive thread adds and the ingest classify stage checks, so access is synchronized.
+    public static void addSent(long key) {
+        synchronized (SENT) {
+            SENT.merge(key, 1, Integer::sum);
+        }
     }
 
-    public static boolean hasSent(Pdu pdu) {
-        if(SENT.contains(pdu.getTimestamp())) {
-            SENT.remove(pdu.getTimestamp());
+    /**
+     * Check if a PDU was rebroadcast here, forgetting it if so.
+     *
+     * @param key dedup key of the PDU, from its PduHandler
+     * @return true if it was rebroadcast
+     */
+    public static boolean hasSent(long key) {
+        synchronized (SENT) {
+            Integer count = SENT.get(key);
+            if (count == null) {
+                return false;
+            }
+            if (count > 1) {
+                SENT.put(key, count - 1);
+            } else {
+                SENT.remove(key);
+            }
             return true;
         }
-        return false;
     }
 
     /**
@@ -48,57 +90,74 @@ public class TcpServer {
      * @throws IOException error on read or write
      */
     public static void receive(Socket connectionSocket, Rebroadcaster rebroadcaster) throws IOException {
-        DataInputStream dIn = new DataInputStream(connectionSocket.getInputStream());
+        receive(connectionSocket, rebroadcaster, null);
+    }
+
+    /**
+     * Receive data from the socket and re-broadcast it on the local multicast channel.
+     *
+     * @param connectionSocket socket to receive data from the bridge
+     * @param rebroadcaster Datagram wrapper for rebroadcasting the packet
+     * @param session session that counts received frames and handles resume requests, may be null
+     * @throws IOException error on read or write
+     */
+    public static void receive(Socket connectionSocket, Rebroadcaster rebroadcaster, ResumeSession session) throws IOException {
+        receive(connectionSocket, rebroadcaster, session, session);
+    }
+
+    /**
+     * Receive data from the socket and re-broadcast it on the local multicast channel.
+     *
+     * @param connectionSocket socket to receive data from the bridge
+     * @param rebroadcaster Datagram wrapper for rebroadcasting the packet
+     * @param session session that counts received frames, may be null
+     * @param control receives control frames, may be null
+     * @throws IOException error on read or write
+     */
+    public static void receive(Socket connectionSocket, Rebroadcaster rebroadcaster, ResumeSession session,
+            FrameReader.ControlListener control) throws IOException {
+        FrameReader reader = new FrameReader(connectionSocket.getInputStream(), control);
 
         while (!Rebroadcaster.INSTANCE.isHalted()) {
-            // read length of incoming message
-            int length = dIn.readInt();
-            byte[] message = null;
-            // read the message
-            if (length > 0) {
-                message = new byte[length];
-                dIn.readFully(message, 0, message.length);
+            // read the next message, control frames are handled by the session
+            byte[] message = reader.read();
+            if (session != null) {
+                session.received();
+            }
+            if (message.length == 0) {
+                continue;
+            }
+            //undo the sender's ID remapping before anything looks at the PDU
+            if (remapper != null) {
+                remapper.inbound(message, message.length);
             }
+            PduCapture.record(PduCapture.EGRESS, message, 0, message.length);
 
             //UNICAST shouldn't have to worry about loopback issues
             //both broad-and multicast will loopback, so a broadcasted packet will be re-received
             //since this is the same code used both on CNR and XCN side of the bridge
             //we would have to add a flag to differentiate if we want to do broadcasting and
             //ignore anything from the current IP address.
-            if(Rebroadcaster.INSTANCE.getCastType() != Rebroadcaster.CastingEnum.Uni) {
-                //Unpack the PDU to get the timestamp
+            if(rebroadcaster.loopsBack()) {
                 //we don't want to flood the network with loopbacked packets
-                //so save timestamps, if an identical timestamp comes through
+                //so save the PDU's dedup key (type and timestamp), if an identical key comes through
                 //block it from re-sending back through the bridge.
                 //
                 //TODO: I don't know if the timestamp is the best way to do this, perhaps there are better ways; this is a place for investigation.
-                int pduType = 255 & message[2];
-                PduType pduTypeEnum = PduType.lookup[pduType];
-                ByteBuffer bb = ByteBuffer.wrap(message);
-
-                switch (pduTypeEnum) {
-                    case TRANSMITTER:
-                        TransmitterPdu tpdu = new TransmitterPdu();
-                        tpdu.unmarshal(bb);
-                        addSent(tpdu);
-                        break;
-                    case SIGNAL:
-                        SignalPdu spdu = new SignalPdu();
-                        spdu.unmarshal(bb);
-                        addSent(spdu);
-                        break;
+                PduHandler handler = PduHandler.of(message);
+                if (handler != null && handler.isForwarded(message.length)) {
+                    addSent(handler.dedupKey(message));
                 }
             }
 
-            //check if there was an unpacked message
-            if (message != null) {
-                byte[] data = message;
-
-                try {
-                    rebroadcaster.send(data);
-                } catch (IOException ex) {
-                    LOGGER.log(Level.WARNING, null, ex);
+            try {
+                if (pacer != null) {
+                    pacer.offer(rebroadcaster, message);
+                } else {
+                    rebroadcaster.send(message);
                 }
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
             }
         }
     }
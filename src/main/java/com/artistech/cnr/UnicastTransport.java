@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.cnr;
+
+import com.artistech.utils.Metrics;
+import com.artistech.utils.PriorityScheduler;
+import com.artistech.utils.Trace;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends PDUs over TCP to the clients that connect to the rebroadcast port, each getting what it subscribed to.
+ *
+ * Each client has its own priority queue and writer thread, so a slow client only delays itself.  Routing is the
+ * only step that takes this transport's lock.
+ *
+ * With a relay overlay set, PDUs are sent as RELAY frames, and frames relayed from one neighbour are queued for the
+ * other clients.
+ */
+public class UnicastTransport implements EgressTransport {
+
+    private class ClientThread implements Runnable {
+
+        private final PriorityScheduler<byte[]> data;
+        private final Socket sock;
+        private final AdaptiveBitrate adaptive;
+        private FrameWriter os;
+        private volatile Heartbeat heartbeat;
+
+        ClientThread(Socket sock) {
+            this.sock = sock;
+            this.data = classifier.newScheduler("rebroadcast." + sock.getInetAddress().getHostAddress(), PduClassifier.DEFAULT_CAPACITY);
+            this.adaptive = adaptMillis <= 0 ? null
+                    : new AdaptiveBitrate("adapt." + sock.getInetAddress().getHostAddress(), PduClassifier.DEFAULT_CAPACITY, adaptMillis);
+        }
+
+        /**
+         * Reduce the audio of a PDU if the client's connection is congested.
+         *
+         * @param msg the PDU
+         * @return the PDU to send, null to skip it
+         */
+        private byte[] adapt(byte[] msg) {
+            return adaptive == null ? msg : adaptive.apply(msg);
+        }
+
+        /**
+         * Tell the congestion control how long a write blocked.
+         *
+         * @param start when the write started
+         */
+        private void written(long start) {
+            if (adaptive != null) {
+                adaptive.written(System.nanoTime() - start, data.size());
+            }
+        }
+
+        public void run() {
+            try {
+                os = new FrameWriter(sock.getOutputStream());
+                heartbeat = new Heartbeat("heartbeat.client." + this, os, this::control, this::halt).start();
+                Thread reader = new Thread(this::listen);
+                reader.setDaemon(true);
+                reader.start();
+                if (relay != null) {
+                    //relayed frames carry the PDU for other nodes too, so they are neither bundled nor reduced
+                    byte[] msg;
+                    while ((msg = data.take()) != null) {
+                        os.writeControl(Frames.RELAY, msg);
+                    }
+                } else if (bundleBytes <= 0) {
+                    byte[] msg;
+                    while ((msg = data.take()) != null) {
+                        msg = adapt(msg);
+                        if (msg != null) {
+                            long start = System.nanoTime();
+                            os.write(msg);
+                            written(start);
+                        }
+                    }
+                } else {
+                    FrameBundler bundler = new FrameBundler(os, "bundle." + this, bundleBytes, bundleMillis);
+                    while (!data.isHalted()) {
+                        //wait for the first PDU of a bundle, then only as long as the bundle may wait.
+                        byte[] msg = bundler.isEmpty() ? data.take() : data.poll(bundler.remainingNanos(), TimeUnit.NANOSECONDS);
+                        long start = System.nanoTime();
+                        if (msg != null) {
+                            msg = adapt(msg);
+                            if (msg != null) {
+                                bundler.add(msg);
+                            }
+                        } else {
+                            bundler.flush();
+                        }
+                        written(start);
+                    }
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Client {0} closed: {1}", new Object[]{this, ex.getMessage()});
+            }
+            halt();
+        }
+
+        /**
+         * Read subscriptions from the client until it disconnects.
+         */
+        private void listen() {
+            try {
+                FrameReader reader = new FrameReader(sock.getInputStream(), heartbeat);
+                while (!data.isHalted()) {
+                    //clients don't send data frames; read only to see control frames and the disconnect.
+                    reader.read();
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Client {0} closed: {1}", new Object[]{this, ex.getMessage()});
+            }
+            halt();
+        }
+
+        /**
+         * Handle control frames other than heartbeats from the client.
+         *
+         * @param code control code
+         * @param payload control payload
+         */
+        private void control(int code, ByteBuffer payload) {
+            if (code == Frames.SUBSCRIBE) {
+                String spec = StandardCharsets.UTF_8.decode(payload).toString();
+                try {
+                    subscribers.put(this, Subscription.parse(spec));
+                    LOGGER.log(Level.FINE, "Client {0} subscribed: {1}", new Object[]{this, spec});
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING, "Client {0} sent an invalid subscription: {1}", new Object[]{this, ex.getMessage()});
+                }
+            }
+        }
+
+        public void halt() {
+            if (heartbeat != null) {
+                heartbeat.stop();
+            }
+            subscribers.remove(this);
+            data.halt();
+            data.unregister();
+            Metrics.remove("bundle." + this + ".");
+            if (adaptive != null) {
+                adaptive.unregister();
+            }
+            try {
+                sock.close();
+            } catch(IOException ex) {}
+            //forget the client so that it may connect again.
+            clientStreams.remove(toString(), this);
+        }
+
+        @Override
+        public String toString() {
+            return sock.getInetAddress().getHostAddress();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(UnicastTransport.class.getName());
+
+    private static PduClassifier classifier = new PduClassifier();
+    private static int bundleBytes = 0;
+    private static long bundleMillis = 0;
+    private static long adaptMillis = 0;
+    private static RelayOverlay relay = null;
+    private static final AtomicLong delivered = Metrics.counter("rebroadcast.delivered");
+    private static final AtomicLong filtered = Metrics.counter("rebroadcast.filtered");
+    private static final AtomicLong relayed = Metrics.counter("relay.relayed");
+
+    private final ServerSocket server;
+    private final Map<String, ClientThread> clientStreams = new ConcurrentHashMap<>();
+    private final SubscriptionIndex<ClientThread> subscribers = new SubscriptionIndex<>();
+    //guarded by this
+    private final ThreadLocal<List<ClientThread>> tmpList = ThreadLocal.withInitial(ArrayList::new);
+    private volatile boolean closed = false;
+
+    /**
+     * Set the classifier used to prioritize PDUs sent to clients.  Applies to clients that connect after.
+     *
+     * @param value the classifier
+     */
+    static void setClassifier(PduClassifier value) {
+        classifier = value;
+    }
+
+    /**
+     * Bundle PDUs sent to clients.  Applies to clients that connect after.
+     *
+     * @param maxBytes maximum bundle size, 0 to disable bundling; at most TcpClient.BUFFER_SIZE, which readers accept
+     * @param maxMillis maximum time a PDU waits for a bundle to fill
+     */
+    static void setBundling(int maxBytes, long maxMillis) {
+        bundleBytes = Math.min(maxBytes, TcpClient.BUFFER_SIZE);
+        bundleMillis = maxMillis;
+    }
+
+    /**
+     * Step the audio sent to congested clients down and back up.  Applies to clients that connect after.
+     *
+     * @param intervalMillis how often each client's congestion is judged, 0 to disable
+     */
+    static void setAdaptive(long intervalMillis) {
+        adaptMillis = intervalMillis;
+    }
+
+    /**
+     * Send PDUs as RELAY frames of the overlay.  Applies to clients that connect after.
+     *
+     * @param overlay the overlay, null for data frames
+     */
+    static void setRelay(RelayOverlay overlay) {
+        relay = overlay;
+    }
+
+    /**
+     * Constructor.  Starts accepting clients.
+     *
+     * @throws IOException error listening
+     */
+    public UnicastTransport() throws IOException {
+        server = new ServerSocket(Rebroadcaster.MCAST_PORT);
+
+        Thread t = new Thread(() -> {
+            LOGGER.log(Level.FINER, "Starting Socket Server...");
+            while(!closed) {
+                try {
+                    //create a client connection
+                    Socket client = server.accept();
+
+                    if(!clientStreams.containsKey(client.getInetAddress().getHostAddress())) {
+                        LOGGER.log(Level.FINER, "Received Connection: {0}", client.getInetAddress().getHostAddress());
+                        ClientThread rt = new ClientThread(client);
+                        clientStreams.put(rt.toString(), rt);
+                        //everything until the client subscribes.
+                        subscribers.put(rt, Subscription.ALL);
+                        Thread t2 = new Thread(rt);
+                        t2.setDaemon(true);
+                        t2.start();
+                    } else {
+                        client.close();
+                    }
+                } catch(IOException ex) {
+                    //this should fire when server closes...
+                    //close all open client connections.
+                    haltClients();
+                }
+            }
+        }, "unicast-accept");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queue a PDU for each client subscribed to it.
+     *
+     * @param pdu the PDU
+     */
+    @Override
+    public void send(byte[] pdu) {
+        int cls = classifier.classify(pdu);
+        byte[] item = relay == null ? pdu : relay.wrap(pdu);
+        //the bridge reader and the pacer send at once, so each thread collects its own matches
+        List<ClientThread> matches = tmpList.get();
+        matches.clear();
+        int matched = subscribers.route(pdu, matches);
+        delivered.addAndGet(matched);
+        filtered.addAndGet(subscribers.size() - matched);
+        for(ClientThread clientStream : matches) {
+            clientStream.data.offer(cls, item);
+        }
+        matches.clear();
+        Trace.event(Trace.Kind.REBROADCAST, pdu.length > 2 ? 255 & pdu[2] : -1, pdu.length, matched);
+    }
+
+    /**
+     * Queue a RELAY frame from a neighbour in the overlay for every other client.
+     *
+     * @param pdu the PDU, to classify
+     * @param payload RELAY payload
+     * @param from host the frame came from
+     */
+    public void relay(byte[] pdu, byte[] payload, String from) {
+        int cls = classifier.classify(pdu);
+        for(ClientThread clientStream : clientStreams.values()) {
+            if(!clientStream.toString().equals(from)) {
+                clientStream.data.offer(cls, payload);
+                relayed.incrementAndGet();
+            }
+        }
+    }
+
+    private void haltClients() {
+        for(ClientThread client : clientStreams.values()) {
+            client.halt();
+        }
+        clientStreams.clear();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            LOGGER.log(Level.FINE, "Closing ServerSocket");
+            server.close();
+            LOGGER.log(Level.FINE, "Closed ServerSocket");
+        } catch(IOException ex) {
+        }
+        haltClients();
+    }
+
+    @Override
+    public Rebroadcaster.CastingEnum getType() {
+        return Rebroadcaster.CastingEnum.Uni;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages the lifecycle of an outgoing TCP connection.  Connection attempts time out instead of blocking
+ * indefinitely, and failed attempts (or connections that drop soon after being made) are retried after a jittered,
+ * exponentially increasing delay so that an unreachable peer does not consume a core.
+ *
+ * <pre>
+ *   CONNECTING --ok--&gt; CONNECTED --lost--&gt; DRAINING --&gt; BACKOFF --&gt; CONNECTING
+ *       |                                                 ^
+ *       +--------------------fail-------------------------+
+ * </pre>
+ */
+public class ConnectionManager {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionManager.class.getName());
+
+    /**
+     * Connection states.
+     */
+    public enum State {
+        CONNECTING,
+        CONNECTED,
+        DRAINING,
+        BACKOFF,
+        HALTED
+    }
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final long DEFAULT_MIN_BACKOFF = 100;
+    public static final long DEFAULT_MAX_BACKOFF = 10000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private final long minBackoff;
+    private final long maxBackoff;
+
+    private volatile State state = State.CONNECTING;
+    private long backoff;
+    private long connectedAt;
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Constructor using default timeouts.
+     *
+     * @param host host to connect to
+     * @param port port to connect to
+     */
+    public ConnectionManager(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT, DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param host host to connect to
+     * @param port port to connect to
+     * @param connectTimeout milliseconds to wait for a connection attempt
+     * @param minBackoff initial delay in milliseconds after a failure
+     * @param maxBackoff maximum delay in milliseconds after repeated failures
+     */
+    public ConnectionManager(String host, int port, int connectTimeout, long minBackoff, long maxBackoff) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.minBackoff = Math.max(1, minBackoff);
+        this.maxBackoff = Math.max(this.minBackoff, maxBackoff);
+        this.backoff = this.minBackoff;
+    }
+
+    /**
+     * Connect, retrying with backoff until connected or halted.
+     *
+     * @return the connected socket, or null if halted
+     */
+    public Socket connect() {
+        return connect(Long.MAX_VALUE);
+    }
+
+    /**
+     * Connect, retrying with backoff until connected, halted, or out of attempts.
+     *
+     * @param maxAttempts attempts to make before giving up
+     * @return the connected socket, or null if halted or every attempt failed
+     */
+    public Socket connect(long maxAttempts) {
+        long made = 0;
+        while (state != State.HALTED) {
+            if (state == State.BACKOFF || state == State.DRAINING) {
+                pause();
+                continue;
+            }
+
+            synchronized (this) {
+                if (state == State.HALTED || made >= maxAttempts) {
+                    break;
+                }
+                state = State.CONNECTING;
+            }
+            made++;
+            attempts.incrementAndGet();
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), connectTimeout);
+                synchronized (this) {
+                    if (state == State.HALTED) {
+                        s.close();
+                        return null;
+                    }
+                    state = State.CONNECTED;
+                    connectedAt = System.nanoTime();
+                }
+                connects.incrementAndGet();
+                LOGGER.log(Level.FINER, "Connected: {0}:{1}", new Object[]{host, Integer.toString(port)});
+                return s;
+            } catch (IOException ex) {
+                failures.incrementAndGet();
+                try {
+                    s.close();
+                } catch (IOException ex2) {
+                }
+                synchronized (this) {
+                    if (state != State.HALTED) {
+                        state = State.BACKOFF;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark the connection as shutting down; the next connect waits out a backoff.
+     */
+    public synchronized void draining() {
+        if (state == State.CONNECTED) {
+            state = State.DRAINING;
+        }
+    }
+
+    /**
+     * Mark the connection as lost.  If the connection was only briefly up, the backoff keeps growing, otherwise it
+     * starts over from the minimum.
+     */
+    public synchronized void disconnected() {
+        if (state == State.HALTED) {
+            return;
+        }
+        if (state == State.CONNECTED || state == State.DRAINING) {
+            long upMillis = (System.nanoTime() - connectedAt) / 1_000_000;
+            if (upMillis > maxBackoff) {
+                backoff = minBackoff;
+            }
+        }
+        state = State.BACKOFF;
+    }
+
+    /**
+     * Stop connecting.  Wakes up any thread waiting in backoff.
+     */
+    public synchronized void halt() {
+        state = State.HALTED;
+        notifyAll();
+    }
+
+    /**
+     * Wait out the current backoff with +/- 50% jitter, then double it.
+     */
+    private synchronized void pause() {
+        long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        LOGGER.log(Level.FINEST, "Backoff {0} ms: {1}:{2}", new Object[]{jittered, host, Integer.toString(port)});
+        long deadline = System.currentTimeMillis() + jittered;
+        long wait = jittered;
+        while (wait > 0 && state != State.HALTED) {
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                state = State.HALTED;
+                Thread.currentThread().interrupt();
+                return;
+            }
+            wait = deadline - System.currentTimeMillis();
+        }
+        backoff = Math.min(maxBackoff, backoff * 2);
+        if (state != State.HALTED) {
+            state = State.CONNECTING;
+        }
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of connection attempts.
+     *
+     * @return attempts
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * Get the number of successful connections, including the first.
+     *
+     * @return connections made
+     */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * Get the number of reconnections (successful connections after the first).
+     *
+     * @return reconnections
+     */
+    public long getReconnects() {
+        return Math.max(0, connects.get() - 1);
+    }
+
+    /**
+     * Get the number of failed attempts.
+     *
+     * @return failures
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + " [" + state + "]";
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring: keys are owned by the first member clockwise from the key's hash, and each member is placed
+ * at many points so keys spread evenly.  Adding or removing a member only moves the keys it gains or loses.
+ *
+ * Changes copy the ring, so lookups never lock.
+ *
+ * @param <T> Paramaterized type of item
+ */
+public class HashRing<T> {
+
+    public static final int DEFAULT_REPLICAS = 128;
+
+    private final int replicas;
+    private volatile TreeMap<Long, T> ring = new TreeMap<>();
+    private volatile Set<T> members = Collections.emptySet();
+
+    /**
+     * Constructor with the default number of points per member.
+     */
+    public HashRing() {
+        this(DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param replicas points on the ring per member
+     */
+    public HashRing(int replicas) {
+        this.replicas = Math.max(1, replicas);
+    }
+
+    /**
+     * Add a member.
+     *
+     * @param member the member, identified by its toString
+     * @return true if it was not already a member
+     */
+    public synchronized boolean add(T member) {
+        if (members.contains(member)) {
+            return false;
+        }
+        TreeMap<Long, T> copy = new TreeMap<>(ring);
+        for (int ii = 0; ii < replicas; ii++) {
+            copy.putIfAbsent(hash(member + "#" + ii), member);
+        }
+        Set<T> m = new LinkedHashSet<>(members);
+        m.add(member);
+        ring = copy;
+        members = Collections.unmodifiableSet(m);
+        return true;
+    }
+
+    /**
+     * Remove a member.
+     *
+     * @param member the member
+     * @return true if it was a member
+     */
+    public synchronized boolean remove(T member) {
+        if (!members.contains(member)) {
+            return false;
+        }
+        TreeMap<Long, T> copy = new TreeMap<>(ring);
+        copy.values().removeIf(member::equals);
+        Set<T> m = new LinkedHashSet<>(members);
+        m.remove(member);
+        ring = copy;
+        members = Collections.unmodifiableSet(m);
+        return true;
+    }
+
+    /**
+     * Get the member that owns a key.
+     *
+     * @param key the key
+     * @return owner, null if there are no members
+     */
+    public T owner(String key) {
+        TreeMap<Long, T> r = ring;
+        if (r.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, T> e = r.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : r.firstEntry().getValue();
+    }
+
+    /**
+     * Get the members.
+     *
+     * @return members, in the order added
+     */
+    public Set<T> getMembers() {
+        return members;
+    }
+
+    /**
+     * 64-bit FNV-1a with a final mix so that similar keys land far apart.
+     *
+     * @param key the key
+     * @return hash
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return members.toString();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long to long, without boxing.  Used on per-PDU paths where a HashMap&lt;Long, Long&gt;
+ * would allocate for every lookup.
+ *
+ * Not thread safe.
+ */
+public class LongLongMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+    private int mask;
+
+    /**
+     * Constructor.
+     */
+    public LongLongMap() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity expected number of entries
+     */
+    public LongLongMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(4, (int) (capacity / LOAD_FACTOR) - 1)) << 1;
+        keys = new long[n];
+        values = new long[n];
+        used = new boolean[n];
+        mask = n - 1;
+    }
+
+    /**
+     * Get the value for a key.
+     *
+     * @param key the key
+     * @param missing value to return if the key is not present
+     * @return the value
+     */
+    public long get(long key, long missing) {
+        int i = index(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    /**
+     * Is the key present?
+     *
+     * @param key the key
+     * @return true if present
+     */
+    public boolean containsKey(long key) {
+        int i = index(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Set the value for a key.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(long key, long value) {
+        int i = index(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key the key
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        int i = index(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                //shift later entries of the probe sequence back so lookups don't stop at the hole.
+                int hole = i;
+                int j = (i + 1) & mask;
+                while (used[j]) {
+                    int home = index(keys[j]);
+                    if (((j - home) & mask) >= ((j - hole) & mask)) {
+                        keys[hole] = keys[j];
+                        values[hole] = values[j];
+                        hole = j;
+                    }
+                    j = (j + 1) & mask;
+                }
+                used[hole] = false;
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copy the map, so that a copy can be changed and published while readers use the original.
+     *
+     * @return a map with the same entries
+     */
+    public LongLongMap copy() {
+        LongLongMap ret = new LongLongMap(size + 1);
+        for (int ii = 0; ii < keys.length; ii++) {
+            if (used[ii]) {
+                ret.put(keys[ii], values[ii]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void resize(int n) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[n];
+        values = new long[n];
+        used = new boolean[n];
+        mask = n - 1;
+        size = 0;
+        for (int ii = 0; ii < oldKeys.length; ii++) {
+            if (oldUsed[ii]) {
+                put(oldKeys[ii], oldValues[ii]);
+            }
+        }
+    }
+}
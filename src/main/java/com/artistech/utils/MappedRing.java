@@ -0,0 +1,401 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ring of messages in a memory-mapped file, written by one process and read by any number of processes on the same
+ * machine.  Once mapped, nothing is copied through the kernel: a message is written into the file's pages and the
+ * readers see it there, so co-located processes exchange PDUs without sockets or system calls.
+ *
+ * The writer never waits for readers.  A reader that falls a whole ring behind loses the messages it missed and
+ * carries on from the newest one, as a slow multicast listener would; messages it does read are never torn.
+ *
+ * Layout: a header holding the capacity, the writer's epoch and the published write position, followed by the ring.
+ * Each message is an int length, a long sequence number at offset 8 and the data at 16, padded to 8 bytes; a length
+ * of -1 means the rest of the ring is unused and the next message is at the start.  The write position only grows; a
+ * reader keeps its own position and checks after copying a message that the writer hasn't come around to it.
+ */
+public class MappedRing implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedRing.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final int MAGIC = 0x434E5231;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int EPOCH_OFFSET = 8;
+    //on their own cache line, they are the only fields written per message
+    private static final int TAIL_OFFSET = 64;
+    private static final int NEXT_SEQUENCE_OFFSET = 72;
+    private static final int HEADER = 128;
+    private static final int SEQUENCE = 8;
+    private static final int RECORD_HEADER = 16;
+    private static final int WRAP = -1;
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private static final MethodHandle RELEASE_FENCE;
+    private static final MethodHandle ACQUIRE_FENCE;
+
+    static {
+        //writes to the mapping are ordered with explicit fences: VarHandle where there is one, Unsafe before that.
+        MethodHandle release = null;
+        MethodHandle acquire = null;
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            Class<?> vh = Class.forName("java.lang.invoke.VarHandle");
+            release = lookup.findStatic(vh, "releaseFence", type);
+            acquire = lookup.findStatic(vh, "acquireFence", type);
+        } catch (ReflectiveOperationException ex) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field f = unsafeClass.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                Object unsafe = f.get(null);
+                release = lookup.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+                acquire = lookup.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+            } catch (ReflectiveOperationException | RuntimeException ex2) {
+                LOGGER.log(Level.SEVERE, "No memory fences available", ex2);
+            }
+        }
+        RELEASE_FENCE = release;
+        ACQUIRE_FENCE = acquire;
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int mask;
+    private final int maxMessage;
+    private final boolean writer;
+    private final ByteBuffer out;
+    private long tail;
+    private long sequence = 0;
+    private AtomicLong written = null;
+    private AtomicLong rejected = null;
+
+    private MappedRing(File file, int capacity, boolean writer) throws IOException {
+        this.file = file;
+        this.writer = writer;
+        this.raf = new RandomAccessFile(file, writer ? "rw" : "r");
+        try {
+            if (writer) {
+                raf.setLength(HEADER + (long) capacity);
+            } else {
+                if (raf.length() < HEADER) {
+                    throw new IOException("Not a ring: " + file);
+                }
+                capacity = readHeader(raf);
+            }
+            this.map = raf.getChannel().map(writer ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, HEADER + (long) capacity);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+        this.out = map.duplicate();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        //the writer can be up to two messages (one of them padding) past what it has published
+        this.maxMessage = capacity / 8 - RECORD_HEADER;
+    }
+
+    private static int readHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(MAGIC_OFFSET);
+        int magic = raf.readInt();
+        int capacity = raf.readInt();
+        if (magic != MAGIC || capacity <= 0 || Integer.bitCount(capacity) != 1 || raf.length() < HEADER + (long) capacity) {
+            throw new IOException("Not a ring: " + raf);
+        }
+        return capacity;
+    }
+
+    /**
+     * Create (or take over) a ring as its writer.  Readers of a previous writer start again from the beginning; a
+     * writer that takes over a ring should use the same capacity, as readers keep their mapping.
+     *
+     * @param file backing file, ideally on a memory file system such as /dev/shm
+     * @param capacity minimum size of the ring in bytes; rounded up to a power of two
+     * @param name metrics name prefix
+     * @return the ring
+     * @throws IOException error creating or mapping the file
+     */
+    public static MappedRing create(File file, int capacity, String name) throws IOException {
+        int size = Integer.highestOneBit(Math.max(1 << 12, capacity - 1)) << 1;
+        MappedRing ret = new MappedRing(file, size, true);
+        ret.map.putLong(TAIL_OFFSET, 0);
+        ret.map.putLong(NEXT_SEQUENCE_OFFSET, 0);
+        ret.map.putLong(EPOCH_OFFSET, System.currentTimeMillis() << 20 ^ System.nanoTime() & 0xFFFFF);
+        ret.map.putInt(CAPACITY_OFFSET, size);
+        releaseFence();
+        ret.map.putInt(MAGIC_OFFSET, MAGIC);
+        ret.written = Metrics.counter(name + ".written");
+        ret.rejected = Metrics.counter(name + ".rejected");
+        LOGGER.log(Level.FINE, "Writing ring {0}, {1} bytes", new Object[]{file, size});
+        return ret;
+    }
+
+    /**
+     * Open an existing ring for reading.
+     *
+     * @param file backing file
+     * @return the ring
+     * @throws IOException the file can't be mapped or doesn't hold a ring
+     */
+    public static MappedRing open(File file) throws IOException {
+        return new MappedRing(file, 0, false);
+    }
+
+    /**
+     * Get the largest message the ring takes.
+     *
+     * @return bytes
+     */
+    public int getMaxMessage() {
+        return maxMessage;
+    }
+
+    /**
+     * Write a message.  Writers within the process take turns; the ring has one writing process.
+     *
+     * @param data the message
+     * @param offset start of the message
+     * @param length length of the message
+     * @return false if the message is too large for the ring
+     */
+    public synchronized boolean offer(byte[] data, int offset, int length) {
+        if (!writer) {
+            throw new IllegalStateException("Ring is open for reading: " + file);
+        }
+        if (length > maxMessage || length < 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        int need = RECORD_HEADER + align(length);
+        long pos = tail;
+        int off = (int) pos & mask;
+        if (off + need > capacity) {
+            //not enough room before the end: mark the rest unused and start again at the beginning
+            map.putInt(HEADER + off, WRAP);
+            pos += capacity - off;
+            off = 0;
+        }
+        int at = HEADER + off;
+        map.putLong(at + SEQUENCE, sequence++);
+        out.position(at + RECORD_HEADER);
+        out.put(data, offset, length);
+        map.putInt(at, length);
+        tail = pos + need;
+        //the message is complete before the position that covers it is visible
+        releaseFence();
+        map.putLong(NEXT_SEQUENCE_OFFSET, sequence);
+        map.putLong(TAIL_OFFSET, tail);
+        written.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Write a message.
+     *
+     * @param data the message
+     * @return false if the message is too large for the ring
+     */
+    public boolean offer(byte[] data) {
+        return offer(data, 0, data.length);
+    }
+
+    /**
+     * Start reading at the newest message.
+     *
+     * @param name metrics name prefix
+     * @return a reader, to be used by one thread
+     */
+    public Reader reader(String name) {
+        return new Reader(name);
+    }
+
+    /**
+     * One reader's position in the ring.
+     */
+    public class Reader {
+        private long pos;
+        private long epoch;
+        private long lastSequence = -1;
+        private final ByteBuffer in = map.duplicate();
+        private final AtomicLong read;
+        private final AtomicLong lost;
+        private final AtomicLong resyncs;
+
+        private Reader(String name) {
+            this.read = Metrics.counter(name + ".read");
+            this.lost = Metrics.counter(name + ".lost");
+            this.resyncs = Metrics.counter(name + ".resyncs");
+            this.epoch = map.getLong(EPOCH_OFFSET);
+            acquireFence();
+            this.pos = map.getLong(TAIL_OFFSET);
+        }
+
+        /**
+         * Read the next message if there is one.
+         *
+         * @param buf receives the message; a longer message is truncated
+         * @return length copied, or -1 if there is no new message
+         */
+        public int poll(byte[] buf) {
+            while (true) {
+                long e = map.getLong(EPOCH_OFFSET);
+                long t = map.getLong(TAIL_OFFSET);
+                acquireFence();
+                if (e != epoch) {
+                    //a new writer started the ring again
+                    epoch = e;
+                    pos = 0;
+                    lastSequence = -1;
+                    resyncs.incrementAndGet();
+                    continue;
+                }
+                if (t == pos) {
+                    return -1;
+                }
+                if (t - pos > capacity - 2 * (maxMessage + RECORD_HEADER) || t < pos) {
+                    resync(t);
+                    continue;
+                }
+                int off = (int) pos & mask;
+                int at = HEADER + off;
+                int length = capacity - off < RECORD_HEADER ? WRAP : map.getInt(at);
+                if (length == WRAP) {
+                    pos += capacity - off;
+                    continue;
+                }
+                long seq = map.getLong(at + SEQUENCE);
+                int copy = Math.min(Math.max(0, Math.min(length, maxMessage)), buf.length);
+                in.position(at + RECORD_HEADER);
+                in.get(buf, 0, copy);
+
+                //if the writer has come around to this message while it was copied, it may be torn
+                acquireFence();
+                long after = map.getLong(TAIL_OFFSET);
+                if (length < 0 || length > maxMessage || after - pos > capacity - 2 * (maxMessage + RECORD_HEADER)
+                        || map.getLong(EPOCH_OFFSET) != epoch) {
+                    resync(after);
+                    continue;
+                }
+                pos += RECORD_HEADER + align(length);
+                if (lastSequence >= 0 && seq > lastSequence + 1) {
+                    lost.addAndGet(seq - lastSequence - 1);
+                }
+                lastSequence = seq;
+                read.incrementAndGet();
+                return copy;
+            }
+        }
+
+        /**
+         * Wait for the next message: spin briefly, then park between checks.  No system call is made while
+         * messages keep arriving.
+         *
+         * @param buf receives the message; a longer message is truncated
+         * @return length copied
+         * @throws InterruptedException interrupted while waiting
+         */
+        public int take(byte[] buf) throws InterruptedException {
+            int spins = 0;
+            while (true) {
+                int n = poll(buf);
+                if (n >= 0) {
+                    return n;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (++spins < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        }
+
+        /**
+         * Fallen too far behind: skip to the newest message.
+         */
+        private void resync(long t) {
+            pos = t;
+            //read after the position, so it may count a few messages past it as lost too
+            long next = map.getLong(NEXT_SEQUENCE_OFFSET);
+            if (lastSequence >= 0 && next > lastSequence + 1) {
+                lost.addAndGet(next - lastSequence - 1);
+            }
+            lastSequence = next - 1;
+            resyncs.incrementAndGet();
+        }
+
+        /**
+         * Get the number of messages this reader missed.
+         *
+         * @return messages overwritten before they were read
+         */
+        public long getLost() {
+            return lost.get();
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static void releaseFence() {
+        try {
+            if (RELEASE_FENCE != null) {
+                RELEASE_FENCE.invokeExact();
+            }
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void acquireFence() {
+        try {
+            if (ACQUIRE_FENCE != null) {
+                ACQUIRE_FENCE.invokeExact();
+            }
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Close the file; the mapping is released when it is collected.  The file is left for readers that still have it
+     * open.
+     *
+     * @throws IOException error closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return file + " (" + capacity + " bytes)";
+    }
+}
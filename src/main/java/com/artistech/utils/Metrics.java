@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of named counters and gauges, with an optional periodic report to the log.
+ */
+public final class Metrics {
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+    private static final Map<String, LongSupplier> METRICS = new ConcurrentSkipListMap<>();
+    private static Thread reporter = null;
+
+    /**
+     * Static access only.
+     */
+    private Metrics() {}
+
+    /**
+     * Get (or create) a counter.
+     *
+     * @param name metric name
+     * @return the counter
+     */
+    public static AtomicLong counter(String name) {
+        LongSupplier existing = METRICS.get(name);
+        if (existing instanceof Counter) {
+            return ((Counter) existing).value;
+        }
+        Counter c = new Counter();
+        LongSupplier prev = METRICS.putIfAbsent(name, c);
+        return prev instanceof Counter ? ((Counter) prev).value : c.value;
+    }
+
+    /**
+     * Register a gauge, replacing any metric with the same name.
+     *
+     * @param name metric name
+     * @param gauge supplies the current value
+     */
+    public static void gauge(String name, LongSupplier gauge) {
+        METRICS.put(name, gauge);
+    }
+
+    /**
+     * Remove all metrics whose name starts with the prefix.
+     *
+     * @param prefix name prefix
+     */
+    public static void remove(String prefix) {
+        METRICS.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Get the current value of all metrics.
+     *
+     * @return metric values by name, sorted by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> e : METRICS.entrySet()) {
+            ret.put(e.getKey(), e.getValue().getAsLong());
+        }
+        return ret;
+    }
+
+    /**
+     * Format all metrics, one per line.
+     *
+     * @return report
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            sb.append(System.lineSeparator()).append("  ").append(e.getKey()).append(" = ").append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log a report periodically.
+     *
+     * @param seconds period between reports
+     */
+    public static synchronized void start(long seconds) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                LOGGER.log(Level.INFO, "Metrics:{0}", report());
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Counter backed by an AtomicLong.
+     */
+    private static class Counter implements LongSupplier {
+        private final AtomicLong value = new AtomicLong();
+
+        @Override
+        public long getAsLong() {
+            return value.get();
+        }
+    }
+}
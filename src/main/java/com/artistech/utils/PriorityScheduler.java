@@ -0,0 +1,454 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounded multi-class queue feeding a single writer.  Classes are served either in strict priority order (class 0
+ * first) or by weighted round-robin, where class i may send weights[i] items in a row when it has them.
+ *
+ * A fair scheduler also shares each class between the sources ("flows", e.g. one per peer) feeding it: each flow has
+ * its own queue and the flows with something queued are served by deficit round-robin.  Each turn a flow may send up
+ * to quantum * weight bytes (carrying over what it didn't use while it stays busy), so a flow gets a share of the
+ * bandwidth in proportion to its weight however small or large its items are, and a busy flow can't starve a quiet
+ * one.  A plain scheduler puts every item of a class in one queue.
+ *
+ * When a queue is full, its oldest item is dropped; for live audio a late frame is worth less than a new one, and a
+ * flow that sends too much only loses its own items.
+ *
+ * Per class queue depth, enqueue/drop counts and queue wait time are published to Metrics under the given name; a
+ * fair scheduler also publishes per flow bytes and items sent, drops, depth and wait times as NAME.flow.FLOW.*.
+ *
+ * @param <T> Paramaterized type of item
+ */
+public class PriorityScheduler<T> {
+
+    public static final int DEFAULT_QUANTUM = 1500;
+
+    /**
+     * Queued item with the time it was queued.
+     */
+    private static class Entry<T> {
+        final T item;
+        final long nanos;
+
+        Entry(T item, long nanos) {
+            this.item = item;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * One flow's queue in one class.
+     */
+    private static class Queue<T> {
+        final Stats stats;
+        final ArrayDeque<Entry<T>> items = new ArrayDeque<>();
+        long deficit = 0;
+        //the quantum for the current turn has been added
+        boolean granted = false;
+
+        Queue(Stats stats) {
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * A flow's counters, over all classes.
+     */
+    private static class Stats {
+        final int weight;
+        final AtomicLong bytes;
+        final AtomicLong sent;
+        final AtomicLong dropped;
+        int depth = 0;
+        long waitTotal = 0;
+        long waitMax = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param prefix metrics name prefix, null to publish nothing
+         * @param weight share of the flow
+         */
+        Stats(String prefix, int weight) {
+            this.weight = weight;
+            this.bytes = prefix == null ? new AtomicLong() : Metrics.counter(prefix + ".bytes");
+            this.sent = prefix == null ? new AtomicLong() : Metrics.counter(prefix + ".sent");
+            this.dropped = prefix == null ? new AtomicLong() : Metrics.counter(prefix + ".dropped");
+        }
+    }
+
+    private final String name;
+    private final int[] weights;
+    private final boolean strict;
+    private final int capacity;
+    private final int quantum;
+    private final ToIntFunction<T> sizer;
+    private final Map<String, Integer> flowWeights;
+    private final Map<String, Stats> flows = new HashMap<>();
+    private final Map<String, Queue<T>>[] queues;
+    //the single queue of each class of a plain scheduler, and of items without a flow
+    private final Queue<T>[] plain;
+    //flows with items queued, in the order they are served
+    private final ArrayDeque<Queue<T>>[] active;
+    private final int[] depth;
+    private int current = 0;
+    private int credit;
+    private boolean halt = false;
+
+    private final AtomicLong[] enqueued;
+    private final AtomicLong[] dropped;
+    private final long[] dequeued;
+    private final long[] waitTotal;
+    private final long[] waitMax;
+
+    /**
+     * Constructor for a plain scheduler.
+     *
+     * @param name metrics name prefix
+     * @param weights one weight per class (ignored for strict priority)
+     * @param strict true for strict priority, false for weighted round-robin
+     * @param capacity maximum items queued per class
+     */
+    public PriorityScheduler(String name, int[] weights, boolean strict, int capacity) {
+        this(name, weights, strict, capacity, 1, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Constructor for a fair scheduler.
+     *
+     * @param name metrics name prefix
+     * @param weights one weight per class (ignored for strict priority)
+     * @param strict true for strict priority between classes, false for weighted round-robin
+     * @param capacity maximum items queued per flow and class
+     * @param quantum bytes a flow of weight 1 may send per turn
+     * @param flowWeights weight of each flow; flows not listed have weight 1
+     * @param sizer size of an item in bytes, null for a plain scheduler
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityScheduler(String name, int[] weights, boolean strict, int capacity, int quantum,
+            Map<String, Integer> flowWeights, ToIntFunction<T> sizer) {
+        this.name = name;
+        this.weights = weights.clone();
+        this.strict = strict;
+        this.capacity = capacity;
+        this.quantum = Math.max(1, quantum);
+        this.flowWeights = new HashMap<>(flowWeights);
+        this.sizer = sizer;
+        int n = weights.length;
+        queues = new Map[n];
+        plain = new Queue[n];
+        active = new ArrayDeque[n];
+        depth = new int[n];
+        enqueued = new AtomicLong[n];
+        dropped = new AtomicLong[n];
+        dequeued = new long[n];
+        waitTotal = new long[n];
+        waitMax = new long[n];
+        for (int ii = 0; ii < n; ii++) {
+            this.weights[ii] = Math.max(1, this.weights[ii]);
+            queues[ii] = new HashMap<>();
+            active[ii] = new ArrayDeque<>();
+            plain[ii] = new Queue<>(new Stats(null, 1));
+            final int cls = ii;
+            String prefix = name + ".class" + ii;
+            enqueued[ii] = Metrics.counter(prefix + ".enqueued");
+            dropped[ii] = Metrics.counter(prefix + ".dropped");
+            Metrics.gauge(prefix + ".depth", () -> depth(cls));
+            Metrics.gauge(prefix + ".wait.avg.us", () -> averageWait(cls) / 1000);
+            Metrics.gauge(prefix + ".wait.max.us", () -> maxWait(cls) / 1000);
+        }
+        credit = this.weights[0];
+    }
+
+    /**
+     * Get the number of classes.
+     *
+     * @return number of classes
+     */
+    public int getClasses() {
+        return queues.length;
+    }
+
+    /**
+     * Queue an item.
+     *
+     * @param cls class of the item; out of range values are put in the lowest priority class
+     * @param item item to queue
+     * @return false if halted
+     */
+    public boolean offer(int cls, T item) {
+        return offer(cls, null, item);
+    }
+
+    /**
+     * Queue an item from a flow.
+     *
+     * @param cls class of the item; out of range values are put in the lowest priority class
+     * @param flow where the item came from; ignored by a plain scheduler
+     * @param item item to queue
+     * @return false if halted
+     */
+    public synchronized boolean offer(int cls, String flow, T item) {
+        if (halt) {
+            return false;
+        }
+        if (cls < 0 || cls >= queues.length) {
+            cls = queues.length - 1;
+        }
+        Queue<T> q = queue(cls, flow);
+        if (q.items.isEmpty()) {
+            active[cls].addLast(q);
+        } else if (q.items.size() >= capacity) {
+            q.items.removeFirst();
+            depth[cls]--;
+            q.stats.depth--;
+            dropped[cls].incrementAndGet();
+            q.stats.dropped.incrementAndGet();
+            Trace.event(Trace.Kind.DROP, -1, -1, Trace.DROP_QUEUE_FULL);
+        }
+        q.items.addLast(new Entry<>(item, System.nanoTime()));
+        depth[cls]++;
+        q.stats.depth++;
+        enqueued[cls].incrementAndGet();
+        notifyAll();
+        return true;
+    }
+
+    private Queue<T> queue(int cls, String flow) {
+        if (sizer == null || flow == null) {
+            return plain[cls];
+        }
+        Queue<T> q = queues[cls].get(flow);
+        if (q == null) {
+            q = new Queue<>(stats(flow));
+            queues[cls].put(flow, q);
+        }
+        return q;
+    }
+
+    private Stats stats(final String flow) {
+        Stats s = flows.get(flow);
+        if (s == null) {
+            String prefix = name + ".flow." + flow;
+            s = new Stats(prefix, Math.max(1, flowWeights.getOrDefault(flow, 1)));
+            flows.put(flow, s);
+            final Stats stats = s;
+            Metrics.gauge(prefix + ".depth", () -> flowDepth(stats));
+            Metrics.gauge(prefix + ".wait.avg.us", () -> flowWait(stats, false) / 1000);
+            Metrics.gauge(prefix + ".wait.max.us", () -> flowWait(stats, true) / 1000);
+        }
+        return s;
+    }
+
+    /**
+     * Take the next item, waiting until one is available.
+     *
+     * @return next item, or null if halted
+     */
+    public synchronized T take() {
+        while (!halt && isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                halt = true;
+                return null;
+            }
+        }
+        return halt ? null : next();
+    }
+
+    /**
+     * Take the next item, waiting up to the timeout for one to be available.
+     *
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     * @return next item, or null if halted or the timeout expired
+     */
+    public synchronized T poll(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!halt && isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                halt = true;
+                return null;
+            }
+        }
+        return halt ? null : next();
+    }
+
+    /**
+     * Take the next item if one is available.
+     *
+     * @return next item, or null if none are queued
+     */
+    public synchronized T poll() {
+        return halt || isEmpty() ? null : next();
+    }
+
+    /**
+     * Halt the scheduler, waking any waiting writer.
+     */
+    public synchronized void halt() {
+        if (!halt) {
+            halt = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Is the scheduler halted?
+     *
+     * @return if the scheduler has been halted
+     */
+    public synchronized boolean isHalted() {
+        return halt;
+    }
+
+    /**
+     * Remove this scheduler's metrics.
+     */
+    public void unregister() {
+        Metrics.remove(name + ".");
+    }
+
+    /**
+     * Get the number of items queued in a class.
+     *
+     * @param cls class
+     * @return depth
+     */
+    public synchronized int depth(int cls) {
+        return depth[cls];
+    }
+
+    /**
+     * Get the total number of items queued.
+     *
+     * @return depth of all classes
+     */
+    public synchronized int size() {
+        int ret = 0;
+        for (int d : depth) {
+            ret += d;
+        }
+        return ret;
+    }
+
+    /**
+     * Get the average time items in a class waited in the queue.
+     *
+     * @param cls class
+     * @return nanoseconds
+     */
+    public synchronized long averageWait(int cls) {
+        return dequeued[cls] == 0 ? 0 : waitTotal[cls] / dequeued[cls];
+    }
+
+    /**
+     * Get the maximum time an item in a class waited in the queue.
+     *
+     * @param cls class
+     * @return nanoseconds
+     */
+    public synchronized long maxWait(int cls) {
+        return waitMax[cls];
+    }
+
+    private synchronized int flowDepth(Stats s) {
+        return s.depth;
+    }
+
+    private synchronized long flowWait(Stats s, boolean max) {
+        long n = s.sent.get();
+        return max ? s.waitMax : n == 0 ? 0 : s.waitTotal / n;
+    }
+
+    private boolean isEmpty() {
+        for (int d : depth) {
+            if (d > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Select and remove the next item; at least one class must be non-empty.
+     *
+     * @return next item
+     */
+    private T next() {
+        int cls;
+        if (strict) {
+            cls = 0;
+            while (depth[cls] == 0) {
+                cls++;
+            }
+        } else {
+            while (credit <= 0 || depth[current] == 0) {
+                current = (current + 1) % queues.length;
+                credit = weights[current];
+            }
+            credit--;
+            cls = current;
+        }
+
+        ArrayDeque<Queue<T>> busy = active[cls];
+        Queue<T> q = busy.peekFirst();
+        int size = 0;
+        if (sizer != null) {
+            //deficit round-robin over the class's busy flows
+            while (true) {
+                if (!q.granted) {
+                    q.deficit += (long) quantum * q.stats.weight;
+                    q.granted = true;
+                }
+                size = sizer.applyAsInt(q.items.peekFirst().item);
+                if (q.deficit >= size) {
+                    break;
+                }
+                //turn over; the deficit carries to the next turn
+                q.granted = false;
+                busy.addLast(busy.removeFirst());
+                q = busy.peekFirst();
+            }
+        }
+
+        Entry<T> e = q.items.removeFirst();
+        q.deficit -= size;
+        if (q.items.isEmpty()) {
+            //an idle flow doesn't bank credit
+            busy.removeFirst();
+            q.deficit = 0;
+            q.granted = false;
+        }
+        depth[cls]--;
+        Stats s = q.stats;
+        s.depth--;
+        s.sent.incrementAndGet();
+        s.bytes.addAndGet(size);
+
+        long wait = System.nanoTime() - e.nanos;
+        dequeued[cls]++;
+        waitTotal[cls] += wait;
+        waitMax[cls] = Math.max(waitMax[cls], wait);
+        s.waitTotal += wait;
+        s.waitMax = Math.max(s.waitMax, wait);
+        return e.item;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring connecting exactly one producer thread to exactly one consumer thread.
+ *
+ * The producer never blocks: offer fails when the ring is full.  The consumer spins briefly and then parks when the
+ * ring is empty, and is unparked by the next offer.
+ *
+ * Depth, high-water mark and rejected offers are published to Metrics under the given name.
+ *
+ * @param <T> Paramaterized type of item
+ */
+public class SpscRing<T> {
+
+    private static final int SPINS = 100;
+
+    private final String name;
+    private final Object[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong rejected;
+    private volatile long highWater = 0;
+    private volatile Thread consumer = null;
+    private volatile boolean halt = false;
+
+    /**
+     * Constructor.
+     *
+     * @param name metrics name prefix
+     * @param capacity minimum capacity; rounded up to a power of two
+     */
+    public SpscRing(String name, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.name = name;
+        this.items = new Object[size];
+        this.mask = size - 1;
+        this.rejected = Metrics.counter(name + ".rejected");
+        Metrics.gauge(name + ".depth", this::size);
+        Metrics.gauge(name + ".highwater", () -> highWater);
+    }
+
+    /**
+     * Add an item.  Producer thread only.
+     *
+     * @param item item to add
+     * @return false if the ring is full or halted
+     */
+    public boolean offer(T item) {
+        long t = tail.get();
+        long depth = t - head.get();
+        if (halt || depth >= items.length) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        items[(int) t & mask] = item;
+        tail.set(t + 1);
+        if (depth + 1 > highWater) {
+            highWater = depth + 1;
+        }
+
+        //the tail is published with a volatile write before reading the consumer, and take sets the consumer
+        //before polling again, so one of the two always sees the other.
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the next item if there is one.  Consumer thread only.
+     *
+     * @return next item, or null if empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T ret = (T) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return ret;
+    }
+
+    /**
+     * Remove the next item, waiting until one is available.  Consumer thread only.
+     *
+     * @return next item, or null if halted
+     */
+    public T take() {
+        int spins = 0;
+        while (!halt) {
+            T ret = poll();
+            if (ret != null) {
+                return ret;
+            }
+            if (spins < SPINS) {
+                spins++;
+                Thread.yield();
+                continue;
+            }
+            consumer = Thread.currentThread();
+            ret = poll();
+            if (ret == null && !halt) {
+                LockSupport.park(this);
+            }
+            consumer = null;
+            if (ret != null) {
+                return ret;
+            }
+            if (Thread.interrupted()) {
+                halt = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Halt the ring, waking the consumer.
+     */
+    public void halt() {
+        halt = true;
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+
+    /**
+     * Is the ring halted?
+     *
+     * @return if the ring has been halted
+     */
+    public boolean isHalted() {
+        return halt;
+    }
+
+    /**
+     * Remove this ring's metrics.
+     */
+    public void unregister() {
+        Metrics.remove(name + ".");
+    }
+
+    /**
+     * Get the number of items in the ring.
+     *
+     * @return depth
+     */
+    public int size() {
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel: releases items at their deadlines from a single thread, however many are pending.
+ *
+ * Time is cut into ticks and each tick maps to one of a ring of slots.  Scheduling adds the item to the slot of its
+ * deadline's tick, and the thread wakes once a tick to release the items in that slot that are due, so both are
+ * constant time.  Deadlines more than a turn of the wheel away stay in their slot for later turns, and deadlines in
+ * the past are released on the next tick.  Items with the same deadline tick are released in the order scheduled.
+ *
+ * The number of items pending is published to Metrics as NAME.pending.
+ *
+ * @param <T> Paramaterized type of item
+ */
+public class TimerWheel<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(TimerWheel.class.getName());
+
+    /**
+     * Scheduled item with its deadline.
+     */
+    private static class Entry<T> {
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Entry<T>>[] slots;
+    private final Consumer<T> action;
+    private final long start = System.nanoTime();
+    private final Thread thread;
+    //next tick to be released
+    private long cursor = 0;
+    private int pending = 0;
+    private volatile boolean halt = false;
+
+    /**
+     * Constructor.  Starts the thread.
+     *
+     * @param name thread and metrics name
+     * @param tickNanos length of a tick
+     * @param slots number of slots; a turn of the wheel is tickNanos * slots
+     * @param action run on the wheel's thread for each item when it is due
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickNanos, int slots, Consumer<T> action) {
+        this.tickNanos = Math.max(1, tickNanos);
+        this.slots = new ArrayDeque[Math.max(1, slots)];
+        for (int ii = 0; ii < this.slots.length; ii++) {
+            this.slots[ii] = new ArrayDeque<>();
+        }
+        this.action = action;
+        Metrics.gauge(name + ".pending", this::size);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule an item.
+     *
+     * @param item item to release
+     * @param deadline System.nanoTime to release it at
+     * @return false if halted
+     */
+    public synchronized boolean schedule(T item, long deadline) {
+        if (halt) {
+            return false;
+        }
+        long tick = Math.max(cursor, (deadline - start) / tickNanos);
+        slots[(int) (tick % slots.length)].addLast(new Entry<>(item, deadline));
+        pending++;
+        return true;
+    }
+
+    /**
+     * Get the number of items pending.
+     *
+     * @return pending items
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * Stop the thread; pending items are not released.
+     */
+    public void halt() {
+        synchronized (this) {
+            halt = true;
+            for (ArrayDeque<Entry<T>> slot : slots) {
+                slot.clear();
+            }
+            pending = 0;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Take the items due in the next tick, if it has passed.
+     *
+     * @param now current time
+     * @param due receives the items
+     * @return false if the tick hasn't passed yet
+     */
+    private synchronized boolean advance(long now, List<T> due) {
+        long end = start + (cursor + 1) * tickNanos;
+        if (now - end < 0) {
+            return false;
+        }
+        Iterator<Entry<T>> it = slots[(int) (cursor % slots.length)].iterator();
+        while (it.hasNext()) {
+            Entry<T> e = it.next();
+            //later turns of the wheel stay
+            if (e.deadline - end < 0) {
+                it.remove();
+                pending--;
+                due.add(e.item);
+            }
+        }
+        cursor++;
+        return true;
+    }
+
+    private void run() {
+        List<T> due = new ArrayList<>();
+        while (!halt) {
+            long now = System.nanoTime();
+            while (advance(now, due)) {
+                for (T item : due) {
+                    try {
+                        action.accept(item);
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, null, ex);
+                    }
+                }
+                due.clear();
+            }
+            long next;
+            synchronized (this) {
+                next = start + (cursor + 1) * tickNanos;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017-18, ArtisTech, Inc.
+ */
+package com.artistech.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Structured per-packet event tracing for the hot paths, in place of FINEST logging.
+ *
+ * Events carry only primitives, so recording one in the ring never allocates.  When tracing is off (the default) an
+ * event is a single volatile read.  Events go either to an in-memory ring of the most recent events, which can be
+ * dumped on demand through JMX (com.artistech.utils:type=Trace, operation dump), or to Java Flight Recorder as
+ * "com.artistech.Packet" events when the JVM has JFR; JFR is looked up reflectively so Java 8 runtimes without it
+ * fall back to the ring.  With JFR an event allocates nothing unless a recording enables it, and then allocates the
+ * JFR event and its boxed fields.
+ */
+public final class Trace {
+
+    private static final Logger LOGGER = Logger.getLogger(Trace.class.getName());
+
+    /**
+     * Traced event kinds.
+     */
+    public enum Kind {
+        RECEIVE,
+        FORWARD,
+        REBROADCAST,
+        DROP,
+        DEDUP,
+        RECONNECT
+    }
+
+    //values of DROP events
+    public static final long DROP_FILTER = 1;
+    public static final long DROP_INGEST_FULL = 2;
+    public static final long DROP_QUEUE_FULL = 3;
+
+    public static final int DEFAULT_SIZE = 8192;
+
+    /**
+     * Where events go.
+     */
+    private interface Sink {
+        void event(Kind kind, int type, int length, long value);
+    }
+
+    private static volatile Sink sink = null;
+    private static Ring ring = null;
+
+    /**
+     * Static access only.
+     */
+    private Trace() {}
+
+    /**
+     * Record an event.
+     *
+     * @param kind what happened
+     * @param type PDU type, -1 if not applicable
+     * @param length PDU length, -1 if not applicable
+     * @param value event specific value (drop reason, class, reconnect count...)
+     */
+    public static void event(Kind kind, int type, int length, long value) {
+        Sink s = sink;
+        if (s != null) {
+            s.event(kind, type, length, value);
+        }
+    }
+
+    /**
+     * Is tracing on?
+     *
+     * @return true if events are recorded
+     */
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * Start tracing.
+     *
+     * @param mode "ring[:SIZE]" or "jfr"
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static synchronized void start(String mode) {
+        String[] sp = mode.split(":");
+        switch (sp[0]) {
+            case "jfr":
+                Sink jfr = Jfr.create();
+                if (jfr != null) {
+                    sink = jfr;
+                    LOGGER.log(Level.INFO, "Tracing to JFR");
+                    return;
+                }
+                LOGGER.log(Level.WARNING, "JFR is not available, tracing to memory");
+                ring = new Ring(DEFAULT_SIZE);
+                break;
+            case "ring":
+                ring = new Ring(sp.length > 1 ? Integer.parseInt(sp[1]) : DEFAULT_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown trace mode: " + mode);
+        }
+        sink = ring;
+        register();
+    }
+
+    /**
+     * Stop tracing.
+     */
+    public static synchronized void stop() {
+        sink = null;
+    }
+
+    /**
+     * Format the events in the ring, oldest first.
+     *
+     * @return events, one per line; empty if not tracing to memory
+     */
+    public static String dump() {
+        Ring r;
+        synchronized (Trace.class) {
+            r = ring;
+        }
+        return r == null ? "" : r.dump();
+    }
+
+    /**
+     * Management interface for dumping the ring.
+     */
+    public interface TraceMXBean {
+        /**
+         * Format the events in the ring.
+         *
+         * @return events, one per line
+         */
+        String dump();
+    }
+
+    private static void register() {
+        try {
+            ObjectName name = new ObjectName("com.artistech.utils:type=Trace");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean((TraceMXBean) Trace::dump, name);
+            }
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Unable to register trace MBean: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Lock-free ring of the most recent events.  Writers claim a slot, fill it, then stamp it with its sequence
+     * number; dump skips slots whose stamp doesn't match (being written or already overwritten).
+     */
+    private static class Ring implements Sink {
+        private final int mask;
+        private final AtomicLong next = new AtomicLong();
+        private final AtomicLongArray stamps;
+        private final long[] times;
+        private final long[] values;
+        private final long[] packed;
+        private final long start = System.nanoTime();
+
+        Ring(int size) {
+            int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            mask = n - 1;
+            stamps = new AtomicLongArray(n);
+            times = new long[n];
+            values = new long[n];
+            packed = new long[n];
+        }
+
+        @Override
+        public void event(Kind kind, int type, int length, long value) {
+            long seq = next.getAndIncrement();
+            int slot = (int) seq & mask;
+            stamps.set(slot, -1);
+            times[slot] = System.nanoTime();
+            values[slot] = value;
+            packed[slot] = (long) kind.ordinal() << 48 | (type & 0xFFFFL) << 32 | (length & 0xFFFFFFFFL);
+            stamps.set(slot, seq + 1);
+        }
+
+        String dump() {
+            Kind[] kinds = Kind.values();
+            long end = next.get();
+            StringBuilder sb = new StringBuilder();
+            for (long seq = Math.max(0, end - mask - 1); seq < end; seq++) {
+                int slot = (int) seq & mask;
+                long t = times[slot];
+                long v = values[slot];
+                long p = packed[slot];
+                if (stamps.get(slot) != seq + 1) {
+                    continue;
+                }
+                sb.append(String.format("%12.3f ms %-11s type=%d length=%d value=%d%n", (t - start) / 1e6,
+                        kinds[(int) (p >>> 48)], (short) (p >>> 32), (int) p, v));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Emits events through jdk.jfr.EventFactory, found by reflection and bound once to method handles, so an event
+     * costs no reflective call.  Nothing is created unless a recording has the event type enabled.
+     */
+    private static class Jfr implements Sink {
+        private final MethodHandle newEvent;
+        private final MethodHandle isEnabled;
+        private final MethodHandle set;
+        private final MethodHandle shouldCommit;
+        private final MethodHandle commit;
+
+        private Jfr(MethodHandle newEvent, MethodHandle isEnabled, MethodHandle set, MethodHandle shouldCommit,
+                MethodHandle commit) {
+            this.newEvent = newEvent;
+            this.isEnabled = isEnabled;
+            this.set = set;
+            this.shouldCommit = shouldCommit;
+            this.commit = commit;
+        }
+
+        static Jfr create() {
+            try {
+                Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> typeClass = Class.forName("jdk.jfr.EventType");
+                Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                Constructor<?> field = descriptor.getConstructor(Class.class, String.class);
+
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), "com.artistech.Packet"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "CNR Bridge Packet"));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"CNR Bridge"}));
+                List<Object> fields = Arrays.asList(
+                        field.newInstance(String.class, "kind"),
+                        field.newInstance(int.class, "pduType"),
+                        field.newInstance(int.class, "length"),
+                        field.newInstance(long.class, "value"));
+
+                Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                Object type = factoryClass.getMethod("getEventType").invoke(factory);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                return new Jfr(
+                        lookup.unreflect(factoryClass.getMethod("newEvent")).bindTo(factory)
+                                .asType(MethodType.methodType(Object.class)),
+                        lookup.unreflect(typeClass.getMethod("isEnabled")).bindTo(type)
+                                .asType(MethodType.methodType(boolean.class)),
+                        lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+                                .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class)),
+                        lookup.unreflect(eventClass.getMethod("shouldCommit"))
+                                .asType(MethodType.methodType(boolean.class, Object.class)),
+                        lookup.unreflect(eventClass.getMethod("commit"))
+                                .asType(MethodType.methodType(void.class, Object.class)));
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                LOGGER.log(Level.FINE, "JFR lookup failed: {0}", ex.toString());
+                return null;
+            }
+        }
+
+        @Override
+        public void event(Kind kind, int type, int length, long value) {
+            try {
+                if (!(boolean) isEnabled.invokeExact()) {
+                    return;
+                }
+                Object e = (Object) newEvent.invokeExact();
+                if (!(boolean) shouldCommit.invokeExact(e)) {
+                    return;
+                }
+                //the dynamic event's setter takes objects, so a recorded event boxes its numbers
+                set.invokeExact(e, 0, (Object) kind.name());
+                set.invokeExact(e, 1, (Object) type);
+                set.invokeExact(e, 2, (Object) length);
+                set.invokeExact(e, 3, (Object) value);
+                commit.invokeExact(e);
+            } catch (Throwable ex) {
+                LOGGER.log(Level.FINE, "JFR event failed: {0}", ex.toString());
+                sink = null;
+            }
+        }
+    }
+}